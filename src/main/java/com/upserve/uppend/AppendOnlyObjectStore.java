@@ -3,9 +3,10 @@ package com.upserve.uppend;
 import com.google.common.collect.Maps;
 
 import java.io.*;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.*;
-import java.util.stream.Stream;
+import java.util.stream.*;
 
 /**
  * Wraps an {@code AppendOnlyStore} and {@code Serializer} and provides
@@ -43,6 +44,18 @@ public class AppendOnlyObjectStore<T> implements AutoCloseable, RegisteredFlusha
         store.append(partitionEntropy, key, serializer.apply(value));
     }
 
+    /**
+     * Append several objects under a given key, in order
+     *
+     * @param partitionEntropy the partition to store under
+     * @param key the key to store under
+     * @param values the values to append
+     * @throws IllegalArgumentException if partition is invalid
+     */
+    public void appendAll(String partitionEntropy, String key, Collection<T> values) {
+        store.appendAll(partitionEntropy, key, values.stream().map(serializer).collect(Collectors.toList()));
+    }
+
     /**
      * Read objects that have been stored under a given partition and key in
      * parallel
@@ -81,6 +94,70 @@ public class AppendOnlyObjectStore<T> implements AutoCloseable, RegisteredFlusha
         return deserializer.apply(store.readLast(partitionEntropy, key));
     }
 
+    /**
+     * Read the objects stored under a given partition and key with a position in [fromIndex, toIndex) in storage order
+     *
+     * @param partitionEntropy the partition under which to retrieve
+     * @param key the key under which to retrieve
+     * @param fromIndex the index of the first object to return, inclusive
+     * @param toIndex the index after the last object to return, exclusive
+     * @return a stream of the stored objects in the range in storage order
+     * @throws IllegalArgumentException if partition is invalid or the range is negative
+     */
+    public Stream<T> readRange(String partitionEntropy, String key, long fromIndex, long toIndex) {
+        return store.readRange(partitionEntropy, key, fromIndex, toIndex).map(deserializer);
+    }
+
+    /**
+     * Read the objects stored under a given partition and key since a cursor returned by an earlier read
+     *
+     * @param partitionEntropy the partition under which to retrieve
+     * @param key the key under which to retrieve
+     * @param cursor the cursor from the previous read of this partition and key, or {@link Cursor#START}
+     * @return the objects stored since the cursor and the cursor to use for the next read
+     * @throws IllegalArgumentException if partition or cursor is invalid
+     */
+    public CursorRead<T> readSince(String partitionEntropy, String key, Cursor cursor) {
+        return store.readSince(partitionEntropy, key, cursor).map(deserializer);
+    }
+
+    /**
+     * Read the last objects that were stored under a given partition and key
+     *
+     * @param partitionEntropy the partition under which to retrieve
+     * @param key the key under which to retrieve
+     * @param n the maximum number of objects to return
+     * @return a stream of up to n of the most recently stored objects in storage order
+     * @throws IllegalArgumentException if partition is invalid
+     */
+    public Stream<T> readLast(String partitionEntropy, String key, int n) {
+        return store.readLast(partitionEntropy, key, n).map(deserializer);
+    }
+
+    /**
+     * Read objects that have been stored under a given partition and key, newest first
+     *
+     * @param partitionEntropy the partition under which to retrieve
+     * @param key the key under which to retrieve
+     * @return a stream of the stored objects in reverse storage order
+     * @throws IllegalArgumentException if partition is invalid
+     */
+    public Stream<T> readReverse(String partitionEntropy, String key) {
+        return store.readReverse(partitionEntropy, key).map(deserializer);
+    }
+
+    /**
+     * Count the objects that have been stored under a given partition and key
+     *
+     * @param partitionEntropy the partition under which to count
+     * @param key the key under which to count
+     * @return the number of stored objects, or 0 if none
+     * @throws IllegalArgumentException if partition is invalid
+     */
+    public long count(String partitionEntropy, String key) {
+        return store.count(partitionEntropy, key);
+    }
+
     /**
      * Enumerate the keys in the data store
      *
@@ -124,6 +201,22 @@ public class AppendOnlyObjectStore<T> implements AutoCloseable, RegisteredFlusha
         store.clear();
     }
 
+    /**
+     * Rewrite the values of every key contiguously on disk, in key order.
+     * Must not run concurrently with reads or writes.
+     */
+    public void compact() {
+        store.compact();
+    }
+
+    /**
+     * Rewrite the pages of each hash bucket contiguously on disk.
+     * Must not run concurrently with reads or writes.
+     */
+    public void defragment() {
+        store.defragment();
+    }
+
     @Override
     public void close() throws Exception {
         store.close();
@@ -144,6 +237,15 @@ public class AppendOnlyObjectStore<T> implements AutoCloseable, RegisteredFlusha
         store.flush();
     }
 
+    /**
+     * Flush the appends made before this call and force them to disk, see {@link AppendOnlyStore#sync()}
+     *
+     * @return a future completed when the appends are on disk
+     */
+    public CompletableFuture<Void> sync() {
+        return store.sync();
+    }
+
     public void trim() {
         store.trim();
     }
@@ -1,5 +1,8 @@
 package com.upserve.uppend;
 
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Add byte arrays under a key and partition, and retrieve them. Note the
  * expectation that the byte arrays are appended to the value, which is an
@@ -16,6 +19,18 @@ public interface AppendOnlyStore extends ReadOnlyAppendOnlyStore, RegisteredFlus
      */
     void append(String partitionEntropy, String key, byte[] value);
 
+    /**
+     * Append several byte arrays under a given partition and key, in order.
+     * The blob positions are added to the key's blocks in one batch rather
+     * than one at a time.
+     *
+     * @param partitionEntropy the partition to store under
+     * @param key the key to store under
+     * @param values the values to append
+     * @throws IllegalArgumentException if partition is invalid
+     */
+    void appendAll(String partitionEntropy, String key, Collection<byte[]> values);
+
     /**
      * Flush any pending appends to durable storage. Will not return until
      * the flush is completed.
@@ -23,6 +38,14 @@ public interface AppendOnlyStore extends ReadOnlyAppendOnlyStore, RegisteredFlus
     @Override
     void flush();
 
+    /**
+     * Make the writes made before this call durable: flush them and force the files of the store to disk. When and
+     * on which thread the files are forced depends on the {@link DurabilityMode} of the store.
+     *
+     * @return a future completed when the writes are on disk, or completed exceptionally if forcing them failed
+     */
+    CompletableFuture<Void> sync();
+
     /**
      * Trim flushes any pending changes and then close cached resources to
      * reduce heap consumption
@@ -35,6 +58,22 @@ public interface AppendOnlyStore extends ReadOnlyAppendOnlyStore, RegisteredFlus
      */
     void clear();
 
+    /**
+     * Rewrite the blocks of every key so that each key's values are
+     * contiguous on disk, in key order, making reads of long histories
+     * sequential. This is an offline operation: it closes the open
+     * partitions and must not run concurrently with reads or writes.
+     */
+    void compact();
+
+    /**
+     * Rewrite the pages of the blob, key and metadata files so that the
+     * pages of each hash bucket are contiguous on disk, making scans
+     * sequential. This is an offline operation: it closes the open
+     * partitions and must not run concurrently with reads or writes.
+     */
+    void defragment();
+
     /**
      * Get the name of this store - the last element in the path
      *
@@ -7,6 +7,13 @@ public class AppendOnlyStoreBuilder extends FileStoreBuilder<AppendOnlyStoreBuil
     // Blocked Longs Config Options
     public static final int DEFAULT_BLOBS_PER_BLOCK = 127;
     private int blobsPerBlock = DEFAULT_BLOBS_PER_BLOCK;
+    private int maxBlobsPerBlock = 0; // Defaults to blobsPerBlock: fixed size blocks
+    public static final boolean DEFAULT_COUNT_VALUES = false;
+    private boolean countValues = DEFAULT_COUNT_VALUES;
+    public static final boolean DEFAULT_COMPRESS_VALUES = false;
+    private boolean compressValues = DEFAULT_COMPRESS_VALUES;
+    public static final boolean DEFAULT_LOCK_FREE_APPENDS = false;
+    private boolean lockFreeAppends = DEFAULT_LOCK_FREE_APPENDS;
 
     // Blob Cache Options
     public static final int DEFAULT_BLOB_PAGE_SIZE =  NativeIO.pageSize * 1024;
@@ -16,6 +23,9 @@ public class AppendOnlyStoreBuilder extends FileStoreBuilder<AppendOnlyStoreBuil
     public static final boolean DEFAULT_CACHE_BUFFERS = true; // Defaults to madvise normal LRU like page cache behavior
     private boolean cacheBuffers = DEFAULT_CACHE_BUFFERS;
 
+    public static final boolean DEFAULT_ADAPTIVE_ADVICE = false;
+    private boolean adaptiveAdvice = DEFAULT_ADAPTIVE_ADVICE;
+
     private BlobStoreMetrics.Adders blobStoreMetricsAdders = new BlobStoreMetrics.Adders();
     private BlockedLongMetrics.Adders blockedLongMetricsAdders = new BlockedLongMetrics.Adders();
 
@@ -25,6 +35,58 @@ public class AppendOnlyStoreBuilder extends FileStoreBuilder<AppendOnlyStoreBuil
         return this;
     }
 
+    /**
+     * Grow the blocks in each chain geometrically from blobsPerBlock up to this size. Keys with many values then need
+     * far fewer blocks while keys with few values still use small blocks. Only applies when a partition is created;
+     * existing partitions keep the layout they were created with.
+     *
+     * @param maxBlobsPerBlock the largest number of blobs in a block, must be at least blobsPerBlock
+     * @return this builder
+     */
+    public AppendOnlyStoreBuilder withMaxBlobsPerBlock(int maxBlobsPerBlock) {
+        this.maxBlobsPerBlock = maxBlobsPerBlock;
+        return this;
+    }
+
+    /**
+     * Keep a running count of the values for each key in the first block of its chain, so that counting the values
+     * of a key does not have to walk its blocks. Only applies when a partition is created.
+     *
+     * @param countValues keep value counts
+     * @return this builder
+     */
+    public AppendOnlyStoreBuilder withCountValues(boolean countValues) {
+        this.countValues = countValues;
+        return this;
+    }
+
+    /**
+     * Store the blob positions of each block as varint encoded deltas rather than 8 bytes each, which packs several
+     * times as many positions into a page. Block sizes set by blobsPerBlock and maxBlobsPerBlock are then in units of
+     * 8 bytes rather than blobs. Compressed blocks are always appended under locks. Only applies when a partition is
+     * created.
+     *
+     * @param compressValues compress blob positions
+     * @return this builder
+     */
+    public AppendOnlyStoreBuilder withCompressValues(boolean compressValues) {
+        this.compressValues = compressValues;
+        return this;
+    }
+
+    /**
+     * Append blob positions to the blocked longs with compare-and-swap on the mapped blocks rather than striped locks,
+     * so writers of hot keys which share a lock stripe do not serialize each other. Only applies when a partition is
+     * created; existing partitions keep appending in the mode they were created with.
+     *
+     * @param lockFreeAppends use lock free appends
+     * @return this builder
+     */
+    public AppendOnlyStoreBuilder withLockFreeAppends(boolean lockFreeAppends) {
+        this.lockFreeAppends = lockFreeAppends;
+        return this;
+    }
+
     // Blob Options
     public AppendOnlyStoreBuilder withBlobPageSize(int blobPageSize) {
         if (blobPageSize % NativeIO.pageSize != 0) {
@@ -44,6 +106,19 @@ public class AppendOnlyStoreBuilder extends FileStoreBuilder<AppendOnlyStoreBuil
         return this;
     }
 
+    /**
+     * Advise the kernel how the blob pages of each hash bucket are being read: sequential while a bucket is scanned,
+     * then dropped from the mapping when the bucket served few point reads during the scan, so full scans do not
+     * evict the pages serving point reads. Point reads keep the advice chosen by cacheBuffers.
+     *
+     * @param adaptiveAdvice apply adaptive advice
+     * @return this builder
+     */
+    public AppendOnlyStoreBuilder withAdaptiveAdvice(boolean adaptiveAdvice) {
+        this.adaptiveAdvice = adaptiveAdvice;
+        return this;
+    }
+
     public AppendOnlyStore build() {
         return build(false, null);
     }
@@ -80,6 +155,36 @@ public class AppendOnlyStoreBuilder extends FileStoreBuilder<AppendOnlyStoreBuil
         return blobsPerBlock;
     }
 
+    public int getMaxBlobsPerBlock() {
+        return maxBlobsPerBlock > 0 ? maxBlobsPerBlock : blobsPerBlock;
+    }
+
+    public boolean getCountValues() {
+        return countValues;
+    }
+
+    public boolean getCompressValues() {
+        return compressValues;
+    }
+
+    public boolean getLockFreeAppends() {
+        return lockFreeAppends;
+    }
+
+    /**
+     * @return the blocked longs options for new partitions, from the blocked long and file options of this builder
+     */
+    BlockedLongs.Options getBlockedLongsOptions() {
+        return new BlockedLongs.Options(blobsPerBlock)
+                .withMaxValuesPerBlock(getMaxBlobsPerBlock())
+                .withCountValues(countValues)
+                .withCompressValues(compressValues)
+                .withLockFreeAppends(lockFreeAppends)
+                .withPreallocationChunkSize(getPreallocationChunkSize())
+                .withHugePages(getHugePages())
+                .withEagerUnmapping(getEagerUnmapping());
+    }
+
     public int getBlobPageSize() {
         return blobPageSize;
     }
@@ -92,12 +197,21 @@ public class AppendOnlyStoreBuilder extends FileStoreBuilder<AppendOnlyStoreBuil
         return cacheBuffers;
     }
 
+    public boolean getAdaptiveAdvice() {
+        return adaptiveAdvice;
+    }
+
     @Override
     public String toString() {
         return "AppendOnlyStoreBuilder{" +
                 "blobsPerBlock=" + blobsPerBlock +
+                ", maxBlobsPerBlock=" + getMaxBlobsPerBlock() +
+                ", countValues=" + countValues +
+                ", compressValues=" + compressValues +
+                ", lockFreeAppends=" + lockFreeAppends +
                 ", blobPageSize=" + blobPageSize +
                 ", cacheBuffers=" + cacheBuffers +
+                ", adaptiveAdvice=" + adaptiveAdvice +
                 ", blobStoreMetricsAdders=" + blobStoreMetricsAdders +
                 ", blockedLongMetricsAdders=" + blockedLongMetricsAdders +
                 '}' + super.toString();
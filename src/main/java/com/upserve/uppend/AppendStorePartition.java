@@ -8,6 +8,8 @@ import org.slf4j.Logger;
 
 import java.io.*;
 import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
 import java.nio.file.*;
 import java.util.*;
 import java.util.function.*;
@@ -19,6 +21,7 @@ public class AppendStorePartition extends Partition implements Flushable, Closea
     private final BlockedLongs blocks;
     private final VirtualAppendOnlyBlobStore[] blobs;
     private final VirtualPageFile blobFile;
+    private final AdaptiveAdvice blobAdvice;
 
     private static Path blobsFile(Path partitiondDir) {
         return partitiondDir.resolve("blobStore");
@@ -28,44 +31,39 @@ public class AppendStorePartition extends Partition implements Flushable, Closea
         return partitiondDir.resolve("blockedLongs");
     }
 
+    private static Path compactingDir(Path partitiondDir) {
+        return partitiondDir.resolve("compacting");
+    }
+
+    private static Path compactedDir(Path partitiondDir) {
+        return partitiondDir.resolve("compacted");
+    }
+
+    private static Path compactionLockPath(Path partitiondDir) {
+        return partitiondDir.resolve("compactionLock");
+    }
+
     static AppendStorePartition createPartition(Path parentDir, String partition, AppendOnlyStoreBuilder builder) {
 
         Path partitionDir = validatePartition(parentDir, partition);
 
         BlockedLongs blocks = new BlockedLongs(
                 blocksFile(partitionDir),
-                builder.getBlobsPerBlock(),
+                builder.getBlockedLongsOptions(),
                 false,
                 builder.getBlockedLongMetricsAdders()
         );
+
         VirtualPageFile blobs = new VirtualPageFile(
                 blobsFile(partitionDir),
                 builder.getLookupHashCount(),
                 builder.getBlobPageSize(),
                 builder.getTargetBufferSize(),
-                false
-        );
-        VirtualPageFile metadata = new VirtualPageFile(
-                metadataPath(partitionDir),
-                builder.getLookupHashCount(),
-                builder.getMetadataPageSize(),
-                adjustedTargetBufferSize(
-                        builder.getMetadataPageSize(),
-                        builder.getLookupHashCount(),
-                        builder.getTargetBufferSize()),
-                false
-        );
-        VirtualPageFile keys = new VirtualPageFile(
-                keysPath(partitionDir),
-                builder.getLookupHashCount(),
-                builder.getLookupPageSize(),
-                adjustedTargetBufferSize(
-                        builder.getLookupPageSize(),
-                        builder.getLookupHashCount(),
-                        builder.getTargetBufferSize()
-                ),
-                false
+                false,
+                builder.getPageFileOptions()
         );
+        VirtualPageFile metadata = metadataFile(partitionDir, false, builder);
+        VirtualPageFile keys = keysFile(partitionDir, false, builder);
 
         return new AppendStorePartition(keys, metadata, blobs, blocks, false, builder);
     }
@@ -74,12 +72,20 @@ public class AppendStorePartition extends Partition implements Flushable, Closea
         validatePartition(partition);
         Path partitionDir = parentDir.resolve(partition);
 
+        if (readOnly) {
+            if (Files.exists(compactedDir(partitionDir))) {
+                log.warn("Opening partition {} read only while a compaction is being swapped in", partitionDir);
+            }
+        } else {
+            finishCompaction(partitionDir);
+        }
+
         if (!(Files.exists(blocksFile(partitionDir)) && Files.exists(metadataPath(partitionDir))
                 && Files.exists(keysPath(partitionDir)) && Files.exists(blobsFile(partitionDir)))) return null;
 
         BlockedLongs blocks = new BlockedLongs(
                 blocksFile(partitionDir),
-                builder.getBlobsPerBlock(),
+                builder.getBlockedLongsOptions(),
                 readOnly,
                 builder.getBlockedLongMetricsAdders()
         );
@@ -91,9 +97,16 @@ public class AppendStorePartition extends Partition implements Flushable, Closea
                 builder.getBlobPageSize(),
                 builder.getTargetBufferSize(),
                 readOnly,
-                builder.getCacheBuffers()
+                builder.getPageFileOptions().withCacheBuffers(builder.getCacheBuffers())
         );
-        VirtualPageFile metadata = new VirtualPageFile(
+        VirtualPageFile metadata = metadataFile(partitionDir, readOnly, builder);
+        VirtualPageFile keys = keysFile(partitionDir, readOnly, builder);
+
+        return new AppendStorePartition(keys, metadata, blobs, blocks, readOnly, builder);
+    }
+
+    private static VirtualPageFile metadataFile(Path partitionDir, boolean readOnly, AppendOnlyStoreBuilder builder) {
+        return new VirtualPageFile(
                 metadataPath(partitionDir),
                 builder.getLookupHashCount(),
                 builder.getMetadataPageSize(),
@@ -102,9 +115,13 @@ public class AppendStorePartition extends Partition implements Flushable, Closea
                         builder.getLookupHashCount(),
                         builder.getTargetBufferSize()
                 ),
-                readOnly
+                readOnly,
+                builder.getPageFileOptions().withLockPages(true)
         );
-        VirtualPageFile keys = new VirtualPageFile(
+    }
+
+    private static VirtualPageFile keysFile(Path partitionDir, boolean readOnly, AppendOnlyStoreBuilder builder) {
+        return new VirtualPageFile(
                 keysPath(partitionDir),
                 builder.getLookupHashCount(),
                 builder.getLookupPageSize(),
@@ -113,10 +130,178 @@ public class AppendStorePartition extends Partition implements Flushable, Closea
                         builder.getLookupHashCount(),
                         builder.getTargetBufferSize()
                 ),
-                readOnly
+                readOnly,
+                builder.getPageFileOptions()
         );
+    }
 
-        return new AppendStorePartition(keys, metadata, blobs, blocks, readOnly, builder);
+    /**
+     * Rewrite a closed partition so that the blocks of each key are contiguous. The chains are copied in key order to
+     * a new blocked longs file, with new keys and metadata files holding the new block positions, in a "compacting"
+     * directory inside the partition. Once written and forced to disk the directory is renamed to "compacted", which
+     * commits the compaction, and the files are then moved over the originals. Blobs are not moved.
+     * <p>
+     * An interrupted compaction is rolled back or finished the next time the partition is opened for writing. The
+     * partition must not be open while it is compacted. A compaction holds a lock file in the partition directory, so
+     * that another store opening the partition for writing fails instead of removing the compaction in progress.
+     *
+     * @param parentDir the partitions directory
+     * @param partition the partition to compact
+     * @param builder the builder used to open the store
+     * @throws IllegalStateException if the partition is already being compacted
+     */
+    static void compactPartition(Path parentDir, String partition, AppendOnlyStoreBuilder builder) {
+        validatePartition(partition);
+        Path partitionDir = parentDir.resolve(partition);
+        if (!Files.isDirectory(partitionDir)) return;
+
+        withCompactionLock(partitionDir, () -> compact(parentDir, partition, builder));
+    }
+
+    private static void compact(Path parentDir, String partition, AppendOnlyStoreBuilder builder) {
+        Path partitionDir = parentDir.resolve(partition);
+        recoverCompaction(partitionDir);
+
+        Path stagingDir = compactingDir(partitionDir);
+        long keys = 0;
+        try (AppendStorePartition source = openPartition(parentDir, partition, true, builder)) {
+            if (source == null) return;
+
+            log.info("compacting partition {}", partitionDir);
+            // Blobs are not moved, so the staging partition only has blocks, keys and metadata
+            Files.createDirectories(stagingDir);
+            try (BlockedLongs blocks = source.blocks.emptyCopy(blocksFile(stagingDir), builder.getBlockedLongMetricsAdders());
+                 StagingPartition target = new StagingPartition(stagingDir, builder)) {
+                for (int virtualFileNumber = 0; virtualFileNumber < source.hashCount; virtualFileNumber++) {
+                    List<Map.Entry<LookupKey, Long>> entries = source.lookups[virtualFileNumber].scan()
+                            .sorted(Map.Entry.comparingByKey())
+                            .collect(Collectors.toList());
+                    for (Map.Entry<LookupKey, Long> entry : entries) {
+                        long blockPos = source.blocks.copyChain(entry.getValue(), blocks);
+                        target.lookups[virtualFileNumber].put(new LookupKey(entry.getKey().bytes()), blockPos);
+                    }
+                    keys += entries.size();
+                }
+            }
+
+            for (Path path : Arrays.asList(blocksFile(stagingDir), keysPath(stagingDir), metadataPath(stagingDir))) {
+                try (FileChannel chan = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    chan.force(true);
+                }
+            }
+            Files.move(stagingDir, compactedDir(partitionDir), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to compact partition " + partitionDir, e);
+        }
+
+        recoverCompaction(partitionDir);
+        log.info("compacted {} keys in partition {}", keys, partitionDir);
+    }
+
+    /**
+     * Rewrite the blob, key and metadata files of a closed partition so that the pages of each virtual file are
+     * contiguous. Positions do not change, so each file is swapped in on its own.
+     *
+     * @param parentDir the partitions directory
+     * @param partition the partition to defragment
+     * @param builder the builder used to open the store
+     */
+    static void defragmentPartition(Path parentDir, String partition, AppendOnlyStoreBuilder builder) {
+        validatePartition(partition);
+        Path partitionDir = parentDir.resolve(partition);
+        finishCompaction(partitionDir);
+
+        if (!(Files.exists(metadataPath(partitionDir)) && Files.exists(keysPath(partitionDir)) && Files.exists(blobsFile(partitionDir)))) return;
+
+        VirtualPageFile.defragment(
+                blobsFile(partitionDir),
+                builder.getLookupHashCount(),
+                builder.getBlobPageSize(),
+                builder.getTargetBufferSize()
+        );
+        VirtualPageFile.defragment(
+                metadataPath(partitionDir),
+                builder.getLookupHashCount(),
+                builder.getMetadataPageSize(),
+                adjustedTargetBufferSize(
+                        builder.getMetadataPageSize(),
+                        builder.getLookupHashCount(),
+                        builder.getTargetBufferSize()
+                )
+        );
+        VirtualPageFile.defragment(
+                keysPath(partitionDir),
+                builder.getLookupHashCount(),
+                builder.getLookupPageSize(),
+                adjustedTargetBufferSize(
+                        builder.getLookupPageSize(),
+                        builder.getLookupHashCount(),
+                        builder.getTargetBufferSize()
+                )
+        );
+    }
+
+    /**
+     * Complete a committed compaction by moving its files over the originals, or remove the files of one that did not
+     * commit. Fails if another store is compacting the partition.
+     */
+    private static void finishCompaction(Path partitionDir) {
+        if (!Files.exists(compactingDir(partitionDir)) && !Files.exists(compactedDir(partitionDir))) return;
+
+        withCompactionLock(partitionDir, () -> recoverCompaction(partitionDir));
+    }
+
+    // Run an action holding the compaction lock of the partition, which is only free when no compaction is running
+    private static void withCompactionLock(Path partitionDir, Runnable action) {
+        Path lockPath = compactionLockPath(partitionDir);
+        try (FileChannel lockChan = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FileLock lock;
+            try {
+                lock = lockChan.tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null) throw new IllegalStateException("Partition " + partitionDir + " is being compacted, lock busy: " + lockPath);
+            try {
+                action.run();
+            } finally {
+                lock.release();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to open compaction lock: " + lockPath, e);
+        }
+    }
+
+    private static void recoverCompaction(Path partitionDir) {
+        try {
+            Path stagingDir = compactingDir(partitionDir);
+            if (Files.exists(stagingDir)) {
+                log.warn("Removing an incomplete compaction of partition {}", partitionDir);
+                SafeDeleting.removeDirectory(stagingDir);
+            }
+
+            Path compactedDir = compactedDir(partitionDir);
+            if (Files.exists(compactedDir)) {
+                for (Path path : Arrays.asList(blocksFile(partitionDir), keysPath(partitionDir), metadataPath(partitionDir))) {
+                    Path compacted = compactedDir.resolve(path.getFileName());
+                    if (Files.exists(compacted)) {
+                        Files.move(compacted, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+                SafeDeleting.removeDirectory(compactedDir);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to finish compaction of partition " + partitionDir, e);
+        }
+    }
+
+    /**
+     * The keys and metadata written by a compaction, without the blob store of a partition
+     */
+    private static class StagingPartition extends Partition {
+        StagingPartition(Path stagingDir, AppendOnlyStoreBuilder builder) {
+            super(keysFile(stagingDir, false, builder), metadataFile(stagingDir, false, builder), false, builder);
+        }
     }
 
     private AppendStorePartition(
@@ -126,6 +311,7 @@ public class AppendStorePartition extends Partition implements Flushable, Closea
 
         this.blocks = blocks;
         this.blobFile = blobsFile;
+        this.blobAdvice = new AdaptiveAdvice(blobsFile, builder.getAdaptiveAdvice());
 
         blobs = IntStream.range(0, hashCount)
                 .mapToObj(virtualFileNumber -> new VirtualAppendOnlyBlobStore(
@@ -145,49 +331,117 @@ public class AppendStorePartition extends Partition implements Flushable, Closea
         log.trace("appending {} bytes (blob pos {}, block pos {}) for hash '{}', key '{}'", blob.length, blobPos, blockPos, hash, key);
     }
 
-    Stream<byte[]> read(String key) {
+    void appendAll(String key, Collection<byte[]> blobs) {
+        if (blobs.isEmpty()) return;
         LookupKey lookupKey = new LookupKey(key);
         final int hash = keyHash(lookupKey);
 
-        // Values stream can now be parallel, but it breaks everything...
-        LongStream longStream = blocks.values(lookups[hash].getValue(lookupKey));
-        return longStream.mapToObj(blobs[hash]::read);
-        //return blocks.lazyValues(lookups[hash].getValue(lookupKey)).parallel().mapToObj(blobs[hash]::read);
+        final long[] blobPositions = new long[blobs.size()];
+        int index = 0;
+        for (byte[] blob : blobs) {
+            blobPositions[index++] = this.blobs[hash].append(blob);
+        }
+        final long blockPos = lookups[hash].putIfNotExists(lookupKey, blocks::allocate);
+        blocks.appendAll(blockPos, blobPositions);
+        log.trace("appending {} blobs (block pos {}) for hash '{}', key '{}'", blobPositions.length, blockPos, hash, key);
+    }
+
+    long count(String key) {
+        LookupKey lookupKey = new LookupKey(key);
+        final int hash = keyHash(lookupKey);
+
+        final Long blockPos = lookups[hash].getValue(lookupKey);
+        return blockPos == null ? 0 : blocks.count(blockPos);
+    }
+
+    Stream<byte[]> read(String key) {
+        // The values spliterator splits on block boundaries
+        return readSequential(key).parallel();
     }
 
     Stream<byte[]> readSequential(String key) {
         LookupKey lookupKey = new LookupKey(key);
         final int hash = keyHash(lookupKey);
+        blobAdvice.pointRead(hash);
 
         return blocks.values(lookups[hash].getValue(lookupKey)).mapToObj(blobs[hash]::read);
     }
 
+    Stream<ByteBuffer> readBuffers(String key) {
+        LookupKey lookupKey = new LookupKey(key);
+        final int hash = keyHash(lookupKey);
+        blobAdvice.pointRead(hash);
+
+        return blocks.values(lookups[hash].getValue(lookupKey)).mapToObj(blobs[hash]::readBuffer);
+    }
+
     byte[] readLast(String key) {
         LookupKey lookupKey = new LookupKey(key);
         final int hash = keyHash(lookupKey);
+        blobAdvice.pointRead(hash);
 
         return blobs[hash].read(blocks.lastValue(lookups[hash].getValue(lookupKey)));
     }
 
+    Stream<byte[]> readRange(String key, long fromIndex, long toIndex) {
+        LookupKey lookupKey = new LookupKey(key);
+        final int hash = keyHash(lookupKey);
+        blobAdvice.pointRead(hash);
+
+        return blocks.valuesRange(lookups[hash].getValue(lookupKey), fromIndex, toIndex).mapToObj(blobs[hash]::read);
+    }
+
+    CursorRead<byte[]> readSince(String key, Cursor cursor) {
+        LookupKey lookupKey = new LookupKey(key);
+        final int hash = keyHash(lookupKey);
+        blobAdvice.pointRead(hash);
+
+        LongStream.Builder blobPositions = LongStream.builder();
+        Cursor next = blocks.valuesSince(lookups[hash].getValue(lookupKey), cursor, blobPositions);
+        return new CursorRead<>(blobPositions.build().mapToObj(blobs[hash]::read), next);
+    }
+
+    Stream<byte[]> readReverse(String key) {
+        LookupKey lookupKey = new LookupKey(key);
+        final int hash = keyHash(lookupKey);
+        blobAdvice.pointRead(hash);
+
+        return blocks.valuesReverse(lookups[hash].getValue(lookupKey)).mapToObj(blobs[hash]::read);
+    }
+
+    Stream<byte[]> readLast(String key, int n) {
+        LookupKey lookupKey = new LookupKey(key);
+        final int hash = keyHash(lookupKey);
+        blobAdvice.pointRead(hash);
+
+        return Arrays.stream(blocks.lastValues(lookups[hash].getValue(lookupKey), n)).mapToObj(blobs[hash]::read);
+    }
+
     Stream<Map.Entry<String, Stream<byte[]>>> scan() {
         return IntStream.range(0, hashCount)
                 .parallel()
                 .boxed()
-                .flatMap(virtualFileNumber ->
-                        lookups[virtualFileNumber].scan().map(entry -> Maps.immutableEntry(
-                                entry.getKey().string(),
-                                blocks.values(entry.getValue()).mapToObj(blobs[virtualFileNumber]::read)
-                        ))
-                );
+                .flatMap(virtualFileNumber -> {
+                    blobAdvice.beginScan(virtualFileNumber);
+                    return lookups[virtualFileNumber].scan().map(entry -> Maps.immutableEntry(
+                            entry.getKey().string(),
+                            blocks.values(entry.getValue()).mapToObj(blobs[virtualFileNumber]::read)
+                    )).onClose(() -> blobAdvice.endScan(virtualFileNumber));
+                });
     }
 
     void scan(BiConsumer<String, Stream<byte[]>> callback) {
         IntStream.range(0, hashCount)
                 .parallel()
                 .boxed()
-                .forEach(virtualFileNumber ->
-                        lookups[virtualFileNumber].scan().forEach(entry -> callback.accept(entry.getKey().string(), blocks.values(entry.getValue()).mapToObj(blobs[virtualFileNumber]::read))
-                        ));
+                .forEach(virtualFileNumber -> {
+                    blobAdvice.beginScan(virtualFileNumber);
+                    try {
+                        lookups[virtualFileNumber].scan().forEach(entry -> callback.accept(entry.getKey().string(), blocks.values(entry.getValue()).mapToObj(blobs[virtualFileNumber]::read)));
+                    } finally {
+                        blobAdvice.endScan(virtualFileNumber);
+                    }
+                });
     }
 
     Stream<String> keys() {
@@ -206,6 +460,20 @@ public class AppendStorePartition extends Partition implements Flushable, Closea
         SafeDeleting.removeDirectory(longKeyFile.getFilePath().getParent());
     }
 
+    @Override
+    public void trim() {
+        super.trim();
+        blocks.trim();
+    }
+
+    @Override
+    void force() {
+        // Force the blobs and blocks before the keys which point to them
+        blobFile.force();
+        blocks.force();
+        super.force();
+    }
+
     @Override
     public void close() throws IOException {
         super.close();
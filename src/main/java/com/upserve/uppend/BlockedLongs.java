@@ -1,20 +1,55 @@
 package com.upserve.uppend;
 
 import com.google.common.util.concurrent.Striped;
+import com.upserve.uppend.blobs.ExtentPreallocator;
 import com.upserve.uppend.blobs.NativeIO;
+import com.upserve.uppend.blobs.UnmapFence;
 import com.upserve.uppend.metrics.*;
+import com.upserve.uppend.util.Varint;
 import org.slf4j.Logger;
 
 import java.io.*;
-import java.lang.invoke.MethodHandles;
+import java.lang.invoke.*;
 import java.nio.*;
 import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
 import java.util.concurrent.locks.Lock;
+import java.util.function.LongConsumer;
 import java.util.stream.*;
 
+/**
+ * Lists of longs stored as linked chains of blocks in a single file. Each block has a header followed by its values:
+ * <p>
+ * size | -next
+ * prev | -last
+ * capacity (growing layout only)
+ * count (counted layout only, meaningful in the head block)
+ * bytes used | number of values (compressed layout only)
+ * last value (compressed layout only)
+ * <p>
+ * In the fixed layout every block holds valuesPerBlock values. In the growing layout each new block in a chain holds
+ * twice as many values as the one before it, up to maxValuesPerBlock, so a chain of n values needs O(log n) blocks
+ * while keys with only a few values still use a small block. The layout of a file is recorded in its header when the
+ * file is created and is used when the file is reopened.
+ * <p>
+ * In the counted layout the head block of each chain keeps a running total of the values appended to the chain, so
+ * {@link #count(long)} does not have to walk the chain.
+ * <p>
+ * In the compressed layout the values of a block are stored as varint encoded, zigzagged deltas from the previous value
+ * in the block, the first one from zero, instead of 8 byte slots. Blob positions grow within a key so most deltas take
+ * one to three bytes. Each block decodes on its own, and the last value of a block is kept in its header so an append
+ * does not have to decode the block. Compressed blocks are always appended under the striped locks.
+ * <p>
+ * Appends normally take one of a set of striped locks. With lock free appends a writer instead claims a slot by
+ * compare-and-swap on the size word of the last block and then writes its value; a writer which finds the last block
+ * full links a new block with a compare-and-swap on its size word. Blocks allocated for lock free appends are filled
+ * with {@link #UNSET} so that readers skip a slot which has been claimed but not yet written, and UNSET can not be
+ * appended to them. Blocks allocated under the locks are zero filled, and zero is a valid value, so the mode is part
+ * of the layout recorded in the header: a file is always appended in the mode it was created with.
+ */
 public class BlockedLongs implements AutoCloseable, Flushable {
     private static final Logger log = org.slf4j.LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
@@ -25,23 +60,53 @@ public class BlockedLongs implements AutoCloseable, Flushable {
     private static final int PAGE_SIZE = 128 * 1024 * 1024; // allocate 128 MB chunks
     private static final int MAX_PAGES = 32 * 1024; // max 4 TB
 
-    static final int HEADER_BYTES = NativeIO.pageSize; // Currently 16 used for file size and append count
+    static final int HEADER_BYTES = NativeIO.pageSize; // Currently 40 used for file size, append count and block layout
     private static final int posBufPosition = 0;
     private static final int appendBufPosition = 8;
+    private static final int layoutBufPosition = 16; // flags, values per block, max values per block (int), block count (long) - zero for plain fixed blocks
+    private static final int layoutBufSize = 24;
+
+    // Layout flags - files written before the layout was recorded in the header read as zero: fixed size blocks
+    static final int GROWING_BLOCKS = 1;
+    static final int COUNTED_VALUES = 2;
+    static final int COMPRESSED_VALUES = 4;
+    static final int LOCK_FREE_APPENDS = 8;
+    private static final int BLOCK_GROWTH_FACTOR = 2;
+
+    // Marks a slot which has been claimed by a lock free append but not yet written; readers skip it
+    static final long UNSET = Long.MIN_VALUE;
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
 
     private final Path file;
 
     private final int valuesPerBlock;
-    private final int blockSize;
+    private final int maxValuesPerBlock;
+    private final boolean growing;
+    private final boolean counted;
+    private final int countOffset;
+    private final boolean compressed;
+    private final int fillOffset;
+    private final int lastValueOffset;
+    private final int blockHeaderBytes;
+    private final boolean lockFreeAppends;
+    private final AppendGuard appendGuard; // null unless appends are lock free
+    private final ConcurrentMap<Integer, Queue<Long>> spareBlocks = new ConcurrentHashMap<>();
 
     private final FileChannel blocks;
     private final MappedByteBuffer[] pages;
+    private boolean pagesRetired; // guarded by pages
+    private final ExtentPreallocator preallocator;
+    private final boolean hugePages;
+    private final UnmapFence unmapFence;
 
     private final MappedByteBuffer posBuf;
     private final AtomicLong posMem;
 
     private final MappedByteBuffer appendCountBuf;
 
+    private final MappedByteBuffer layoutBuf;
+    private final AtomicLong blockCount;
+
     private final AtomicInteger currentPage;
     private final boolean readOnly;
 
@@ -54,6 +119,33 @@ public class BlockedLongs implements AutoCloseable, Flushable {
     }
 
     BlockedLongs(Path file, int valuesPerBlock, boolean readOnly, BlockedLongMetrics.Adders blockedLongMetricsAdders) {
+        this(file, valuesPerBlock, valuesPerBlock, readOnly, blockedLongMetricsAdders);
+    }
+
+    BlockedLongs(Path file, int valuesPerBlock, int maxValuesPerBlock, boolean readOnly) {
+        this(file, valuesPerBlock, maxValuesPerBlock, readOnly, new BlockedLongMetrics.Adders());
+    }
+
+    BlockedLongs(Path file, int valuesPerBlock, int maxValuesPerBlock, boolean readOnly, BlockedLongMetrics.Adders blockedLongMetricsAdders) {
+        this(file, new Options(valuesPerBlock).withMaxValuesPerBlock(maxValuesPerBlock), readOnly, blockedLongMetricsAdders);
+    }
+
+    /**
+     * Open or create a blocked longs file. The block layout is only taken from the options when the file is created,
+     * an existing file keeps the layout recorded in its header.
+     *
+     * @param file the path of the file
+     * @param options the block layout and file options
+     * @param readOnly open the file read only
+     * @param blockedLongMetricsAdders thread-safe timing and metrics container
+     */
+    BlockedLongs(Path file, Options options, boolean readOnly, BlockedLongMetrics.Adders blockedLongMetricsAdders) {
+        final int valuesPerBlock = options.getValuesPerBlock();
+        final int maxValuesPerBlock = options.getMaxValuesPerBlock();
+        final boolean countValues = options.getCountValues();
+        final boolean compressValues = options.getCompressValues();
+        final boolean lockFreeAppends = options.getLockFreeAppends();
+
         if (file == null) {
             throw new IllegalArgumentException("null file");
         }
@@ -69,6 +161,8 @@ public class BlockedLongs implements AutoCloseable, Flushable {
 
         this.file = file;
         this.readOnly = readOnly;
+        this.hugePages = options.getHugePages();
+        this.unmapFence = new UnmapFence(options.getEagerUnmapping());
         this.blockedLongMetricsAdders = blockedLongMetricsAdders;
 
         Path dir = file.getParent();
@@ -82,8 +176,17 @@ public class BlockedLongs implements AutoCloseable, Flushable {
             throw new IllegalArgumentException("bad (< 1) values per block: " + valuesPerBlock);
         }
 
-        this.valuesPerBlock = valuesPerBlock;
-        blockSize = 16 + valuesPerBlock * 8;
+        if (maxValuesPerBlock < valuesPerBlock) {
+            throw new IllegalArgumentException("bad max values per block: " + maxValuesPerBlock + " < values per block " + valuesPerBlock);
+        }
+
+        if (compressValues && valuesPerBlock < 2) {
+            throw new IllegalArgumentException("bad (< 2) values per block for compressed values: " + valuesPerBlock);
+        }
+
+        if (maxValuesPerBlock > (PAGE_SIZE - 48) / 8) {
+            throw new IllegalArgumentException("bad max values per block: " + maxValuesPerBlock + " blocks must fit in a page of " + PAGE_SIZE + " bytes");
+        }
 
         StandardOpenOption[] openOptions;
         if (readOnly) {
@@ -115,8 +218,9 @@ public class BlockedLongs implements AutoCloseable, Flushable {
             throw new UncheckedIOException("Unable to map pos buffer at in " + file, e);
         }
         long pos = posBuf.getLong(0);
+        final boolean newFile = pos == 0;
 
-        if (pos == 0) {
+        if (newFile) {
             // This is a new file
             try {
                 blocks.write(ByteBuffer.wrap(new byte[HEADER_BYTES]), 0L);
@@ -146,7 +250,73 @@ public class BlockedLongs implements AutoCloseable, Flushable {
         }
         initialAppendCount = appendCountBuf.getLong(0);
 
+        try {
+            layoutBuf = blocks.map(readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE, layoutBufPosition, layoutBufSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to map layout buffer in " + file, e);
+        }
+
+        // Only growing, counted, compressed or lock free layouts are recorded; plain fixed size blocks keep using the
+        // configured values per block as before
+        final int recordedFlags = layoutBuf.getInt(0);
+        if (newFile) {
+            this.valuesPerBlock = valuesPerBlock;
+            this.maxValuesPerBlock = maxValuesPerBlock;
+            growing = maxValuesPerBlock > valuesPerBlock;
+            counted = countValues;
+            compressed = compressValues;
+            this.lockFreeAppends = lockFreeAppends && !compressValues;
+            writeLayout();
+        } else if (recordedFlags != 0) {
+            this.valuesPerBlock = layoutBuf.getInt(4);
+            this.maxValuesPerBlock = layoutBuf.getInt(8);
+            growing = (recordedFlags & GROWING_BLOCKS) != 0;
+            counted = (recordedFlags & COUNTED_VALUES) != 0;
+            compressed = (recordedFlags & COMPRESSED_VALUES) != 0;
+            this.lockFreeAppends = (recordedFlags & LOCK_FREE_APPENDS) != 0;
+            // Only warn when a feature was asked for which the recorded layout does not have
+            if ((maxValuesPerBlock > valuesPerBlock && !growing) || (countValues && !counted) || (compressValues && !compressed) || (!readOnly && lockFreeAppends && !compressValues && !this.lockFreeAppends)) {
+                log.warn(
+                        "Using the recorded block layout for {}: {} to {} values per block, counted {}, compressed {}, lock free {} (requested {} to {}, counted {}, compressed {}, lock free {})",
+                        file, this.valuesPerBlock, this.maxValuesPerBlock, counted, compressed, this.lockFreeAppends, valuesPerBlock, maxValuesPerBlock, countValues, compressValues, lockFreeAppends
+                );
+            } else {
+                log.debug("Using the recorded block layout for {}: {} to {} values per block, counted {}, compressed {}, lock free {}",
+                        file, this.valuesPerBlock, this.maxValuesPerBlock, counted, compressed, this.lockFreeAppends);
+            }
+        } else {
+            if (maxValuesPerBlock > valuesPerBlock || countValues || compressValues || (!readOnly && lockFreeAppends)) {
+                log.warn("Growing, counted or compressed blocks and lock free appends are not available for existing file {} with fixed blocks of {} values", file, valuesPerBlock);
+            }
+            this.valuesPerBlock = valuesPerBlock;
+            this.maxValuesPerBlock = valuesPerBlock;
+            growing = false;
+            counted = false;
+            compressed = false;
+            this.lockFreeAppends = false;
+        }
+        appendGuard = this.lockFreeAppends ? new AppendGuard() : null;
+        countOffset = growing ? 24 : 16;
+        fillOffset = countOffset + (counted ? 8 : 0);
+        lastValueOffset = fillOffset + 8;
+        blockHeaderBytes = fillOffset + (compressed ? 16 : 0);
+
+        if (newFile && compressValues && lockFreeAppends) {
+            log.warn("Lock free appends are not available for compressed values in {}; appending under locks", file);
+        }
+        blockCount = new AtomicLong(layoutBuf.getLong(16));
+
         posMem = new AtomicLong(pos);
+
+        preallocator = new ExtentPreallocator(file, readOnly ? 0 : options.getPreallocationChunkSize(), pos);
+    }
+
+    private void writeLayout() {
+        final int flags = (growing ? GROWING_BLOCKS : 0) | (counted ? COUNTED_VALUES : 0) | (compressed ? COMPRESSED_VALUES : 0) | (lockFreeAppends ? LOCK_FREE_APPENDS : 0);
+        layoutBuf.putInt(0, flags);
+        layoutBuf.putInt(4, flags != 0 ? valuesPerBlock : 0);
+        layoutBuf.putInt(8, flags != 0 ? maxValuesPerBlock : 0);
+        layoutBuf.putLong(16, 0L);
     }
 
     /**
@@ -155,10 +325,23 @@ public class BlockedLongs implements AutoCloseable, Flushable {
      * @return the position of the new block
      */
     long allocate() {
+        return allocate(valuesPerBlock);
+    }
+
+    private long allocate(int capacity) {
+        final int blockSize = blockHeaderBytes + capacity * 8;
         log.trace("allocating block of {} bytes in {}", blockSize, file);
         blockedLongMetricsAdders.blockAllocationCounter.increment();
         long pos = posMem.getAndAdd(blockSize);
         posBuf.putLong(0, posMem.get());
+        preallocator.reserve(pos + blockSize);
+        if (growing) {
+            writeLong(pos + 16, capacity);
+            layoutBuf.putLong(16, blockCount.incrementAndGet());
+        }
+        if (lockFreeAppends) {
+            fillLongs(pos + blockHeaderBytes, capacity, UNSET);
+        }
         return pos;
     }
 
@@ -180,7 +363,13 @@ public class BlockedLongs implements AutoCloseable, Flushable {
      * @return long block count
      */
     public long getBlockCount() {
-        return (size() - HEADER_BYTES) / blockSize;
+        if (!growing) {
+            return (size() - HEADER_BYTES) / (blockHeaderBytes + valuesPerBlock * 8);
+        } else if (readOnly) {
+            return layoutBuf.getLong(16);
+        } else {
+            return blockCount.get();
+        }
     }
 
     /**
@@ -205,20 +394,41 @@ public class BlockedLongs implements AutoCloseable, Flushable {
         // size | -next
         // prev | -last
 
+        if (lockFreeAppends && val == UNSET) {
+            throw new IllegalArgumentException("Can not append the unset marker " + UNSET + " to lock free file " + file);
+        }
+
         blockedLongMetricsAdders.appendCounter.increment();
         appendCounter.increment();
         final long tic = System.nanoTime();
 
+        if (lockFreeAppends) {
+            final int token = appendGuard.enter();
+            try {
+                appendLockFree(pos, val);
+            } finally {
+                appendGuard.exit(token);
+                blockedLongMetricsAdders.appendTimer.add(System.nanoTime() - tic);
+            }
+            log.trace("appended value {} to {} at {}", val, file, pos);
+            return;
+        }
+
         Lock lock = stripedLocks.getAt((int) (pos % LOCK_SIZE));
         lock.lock();
         try {
+            if (compressed) {
+                appendCompressed(pos, val);
+                return;
+            }
+
             final long prev = readLong(pos + 8);
             if (prev > 0) {
                 throw new IllegalStateException("append called at non-starting block: pos=" + pos + " in path: " + file);
             }
             long last = prev == 0 ? pos : -prev;
             long size = readLong(last);
-            if (size < 0) {
+            while (size < 0) {
                 log.debug("Read repair for last block with a next: pos=" + pos + " in path: " + file);
                 // The the new position was set and this block is full, but is not updated yet
                 last = -size;
@@ -226,23 +436,27 @@ public class BlockedLongs implements AutoCloseable, Flushable {
                 writeLong(pos + 8, -last);
             }
 
-            if (size > valuesPerBlock) {
-                throw new IllegalStateException("too high num values: expected <= " + valuesPerBlock + ", got " + size + ": pos=" + pos + " in path: " + file);
+            final int capacity = capacity(last);
+            if (size > capacity) {
+                throw new IllegalStateException("too high num values: expected <= " + capacity + ", got " + size + ": pos=" + pos + " in path: " + file);
             }
-            if (size == valuesPerBlock) {
-                long newPos = allocate();
+            if (size == capacity) {
+                long newPos = allocate(nextCapacity(capacity));
                 // write new value in new block
                 writeLong(newPos, 1);
                 writeLong(newPos + 8, last);
-                writeLong(newPos + 16, val);
+                writeLong(newPos + blockHeaderBytes, val);
                 // link to last->next
                 writeLong(last, -newPos);
                 // link to first->last
                 writeLong(pos + 8, -newPos);
             } else {
-                writeLong(last + 16 + 8 * size, val);
+                writeLong(last + blockHeaderBytes + 8 * size, val);
                 writeLong(last, size + 1);
             }
+            if (counted) {
+                writeLong(pos + countOffset, readLong(pos + countOffset) + 1);
+            }
         } finally {
             lock.unlock();
             blockedLongMetricsAdders.appendTimer.add(System.nanoTime() - tic);
@@ -250,117 +464,542 @@ public class BlockedLongs implements AutoCloseable, Flushable {
         log.trace("appended value {} to {} at {}", val, file, pos);
     }
 
+    private void appendCompressed(final long pos, final long val) {
+        // Called holding the lock for pos
+        final long prev = readLong(pos + 8);
+        if (prev > 0) {
+            throw new IllegalStateException("append called at non-starting block: pos=" + pos + " in path: " + file);
+        }
+        long last = prev == 0 ? pos : -prev;
+        long size = readLong(last);
+        while (size < 0) {
+            log.debug("Read repair for last block with a next: pos=" + pos + " in path: " + file);
+            last = -size;
+            size = readLong(last);
+            writeLong(pos + 8, -last);
+        }
+
+        final long fill = readLong(last + fillOffset);
+        final int used = (int) (fill >>> 32);
+        final int numValues = (int) fill;
+        final int capacity = capacity(last);
+
+        final byte[] encoded = new byte[10];
+        final long previous = numValues == 0 ? 0 : readLong(last + lastValueOffset);
+        int length = Varint.write(encoded, 0, zigzag(val - previous));
+        if (used + length <= capacity * 8) {
+            writeBytes(last + blockHeaderBytes + used, encoded, length);
+            writeLong(last + lastValueOffset, val);
+            writeLong(last + fillOffset, ((long) (used + length) << 32) | (numValues + 1));
+            writeLong(last, numValues + 1);
+        } else {
+            final int newCapacity = nextCapacity(capacity);
+            long newPos = allocate(newCapacity);
+            length = Varint.write(encoded, 0, zigzag(val));
+            // write new value in new block
+            writeBytes(newPos + blockHeaderBytes, encoded, length);
+            writeLong(newPos + lastValueOffset, val);
+            writeLong(newPos + fillOffset, ((long) length << 32) | 1);
+            writeLong(newPos, 1);
+            writeLong(newPos + 8, last);
+            // link to last->next
+            writeLong(last, -newPos);
+            // link to first->last
+            writeLong(pos + 8, -newPos);
+        }
+        if (counted) {
+            writeLong(pos + countOffset, readLong(pos + countOffset) + 1);
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private void appendLockFree(final long pos, final long val) {
+        while (true) {
+            final long prev = readLongVolatile(pos + 8);
+            if (prev > 0) {
+                throw new IllegalStateException("append called at non-starting block: pos=" + pos + " in path: " + file);
+            }
+            final long last = prev == 0 ? pos : -prev;
+            final long size = readLongVolatile(last);
+            if (size < 0) {
+                log.debug("Read repair for last block with a next: pos=" + pos + " in path: " + file);
+                // Another writer linked a new block but has not updated first->last yet
+                compareAndSetLong(pos + 8, prev, size);
+                continue;
+            }
+
+            final int capacity = capacity(last);
+            if (size > capacity) {
+                throw new IllegalStateException("too high num values: expected <= " + capacity + ", got " + size + ": pos=" + pos + " in path: " + file);
+            }
+            if (size == capacity) {
+                final int newCapacity = nextCapacity(capacity);
+                final Long spare = spareBlocks(newCapacity).poll();
+                final long newPos = spare != null ? spare : allocate(newCapacity);
+                // write new value in new block before it is linked
+                writeLong(newPos, 1);
+                writeLong(newPos + 8, last);
+                writeLong(newPos + blockHeaderBytes, val);
+                // link to last->next
+                if (compareAndSetLong(last, capacity, -newPos)) {
+                    // link to first->last, unless another writer already repaired it
+                    compareAndSetLong(pos + 8, prev, -newPos);
+                    if (counted) addLong(pos + countOffset, 1);
+                    return;
+                }
+                // Another writer linked its block first; keep this one for the next block of the same size
+                spareBlocks(newCapacity).offer(newPos);
+            } else if (compareAndSetLong(last, size, size + 1)) {
+                writeLongRelease(last + blockHeaderBytes + 8 * size, val);
+                if (counted) addLong(pos + countOffset, 1);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Append several values at once. The tail block is filled and any new blocks are written whole while holding the
+     * lock once, rather than once per value.
+     *
+     * @param pos the position of the first block
+     * @param vals the values to append in order
+     */
+    public void appendAll(final long pos, final long[] vals) {
+        log.trace("appending {} values to {} at {}", vals.length, file, pos);
+        if (readOnly) throw new RuntimeException("Can not append a read only blocked longs file: " + file);
+        // size | -next
+        // prev | -last
+
+        if (lockFreeAppends) {
+            for (long val : vals) {
+                if (val == UNSET) {
+                    throw new IllegalArgumentException("Can not append the unset marker " + UNSET + " to lock free file " + file);
+                }
+            }
+        }
+        if (vals.length == 0) return;
+
+        blockedLongMetricsAdders.appendCounter.add(vals.length);
+        appendCounter.add(vals.length);
+        final long tic = System.nanoTime();
+
+        if (lockFreeAppends) {
+            final int token = appendGuard.enter();
+            try {
+                appendAllLockFree(pos, vals);
+            } finally {
+                appendGuard.exit(token);
+                blockedLongMetricsAdders.appendTimer.add(System.nanoTime() - tic);
+            }
+            log.trace("appended {} values to {} at {}", vals.length, file, pos);
+            return;
+        }
+
+        Lock lock = stripedLocks.getAt((int) (pos % LOCK_SIZE));
+        lock.lock();
+        try {
+            if (compressed) {
+                for (long val : vals) {
+                    appendCompressed(pos, val);
+                }
+                return;
+            }
+
+            final long prev = readLong(pos + 8);
+            if (prev > 0) {
+                throw new IllegalStateException("append called at non-starting block: pos=" + pos + " in path: " + file);
+            }
+            long last = prev == 0 ? pos : -prev;
+            long size = readLong(last);
+            while (size < 0) {
+                log.debug("Read repair for last block with a next: pos=" + pos + " in path: " + file);
+                last = -size;
+                size = readLong(last);
+                writeLong(pos + 8, -last);
+            }
+
+            int capacity = capacity(last);
+            if (size > capacity) {
+                throw new IllegalStateException("too high num values: expected <= " + capacity + ", got " + size + ": pos=" + pos + " in path: " + file);
+            }
+
+            // fill the tail block
+            int offset = (int) Math.min(capacity - size, vals.length);
+            if (offset > 0) {
+                writeLongs(last + blockHeaderBytes + 8 * size, vals, 0, offset);
+                writeLong(last, size + offset);
+            }
+
+            // then write whole new blocks
+            while (offset < vals.length) {
+                capacity = nextCapacity(capacity);
+                final int count = Math.min(capacity, vals.length - offset);
+                final long newPos = allocate(capacity);
+                writeLong(newPos, count);
+                writeLong(newPos + 8, last);
+                writeLongs(newPos + blockHeaderBytes, vals, offset, count);
+                // link to last->next
+                writeLong(last, -newPos);
+                // link to first->last
+                writeLong(pos + 8, -newPos);
+                last = newPos;
+                offset += count;
+            }
+            if (counted) {
+                writeLong(pos + countOffset, readLong(pos + countOffset) + vals.length);
+            }
+        } finally {
+            lock.unlock();
+            blockedLongMetricsAdders.appendTimer.add(System.nanoTime() - tic);
+        }
+        log.trace("appended {} values to {} at {}", vals.length, file, pos);
+    }
+
+    private void appendAllLockFree(final long pos, final long[] vals) {
+        int offset = 0;
+        while (offset < vals.length) {
+            final long prev = readLongVolatile(pos + 8);
+            if (prev > 0) {
+                throw new IllegalStateException("append called at non-starting block: pos=" + pos + " in path: " + file);
+            }
+            final long last = prev == 0 ? pos : -prev;
+            final long size = readLongVolatile(last);
+            if (size < 0) {
+                log.debug("Read repair for last block with a next: pos=" + pos + " in path: " + file);
+                compareAndSetLong(pos + 8, prev, size);
+                continue;
+            }
+
+            final int capacity = capacity(last);
+            if (size > capacity) {
+                throw new IllegalStateException("too high num values: expected <= " + capacity + ", got " + size + ": pos=" + pos + " in path: " + file);
+            }
+            if (size < capacity) {
+                // claim as many slots in the tail block as possible at once
+                final int count = (int) Math.min(capacity - size, vals.length - offset);
+                if (compareAndSetLong(last, size, size + count)) {
+                    for (int index = 0; index < count; index++) {
+                        writeLongRelease(last + blockHeaderBytes + 8 * (size + index), vals[offset + index]);
+                    }
+                    if (counted) addLong(pos + countOffset, count);
+                    offset += count;
+                }
+                continue;
+            }
+
+            // Write all the remaining values into a chain of new blocks which is linked with a single compare-and-swap
+            final List<Long> chain = new ArrayList<>();
+            int chainCapacity = capacity;
+            int chainOffset = offset;
+            long chainLast = last;
+            while (chainOffset < vals.length) {
+                chainCapacity = nextCapacity(chainCapacity);
+                final int count = Math.min(chainCapacity, vals.length - chainOffset);
+                final Long spare = spareBlocks(chainCapacity).poll();
+                final long newPos = spare != null ? spare : allocate(chainCapacity);
+                writeLong(newPos, count);
+                writeLong(newPos + 8, chainLast);
+                writeLongs(newPos + blockHeaderBytes, vals, chainOffset, count);
+                if (chainLast != last) writeLong(chainLast, -newPos);
+                chain.add(newPos);
+                chainLast = newPos;
+                chainOffset += count;
+            }
+            if (compareAndSetLong(last, capacity, -chain.get(0))) {
+                compareAndSetLong(pos + 8, prev, -chainLast);
+                if (counted) addLong(pos + countOffset, vals.length - offset);
+                return;
+            }
+            // Another writer linked its block first; keep these for later blocks of the same size
+            for (long block : chain) {
+                fillLongs(block + blockHeaderBytes, capacity(block), UNSET);
+                spareBlocks(capacity(block)).offer(block);
+            }
+        }
+    }
+
+    private Queue<Long> spareBlocks(int capacity) {
+        return spareBlocks.computeIfAbsent(capacity, key -> new ConcurrentLinkedQueue<>());
+    }
+
+    /**
+     * Stream the values appended at this position in the order they were appended. The stream is lazy: blocks are read
+     * as the stream is consumed, so it must be consumed before this file is closed; a stream consumed after close
+     * throws IllegalStateException. It is sequential, and a caller may make it parallel to split it on block boundaries.
+     *
+     * @param pos the position of the first block, or null for a missing key
+     * @return a stream of the values
+     */
     public LongStream values(Long pos) {
         log.trace("streaming values from {} at {}", file, pos);
-        final long tic = System.nanoTime();
         blockedLongMetricsAdders.readCounter.increment();
 
-        final LongStream result;
         if (pos == null) {
             // pos will be null for missing keys
-            result = LongStream.empty();
-        } else {
-            long[] longs = valuesArray(pos);
-            blockedLongMetricsAdders.longsReadCounter.add(longs.length);
-            result = Arrays.stream(longs);
+            return LongStream.empty();
         }
-        blockedLongMetricsAdders.readTimer.add(System.nanoTime() - tic);
-        return result;
+
+        if (pos < 0 || pos > size()) {
+            log.error("Bad position value {} in file {} of size {}", pos, file, size());
+            return LongStream.empty();
+        }
+
+        return StreamSupport.longStream(new ValuesSpliterator(pos, -1, 0), false);
     }
 
-    public long[] valuesArray(Long pos) {
-        /*
-        This method is deprecated. It will be replaced with a Spliterator that is block aware to allow parallel reads
-         */
+    /**
+     * Stream the values appended at this position with an index in [fromIndex, toIndex), in append order. Whole blocks
+     * before fromIndex are skipped by following their next pointers without reading their values, so with growing
+     * blocks a deep range only reads O(log n) block headers before it starts reading values. As for
+     * {@link #values(Long)}, slots claimed by a lock free append but not yet written are skipped and take no index; in
+     * the lock free layout the values of skipped blocks are read to count only the ones which have been written.
+     *
+     * @param pos the position of the first block, or null for a missing key
+     * @param fromIndex the index of the first value to return, inclusive
+     * @param toIndex the index after the last value to return, exclusive
+     * @return a stream of the values in the range
+     */
+    public LongStream valuesRange(Long pos, long fromIndex, long toIndex) {
+        log.trace("streaming values [{}, {}) from {} at {}", fromIndex, toIndex, file, pos);
+        if (fromIndex < 0 || toIndex < fromIndex) {
+            throw new IllegalArgumentException("bad range [" + fromIndex + ", " + toIndex + ")");
+        }
+        blockedLongMetricsAdders.readCounter.increment();
+
+        if (pos == null) {
+            // pos will be null for missing keys
+            return LongStream.empty();
+        }
 
         if (pos < 0 || pos > size()) {
             log.error("Bad position value {} in file {} of size {}", pos, file, size());
-            return new long[]{};
+            return LongStream.empty();
+        }
+
+        if (fromIndex == toIndex) {
+            return LongStream.empty();
         }
 
         // size | -next
         // prev | -last
-        final long size = readLong(pos);
+        long block = pos;
+        long blockStart = 0;
+        long size = readLong(block);
+        while (size < 0) {
+            final int numValues = setValues(block, size);
+            if (blockStart + numValues > fromIndex) break;
+            blockStart += numValues;
+            block = -size;
+            size = readLong(block);
+        }
+
+        return StreamSupport.longStream(new ValuesSpliterator(block, -1, 0), false)
+                .skip(fromIndex - blockStart)
+                .limit(toIndex - fromIndex);
+    }
+
+    /**
+     * Pass the values appended at this position since a cursor to a consumer, in append order. Reading starts at the
+     * block and offset held by the cursor, so a follower only reads the new values. A slot which has been claimed by a
+     * lock free append but not yet written ends the read, even when a later block has already been linked; it is read
+     * on the next call so that no value is skipped. A cursor holds block offsets in this file, so it is invalidated by
+     * compaction, which copies the chains to a new file.
+     *
+     * @param pos the position of the first block, or null for a missing key
+     * @param cursor the cursor returned by the previous read, or {@link Cursor#START}
+     * @param consumer called with each value
+     * @return the cursor after the last value passed to the consumer
+     */
+    public Cursor valuesSince(Long pos, Cursor cursor, LongConsumer consumer) {
+        log.trace("reading values from {} at {} since {}", file, pos, cursor);
+        blockedLongMetricsAdders.readCounter.increment();
+
+        if (pos == null) {
+            // pos will be null for missing keys
+            return cursor;
+        }
+
+        if (pos < 0 || pos > size()) {
+            log.error("Bad position value {} in file {} of size {}", pos, file, size());
+            return cursor;
+        }
+
+        long block = cursor.getBlock() == 0 ? pos : cursor.getBlock();
+        int offset = cursor.getOffset();
+        if (block < HEADER_BYTES || block >= size()) {
+            throw new IllegalArgumentException("bad cursor " + cursor + " for " + file + " of size " + size());
+        }
 
-        if (size < 0) {
-            long nextPos = -size;
-            long[] values = new long[valuesPerBlock];
-            for (int i = 0; i < valuesPerBlock; i++) {
-                values[i] = readLong(pos + 16 + i * 8);
+        final long tic = System.nanoTime();
+        long[] buffer = new long[0];
+        while (true) {
+            // size | -next
+            // prev | -last
+            final long size = readLong(block);
+            final int filled = blockValues(block, size);
+            if (offset > filled) {
+                throw new IllegalArgumentException("bad cursor " + cursor + " for block of " + filled + " values in " + file);
             }
 
-            long[] additionalValues = valuesArray(nextPos);
+            final int count = filled - offset;
+            if (buffer.length < count) buffer = new long[count];
+            readValues(block, offset, buffer, 0, count);
+            blockedLongMetricsAdders.longsReadCounter.add(count);
+            for (int index = 0; index < count; index++) {
+                if (lockFreeAppends && buffer[index] == UNSET) {
+                    // Not written yet, read it next time - the slot may be in a block which has since been linked
+                    blockedLongMetricsAdders.readTimer.add(System.nanoTime() - tic);
+                    return new Cursor(block, offset + index);
+                }
+                consumer.accept(buffer[index]);
+            }
 
-            if (additionalValues.length == 0){
-                return values;
-            } else {
-                long[] result = new long[valuesPerBlock + additionalValues.length];
-                System.arraycopy(values,0,result,0, valuesPerBlock);
-                System.arraycopy(additionalValues,0,result,valuesPerBlock, additionalValues.length);
-                return result;
-            }
-        } else if (size > valuesPerBlock) {
-            throw new IllegalStateException("too high num values: expected <= " + valuesPerBlock + ", got " + size);
-        } else if (size == 0) {
+            if (size >= 0) {
+                blockedLongMetricsAdders.readTimer.add(System.nanoTime() - tic);
+                return new Cursor(block, filled);
+            }
+            block = -size;
+            offset = 0;
+        }
+    }
+
+    /**
+     * Stream the values appended at this position, newest first. The stream is lazy: it starts at the last block of the
+     * chain and follows the prev pointers, so reading the latest n values only reads the blocks which hold them.
+     *
+     * @param pos the position of the first block, or null for a missing key
+     * @return a stream of the values in reverse append order
+     */
+    public LongStream valuesReverse(Long pos) {
+        log.trace("streaming values in reverse from {} at {}", file, pos);
+        blockedLongMetricsAdders.readCounter.increment();
+
+        if (pos == null) {
+            // pos will be null for missing keys
+            return LongStream.empty();
+        }
+
+        if (pos < 0 || pos > size()) {
+            log.error("Bad position value {} in file {} of size {}", pos, file, size());
+            return LongStream.empty();
+        }
+
+        return StreamSupport.longStream(new ReverseValuesSpliterator(pos), false);
+    }
+
+    /**
+     * Get the last values appended at this position
+     *
+     * @param pos the position of the first block, or null for a missing key
+     * @param n the maximum number of values to return
+     * @return up to n of the most recent values, in the order they were appended
+     */
+    public long[] lastValues(Long pos, int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("bad (< 0) number of values: " + n);
+        }
+        final long[] values = valuesReverse(pos).limit(n).toArray();
+        for (int left = 0, right = values.length - 1; left < right; left++, right--) {
+            final long value = values[left];
+            values[left] = values[right];
+            values[right] = value;
+        }
+        return values;
+    }
+
+    public long[] valuesArray(Long pos) {
+        if (pos < 0 || pos > size()) {
+            log.error("Bad position value {} in file {} of size {}", pos, file, size());
             return new long[]{};
-        } else {
-            int numValues = (int) size;
-            long[] values = new long[numValues];
-            for (int i = 0; i < numValues; i++) {
-                values[i] = readLong(pos + 16 + i * 8);
-            }
-            return values;
-        }
-    }
-
-//    public LongStream lazyValues(Long pos) {
-//        /*
-//        Lazy values is much slower in Performance tests with a large number of blocks.
-//        This method is retained for reference purposes only till the Spliterator is impelemnted.
-//         */
-//        log.trace("streaming values from {} at {}", file, pos);
-//
-//        valuesReadCounter.increment();
-//
-//        if (pos == null) {
-//            // pos will be null for missing keys
-//            return LongStream.empty();
-//        }
-//
-//        if (pos < 0 || pos > size()) {
-//            log.error("Bad position value {} in file {} of size {}", pos, file, size());
-//            return LongStream.empty();
-//        }
-//
-//        // size | -next
-//        // prev | -last
-//        final long size = readLong(pos);
-//
-//        if (size < 0) {
-//            long nextPos = -size;
-//            long[] values = new long[valuesPerBlock];
-//            for (int i = 0; i < valuesPerBlock; i++) {
-//                values[i] = readLong(pos + 16 + i * 8);
-//            }
-//            return LongStreams.lazyConcat(Arrays.stream(values), () -> values(nextPos));
-//        } else if (size > valuesPerBlock) {
-//            throw new IllegalStateException("too high num values: expected <= " + valuesPerBlock + ", got " + size);
-//        } else if (size == 0) {
-//            return LongStream.empty();
-//        } else {
-//
-//            int numValues = (int) size;
-//            long[] values = new long[numValues];
-//            for (int i = 0; i < numValues; i++) {
-//                values[i] = readLong(pos + 16 + i * 8);
-//            }
-//            if (log.isTraceEnabled()) {
-//                String valuesStr = Arrays.toString(values);
-//                log.trace("got values from {} at {}: {}", file, pos, valuesStr);
-//            }
-//            return Arrays.stream(values);
-//        }
-//    }
+        }
+
+        // Allocate the result once from the count, then copy each block into it
+        final long total = count(pos);
+        if (total > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("too many values for an array: " + total + ": pos=" + pos + " in path: " + file);
+        }
+        final long[] values = new long[(int) total];
+        int offset = 0;
+        long block = pos;
+        while (block != -1 && offset < values.length) {
+            // size | -next
+            // prev | -last
+            final long size = readLong(block);
+            final int count = Math.min(blockValues(block, size), values.length - offset);
+            readValues(block, 0, values, offset, count);
+            offset += count;
+            block = size < 0 ? -size : -1;
+        }
+
+        final int numValues = dropUnset(values, offset);
+        return numValues == values.length ? values : Arrays.copyOf(values, numValues);
+    }
+
+    /**
+     * Create an empty blocked longs file with the same block layout as this one, to copy chains into
+     *
+     * @param file the path of the new file
+     * @param blockedLongMetricsAdders thread-safe timing and metrics container for the new file
+     * @return the new blocked longs
+     */
+    BlockedLongs emptyCopy(Path file, BlockedLongMetrics.Adders blockedLongMetricsAdders) {
+        Options options = new Options(valuesPerBlock)
+                .withMaxValuesPerBlock(maxValuesPerBlock)
+                .withCountValues(counted)
+                .withCompressValues(compressed)
+                .withLockFreeAppends(lockFreeAppends);
+        return new BlockedLongs(file, options, false, blockedLongMetricsAdders);
+    }
+
+    /**
+     * Copy the values of a chain to a new chain in the target. Blocks are allocated at the end of the target, so when
+     * nothing else appends to it the blocks of the new chain are contiguous.
+     *
+     * @param pos the position of the first block of the chain to copy
+     * @param target the blocked longs to copy the chain into
+     * @return the position of the first block of the new chain
+     */
+    long copyChain(long pos, BlockedLongs target) {
+        final long newPos = target.allocate();
+        target.appendAll(newPos, valuesArray(pos));
+        return newPos;
+    }
+
+    /**
+     * Count the values appended at this position. In the counted layout this reads the total kept in the head block,
+     * otherwise it walks the headers of the blocks in the chain without reading their values. In the lock free layout
+     * the count includes slots which have been claimed but not yet written.
+     *
+     * @param pos the position of the first block
+     * @return the number of values
+     */
+    public long count(long pos) {
+        if (pos < 0 || pos > size()) {
+            log.error("Bad position value {} in file {} of size {}", pos, file, size());
+            return 0;
+        }
+
+        if (counted) {
+            return readLong(pos + countOffset);
+        }
+
+        long total = 0;
+        long block = pos;
+        long size = readLong(block);
+        while (size < 0) {
+            total += blockValues(block, size);
+            block = -size;
+            size = readLong(block);
+        }
+        return total + blockValues(block, size);
+    }
 
     public long lastValue(long pos) {
         log.trace("reading last value from {} at {}", file, pos);
@@ -388,15 +1027,12 @@ public class BlockedLongs implements AutoCloseable, Flushable {
                 }
                 return -1;
             }
-            if (size < 0) {
+            while (size < 0) {
                 log.debug("Read recovery for last block (at " + last + "): pos=" + pos);
                 last = -size;
                 size = readLong(last);
             }
-            if (size > valuesPerBlock) {
-                throw new IllegalStateException("too high num values: expected <= " + valuesPerBlock + ", got " + size + ": pos=" + pos);
-            }
-            value = readLong(last + 16 + 8 * (size - 1));
+            value = lastSetValue(last, blockValues(last, size));
         }
         log.trace("got value from {} at {}: {}", file, pos, value);
         blockedLongMetricsAdders.readLastTimer.add(System.nanoTime() - tic);
@@ -404,11 +1040,37 @@ public class BlockedLongs implements AutoCloseable, Flushable {
         return value;
     }
 
+    private long lastSetValue(long block, long size) {
+        if (compressed) {
+            return readLong(block + lastValueOffset);
+        }
+        // Skip slots claimed by lock free appends which have not been written yet, back through the chain if needed
+        while (true) {
+            for (long index = size - 1; index >= 0; index--) {
+                final long value = readLong(block + blockHeaderBytes + 8 * index);
+                if (!lockFreeAppends || value != UNSET) return value;
+            }
+            final long prev = readLong(block + 8);
+            if (prev <= 0) return -1;
+            block = prev;
+            size = capacity(block);
+        }
+    }
+
+    /**
+     * Truncate the file to an empty header. Appends under the striped locks and lock free appends in flight are
+     * finished first, and new appends wait until the file has been cleared. Positions allocated before the clear are
+     * invalid afterwards.
+     */
     public void clear() {
         log.debug("clearing {}", file);
         IntStream.range(0, LOCK_SIZE).forEach(index -> stripedLocks.getAt(index).lock());
+        if (appendGuard != null) appendGuard.block();
         try {
+            // Drop the pages before truncating the file under them
+            unmapFence.retire(retirePages());
             blocks.truncate(HEADER_BYTES);
+            preallocator.reset(HEADER_BYTES);
             try {
                 blocks.write(ByteBuffer.wrap(new byte[HEADER_BYTES]), 0L);
             } catch (IOException e) {
@@ -418,12 +1080,15 @@ public class BlockedLongs implements AutoCloseable, Flushable {
             posMem.set(HEADER_BYTES);
             appendCountBuf.putLong(0, 0L);
             initialAppendCount = 0L;
-            Arrays.fill(pages, null);
+            writeLayout();
+            blockCount.set(0L);
+            spareBlocks.clear();
             currentPage.set(0);
             ensurePage(0);
         } catch (IOException e) {
             throw new UncheckedIOException("unable to clear", e);
         } finally {
+            if (appendGuard != null) appendGuard.unblock();
             IntStream.range(0, LOCK_SIZE).forEach(index -> stripedLocks.getAt(index).unlock());
         }
     }
@@ -432,10 +1097,16 @@ public class BlockedLongs implements AutoCloseable, Flushable {
     public void close() throws IOException {
         log.debug("closing {}", file);
 
-        Arrays.fill(pages, null);
+        List<MappedByteBuffer> retired;
+        synchronized (pages) {
+            pagesRetired = true;
+            retired = retirePages();
+        }
 
         flush();
+        preallocator.close();
         blocks.close();
+        unmapFence.retire(retired);
     }
 
     @Override
@@ -447,26 +1118,275 @@ public class BlockedLongs implements AutoCloseable, Flushable {
         log.debug("flushed {}", file);
     }
 
+    /**
+     * Flush the append count and force the blocks and header to disk
+     */
+    public void force() {
+        if (readOnly) return;
+        flush();
+
+        final int token = unmapFence.enter();
+        try {
+            for (MappedByteBuffer page : pages) {
+                if (page != null) page.force();
+            }
+        } finally {
+            unmapFence.exit(token);
+        }
+        layoutBuf.force();
+        appendCountBuf.force();
+        posBuf.force();
+    }
+
+    /**
+     * Flush and drop the mapped pages, which are mapped again as they are used. With eager unmapping the pages are
+     * unmapped once in-flight reads and writes of them have finished, otherwise they are left to the garbage collector.
+     */
     public void trim() {
-        IntStream.range(0, LOCK_SIZE).forEach(index -> stripedLocks.getAt(index).lock());
+        if (!readOnly) IntStream.range(0, LOCK_SIZE).forEach(index -> stripedLocks.getAt(index).lock());
         try {
             flush();
-            Arrays.fill(pages, null);
+            List<MappedByteBuffer> retired = retirePages();
+            unmapFence.retire(retired);
             currentPage.set(0);
             ensurePage(0);
         } finally {
-            IntStream.range(0, LOCK_SIZE).forEach(index -> stripedLocks.getAt(index).unlock());
+            if (!readOnly) IntStream.range(0, LOCK_SIZE).forEach(index -> stripedLocks.getAt(index).unlock());
+        }
+    }
+
+    // Remove the mapped pages from the page array, returning them for the unmap fence
+    private List<MappedByteBuffer> retirePages() {
+        List<MappedByteBuffer> retired = new ArrayList<>();
+        synchronized (pages) {
+            for (int pageIndex = 0; pageIndex < MAX_PAGES; pageIndex++) {
+                if (pages[pageIndex] != null) {
+                    retired.add(pages[pageIndex]);
+                    pages[pageIndex] = null;
+                }
+            }
+        }
+        return retired;
+    }
+
+    /**
+     * The number of values in a block, checked against its capacity
+     *
+     * @param block the position of the block
+     * @param size the size word of the block: the number of values, or -next if the block is full
+     * @return the number of values
+     */
+    private int blockValues(long block, long size) {
+        if (compressed) {
+            return (int) readLong(block + fillOffset);
+        }
+        final int capacity = capacity(block);
+        if (size > capacity) {
+            throw new IllegalStateException("too high num values: expected <= " + capacity + ", got " + size + ": pos=" + block + " in path: " + file);
+        }
+        return size < 0 ? capacity : (int) size;
+    }
+
+    /**
+     * The number of values in a block which have been written, skipping slots claimed by a lock free append but not yet
+     * written. Only the lock free layout has to read the values to count them.
+     *
+     * @param block the position of the block
+     * @param size the size word of the block
+     * @return the number of values which are not {@link #UNSET}
+     */
+    private int setValues(long block, long size) {
+        final int count = blockValues(block, size);
+        if (!lockFreeAppends) return count;
+        final long[] values = new long[count];
+        readValues(block, 0, values, 0, count);
+        return dropUnset(values, count);
+    }
+
+    /**
+     * Read values [from, from + count) of a block
+     */
+    private void readValues(long block, int from, long[] dst, int offset, int count) {
+        if (!compressed) {
+            readLongs(block + blockHeaderBytes + 8L * from, dst, offset, count);
+            return;
+        }
+
+        final int used = (int) (readLong(block + fillOffset) >>> 32);
+        final byte[] bytes = new byte[used];
+        readBytes(block + blockHeaderBytes, bytes, used);
+
+        int bytePos = 0;
+        long value = 0;
+        for (int index = 0; index < from + count; index++) {
+            final long delta = Varint.readLong(bytes, bytePos);
+            bytePos += Varint.computeSize(delta);
+            value += unzigzag(delta);
+            if (index >= from) dst[offset + index - from] = value;
         }
     }
 
+    private int capacity(long block) {
+        return growing ? (int) readLong(block + 16) : valuesPerBlock;
+    }
+
+    private int nextCapacity(int capacity) {
+        return (int) Math.min((long) capacity * BLOCK_GROWTH_FACTOR, maxValuesPerBlock);
+    }
+
     private long readLong(long pos) {
         int pagePos = (int) ((pos - HEADER_BYTES) % (long) PAGE_SIZE);
-        return page(pos).getLong(pagePos);
+        final int token = unmapFence.enter();
+        try {
+            return page(pos).getLong(pagePos);
+        } finally {
+            unmapFence.exit(token);
+        }
+    }
+
+    private void readLongs(long pos, long[] dst, int count) {
+        readLongs(pos, dst, 0, count);
+    }
+
+    private void readLongs(long pos, long[] dst, int offset, int count) {
+        // A block may straddle two pages, so copy in runs that stay within a single page
+        final int end = offset + count;
+        while (offset < end) {
+            int pagePos = (int) ((pos - HEADER_BYTES) % (long) PAGE_SIZE);
+            int run = Math.min(end - offset, (PAGE_SIZE - pagePos) / 8);
+            final int token = unmapFence.enter();
+            try {
+                ByteBuffer buffer = page(pos).duplicate();
+                buffer.position(pagePos);
+                buffer.asLongBuffer().get(dst, offset, run);
+            } finally {
+                unmapFence.exit(token);
+            }
+            offset += run;
+            pos += 8L * run;
+        }
+    }
+
+    private void readBytes(long pos, byte[] dst, int count) {
+        // A block may straddle two pages, so copy in runs that stay within a single page
+        int offset = 0;
+        while (offset < count) {
+            int pagePos = (int) ((pos - HEADER_BYTES) % (long) PAGE_SIZE);
+            int run = Math.min(count - offset, PAGE_SIZE - pagePos);
+            final int token = unmapFence.enter();
+            try {
+                ByteBuffer buffer = page(pos).duplicate();
+                buffer.position(pagePos);
+                buffer.get(dst, offset, run);
+            } finally {
+                unmapFence.exit(token);
+            }
+            offset += run;
+            pos += run;
+        }
+    }
+
+    private void writeBytes(long pos, byte[] src, int count) {
+        int offset = 0;
+        while (offset < count) {
+            int pagePos = (int) ((pos - HEADER_BYTES) % (long) PAGE_SIZE);
+            int run = Math.min(count - offset, PAGE_SIZE - pagePos);
+            final int token = unmapFence.enter();
+            try {
+                ByteBuffer buffer = page(pos).duplicate();
+                buffer.position(pagePos);
+                buffer.put(src, offset, run);
+            } finally {
+                unmapFence.exit(token);
+            }
+            offset += run;
+            pos += run;
+        }
+    }
+
+    private void writeLongs(long pos, long[] src, int offset, int count) {
+        // A block may straddle two pages, so copy in runs that stay within a single page
+        final int end = offset + count;
+        while (offset < end) {
+            int pagePos = (int) ((pos - HEADER_BYTES) % (long) PAGE_SIZE);
+            int run = Math.min(end - offset, (PAGE_SIZE - pagePos) / 8);
+            final int token = unmapFence.enter();
+            try {
+                ByteBuffer buffer = page(pos).duplicate();
+                buffer.position(pagePos);
+                buffer.asLongBuffer().put(src, offset, run);
+            } finally {
+                unmapFence.exit(token);
+            }
+            offset += run;
+            pos += 8L * run;
+        }
+    }
+
+    private void fillLongs(long pos, int count, long val) {
+        for (int index = 0; index < count; index++) {
+            writeLong(pos + 8L * index, val);
+        }
+    }
+
+    // Only the lock free layout has unset slots, a locked file may hold any value
+    private int dropUnset(long[] values, int count) {
+        if (!lockFreeAppends) return count;
+        int kept = 0;
+        for (int index = 0; index < count; index++) {
+            if (values[index] != UNSET) values[kept++] = values[index];
+        }
+        return kept;
+    }
+
+    private long readLongVolatile(long pos) {
+        int pagePos = (int) ((pos - HEADER_BYTES) % (long) PAGE_SIZE);
+        final int token = unmapFence.enter();
+        try {
+            return (long) LONGS.getVolatile(page(pos), pagePos);
+        } finally {
+            unmapFence.exit(token);
+        }
+    }
+
+    private boolean compareAndSetLong(long pos, long expected, long val) {
+        int pagePos = (int) ((pos - HEADER_BYTES) % (long) PAGE_SIZE);
+        final int token = unmapFence.enter();
+        try {
+            return LONGS.compareAndSet(page(pos), pagePos, expected, val);
+        } finally {
+            unmapFence.exit(token);
+        }
+    }
+
+    private void addLong(long pos, long delta) {
+        int pagePos = (int) ((pos - HEADER_BYTES) % (long) PAGE_SIZE);
+        final int token = unmapFence.enter();
+        try {
+            LONGS.getAndAdd(page(pos), pagePos, delta);
+        } finally {
+            unmapFence.exit(token);
+        }
+    }
+
+    private void writeLongRelease(long pos, long val) {
+        int pagePos = (int) ((pos - HEADER_BYTES) % (long) PAGE_SIZE);
+        final int token = unmapFence.enter();
+        try {
+            LONGS.setRelease(page(pos), pagePos, val);
+        } finally {
+            unmapFence.exit(token);
+        }
     }
 
     protected void writeLong(long pos, long val) {
         int pagePos = (int) ((pos - HEADER_BYTES) % (long) PAGE_SIZE);
-        page(pos).putLong(pagePos, val);
+        final int token = unmapFence.enter();
+        try {
+            page(pos).putLong(pagePos, val);
+        } finally {
+            unmapFence.exit(token);
+        }
     }
 
     private MappedByteBuffer page(long pos) {
@@ -497,10 +1417,12 @@ public class BlockedLongs implements AutoCloseable, Flushable {
             synchronized (pages) {
                 page = pages[pageIndex];
                 if (page == null) {
+                    if (pagesRetired) throw new IllegalStateException("Unable to map page at page index " + pageIndex + ", file is closed: " + file);
                     long pageStart = (long) pageIndex * PAGE_SIZE + HEADER_BYTES;
                     try {
                         FileChannel.MapMode mapMode = readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
                         page = blocks.map(mapMode, pageStart, PAGE_SIZE);
+                        if (hugePages) NativeIO.adviseHugePages(page);
                         // Could experiment with advise_random to reduce memory use or advise_willneed to hold more in page cache?
                     } catch (IOException e) {
                         throw new UncheckedIOException("unable to map page at page index " + pageIndex + " (" + pageStart + " + " + PAGE_SIZE + ") in " + file, e);
@@ -511,4 +1433,373 @@ public class BlockedLongs implements AutoCloseable, Flushable {
         }
         return page;
     }
+
+    /**
+     * The block layout and file options of a blocked longs file, set with the same with methods as the store builders.
+     * The layout options only apply when a file is created.
+     */
+    static class Options {
+        private final int valuesPerBlock;
+        private int maxValuesPerBlock = 0; // Defaults to valuesPerBlock: fixed size blocks
+        private boolean countValues = false;
+        private boolean compressValues = false;
+        private boolean lockFreeAppends = false;
+        private int preallocationChunkSize = 0;
+        private boolean hugePages = false;
+        private boolean eagerUnmapping = false;
+
+        /**
+         * @param valuesPerBlock the number of values in the first block of each chain, or with compressed values the
+         *                       size of a block in 8 byte words
+         */
+        Options(int valuesPerBlock) {
+            this.valuesPerBlock = valuesPerBlock;
+        }
+
+        /**
+         * @param maxValuesPerBlock the largest number of values in a block; blocks grow up to this size when it is
+         *                          larger than valuesPerBlock
+         * @return these options
+         */
+        Options withMaxValuesPerBlock(int maxValuesPerBlock) {
+            this.maxValuesPerBlock = maxValuesPerBlock;
+            return this;
+        }
+
+        /**
+         * @param countValues keep a running count of the values in the head block of each chain
+         * @return these options
+         */
+        Options withCountValues(boolean countValues) {
+            this.countValues = countValues;
+            return this;
+        }
+
+        /**
+         * @param compressValues store the values of each block as varint encoded deltas
+         * @return these options
+         */
+        Options withCompressValues(boolean compressValues) {
+            this.compressValues = compressValues;
+            return this;
+        }
+
+        /**
+         * @param lockFreeAppends append with compare-and-swap on the mapped blocks instead of striped locks
+         * @return these options
+         */
+        Options withLockFreeAppends(boolean lockFreeAppends) {
+            this.lockFreeAppends = lockFreeAppends;
+            return this;
+        }
+
+        /**
+         * @param preallocationChunkSize the number of bytes to reserve with fallocate ahead of new blocks, zero for none
+         * @return these options
+         */
+        Options withPreallocationChunkSize(int preallocationChunkSize) {
+            this.preallocationChunkSize = preallocationChunkSize;
+            return this;
+        }
+
+        /**
+         * @param hugePages advise transparent huge pages for the mapped pages
+         * @return these options
+         */
+        Options withHugePages(boolean hugePages) {
+            this.hugePages = hugePages;
+            return this;
+        }
+
+        /**
+         * @param eagerUnmapping unmap the pages on trim and close instead of leaving them to the garbage collector
+         * @return these options
+         */
+        Options withEagerUnmapping(boolean eagerUnmapping) {
+            this.eagerUnmapping = eagerUnmapping;
+            return this;
+        }
+
+        int getValuesPerBlock() {
+            return valuesPerBlock;
+        }
+
+        int getMaxValuesPerBlock() {
+            return maxValuesPerBlock > 0 ? maxValuesPerBlock : valuesPerBlock;
+        }
+
+        boolean getCountValues() {
+            return countValues;
+        }
+
+        boolean getCompressValues() {
+            return compressValues;
+        }
+
+        boolean getLockFreeAppends() {
+            return lockFreeAppends;
+        }
+
+        int getPreallocationChunkSize() {
+            return preallocationChunkSize;
+        }
+
+        boolean getHugePages() {
+            return hugePages;
+        }
+
+        boolean getEagerUnmapping() {
+            return eagerUnmapping;
+        }
+
+        @Override
+        public String toString() {
+            return "Options{" +
+                    "valuesPerBlock=" + valuesPerBlock +
+                    ", maxValuesPerBlock=" + getMaxValuesPerBlock() +
+                    ", countValues=" + countValues +
+                    ", compressValues=" + compressValues +
+                    ", lockFreeAppends=" + lockFreeAppends +
+                    ", preallocationChunkSize=" + preallocationChunkSize +
+                    ", hugePages=" + hugePages +
+                    ", eagerUnmapping=" + eagerUnmapping +
+                    '}';
+        }
+    }
+
+    /**
+     * Counts the lock free appends in flight so that clear can wait for them, since they do not take the striped locks.
+     * Appends are counted in thread striped counters; an append which finds the guard blocked leaves and waits for
+     * clear to finish before entering again.
+     */
+    private static class AppendGuard {
+        private static final int STRIPES = 64;
+        private static final int PADDING = 16; // longs per stripe, keeps the counter of each stripe on its own cache lines
+
+        private final AtomicLongArray writers = new AtomicLongArray(STRIPES * PADDING);
+        private volatile boolean blocked;
+
+        int enter() {
+            final int index = (int) (Thread.currentThread().getId() % STRIPES) * PADDING;
+            while (true) {
+                writers.incrementAndGet(index);
+                // A block which started before the increment may not have seen it
+                if (!blocked) return index;
+                writers.decrementAndGet(index);
+                int spins = 0;
+                while (blocked) spin(++spins);
+            }
+        }
+
+        void exit(int token) {
+            writers.decrementAndGet(token);
+        }
+
+        // Only one thread may block at a time, clear holds the striped locks while it does
+        void block() {
+            blocked = true;
+            for (int stripe = 0; stripe < STRIPES; stripe++) {
+                int spins = 0;
+                while (writers.get(stripe * PADDING) > 0) spin(++spins);
+            }
+        }
+
+        void unblock() {
+            blocked = false;
+        }
+
+        private static void spin(int spins) {
+            if (spins < 1000) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * A lazy spliterator over the values in a chain of blocks. A block which links to a next block is full and will not
+     * change, so the chain can be split on block boundaries by walking the next pointers without reading the values.
+     * Only the last block in a chain may still be growing; it is always read by the unbounded spliterator which holds
+     * the end of the chain.
+     */
+    private class ValuesSpliterator implements Spliterator.OfLong {
+        private static final int MAX_SPLIT_BLOCKS = 1 << 10;
+
+        private long next; // position of the next block to read, -1 when the chain is exhausted
+        private long blocks; // number of blocks left to read, -1 if this spliterator runs to the end of the chain
+        private long values; // number of values in the blocks left to read when the number of blocks is known
+        private int batch = 1; // number of blocks to hand off when splitting an unbounded spliterator
+
+        private long[] buffer = new long[0];
+        private int index;
+        private int fence;
+
+        ValuesSpliterator(long start, long blocks, long values) {
+            this.next = start;
+            this.blocks = blocks;
+            this.values = values;
+        }
+
+        @Override
+        public boolean tryAdvance(LongConsumer action) {
+            while (index >= fence) {
+                if (!readBlock()) return false;
+            }
+            action.accept(buffer[index++]);
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(LongConsumer action) {
+            do {
+                while (index < fence) {
+                    action.accept(buffer[index++]);
+                }
+            } while (readBlock());
+        }
+
+        @Override
+        public Spliterator.OfLong trySplit() {
+            if (index < fence) {
+                // Hand off the rest of the current block - the buffer now belongs to the prefix
+                Spliterator.OfLong prefix = Spliterators.spliterator(buffer, index, fence, Spliterator.ORDERED | Spliterator.NONNULL);
+                buffer = new long[0];
+                index = fence = 0;
+                return prefix;
+            }
+
+            if (next == -1 || blocks == 0) return null;
+
+            // Walk the next pointers of full blocks only; the last block in the chain stays with this spliterator.
+            // A bounded spliterator hands off about half of its values, an unbounded one a growing batch of blocks.
+            final long start = next;
+            long pos = next;
+            long walked = 0;
+            long walkedValues = 0;
+            while (blocks > 0 ? walked < blocks - 1 && walkedValues < values / 2 : walked < batch) {
+                final long size = readLong(pos);
+                if (size >= 0) break;
+                walkedValues += blockValues(pos, size);
+                pos = -size;
+                walked++;
+            }
+            if (walked == 0) return null;
+
+            next = pos;
+            if (blocks > 0) {
+                blocks -= walked;
+                values -= walkedValues;
+            } else {
+                batch = Math.min(batch * 2, MAX_SPLIT_BLOCKS);
+            }
+            return new ValuesSpliterator(start, walked, walkedValues);
+        }
+
+        @Override
+        public long estimateSize() {
+            return blocks >= 0 ? values + (fence - index) : Long.MAX_VALUE;
+        }
+
+        @Override
+        public int characteristics() {
+            // Not SIZED: slots claimed by lock free appends but not yet written are skipped
+            return Spliterator.ORDERED | Spliterator.NONNULL;
+        }
+
+        private boolean readBlock() {
+            if (next == -1 || blocks == 0) return false;
+            final long tic = System.nanoTime();
+
+            // size | -next
+            // prev | -last
+            final long size = readLong(next);
+            final int count = blockValues(next, size);
+            final long following = size < 0 ? -size : -1;
+
+            if (buffer.length < count) buffer = new long[count];
+            readValues(next, 0, buffer, 0, count);
+            index = 0;
+            fence = dropUnset(buffer, count);
+
+            next = following;
+            if (blocks > 0) {
+                blocks--;
+                values -= count;
+            }
+
+            blockedLongMetricsAdders.longsReadCounter.add(count);
+            blockedLongMetricsAdders.readTimer.add(System.nanoTime() - tic);
+            return true;
+        }
+    }
+
+    /**
+     * A lazy spliterator over the values in a chain of blocks from the last value to the first. It finds the last
+     * block through the head block's last pointer, repairing forward if that pointer is behind, and then reads each
+     * block in turn following its prev pointer back to the head block.
+     */
+    private class ReverseValuesSpliterator extends Spliterators.AbstractLongSpliterator {
+        private final long head;
+        private long block; // position of the next block to read, -1 when the chain is exhausted
+
+        private long[] buffer = new long[0];
+        private int index; // the values in the buffer which have not been returned yet are below this index
+
+        ReverseValuesSpliterator(long head) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.head = head;
+
+            // size | -next
+            // prev | -last
+            final long prev = readLong(head + 8);
+            if (prev > 0) {
+                throw new IllegalStateException("reverse values called at non-starting block: pos=" + head + " in path: " + file);
+            }
+            long last = prev == 0 ? head : -prev;
+            long size = readLong(last);
+            while (size < 0) {
+                log.debug("Read recovery for last block (at " + last + "): pos=" + head);
+                last = -size;
+                size = readLong(last);
+            }
+            block = last;
+        }
+
+        @Override
+        public boolean tryAdvance(LongConsumer action) {
+            while (index == 0) {
+                if (!readBlock()) return false;
+            }
+            action.accept(buffer[--index]);
+            return true;
+        }
+
+        private boolean readBlock() {
+            if (block == -1) return false;
+            final long tic = System.nanoTime();
+
+            // Only the last block may be partly full; blocks before it were linked to a next block when they filled up
+            final long size = readLong(block);
+            final int count = blockValues(block, size);
+
+            if (buffer.length < count) buffer = new long[count];
+            readValues(block, 0, buffer, 0, count);
+            index = dropUnset(buffer, count);
+
+            if (block == head) {
+                block = -1;
+            } else {
+                final long prev = readLong(block + 8);
+                if (prev <= 0) {
+                    throw new IllegalStateException("bad prev pointer " + prev + " in block: pos=" + block + " in path: " + file);
+                }
+                block = prev;
+            }
+
+            blockedLongMetricsAdders.longsReadCounter.add(count);
+            blockedLongMetricsAdders.readTimer.add(System.nanoTime() - tic);
+            return true;
+        }
+    }
 }
@@ -1,5 +1,7 @@
 package com.upserve.uppend;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Keep counters for partitioned keys.
  */
@@ -47,6 +49,14 @@ public interface CounterStore extends ReadOnlyCounterStore, RegisteredFlushable
     @Override
     void flush();
 
+    /**
+     * Make the writes made before this call durable: flush them and force the files of the store to disk. When and
+     * on which thread the files are forced depends on the {@link DurabilityMode} of the store.
+     *
+     * @return a future completed when the writes are on disk, or completed exceptionally if forcing them failed
+     */
+    CompletableFuture<Void> sync();
+
     /**
      * Trim flushes any pending changes and then close cached resources to
      * reduce heap consumption
@@ -28,7 +28,8 @@ public class CounterStorePartition extends Partition {
                         builder.getLookupHashCount(),
                         builder.getTargetBufferSize()
                 ),
-                false
+                false,
+                builder.getPageFileOptions().withLockPages(true)
         );
         VirtualPageFile keys = new VirtualPageFile(
                 keysPath(partitionDir),
@@ -39,7 +40,8 @@ public class CounterStorePartition extends Partition {
                         builder.getLookupHashCount(),
                         builder.getTargetBufferSize()
                 ),
-                false
+                false,
+                builder.getPageFileOptions()
         );
 
         return new CounterStorePartition(keys, metadata, false, builder);
@@ -60,7 +62,8 @@ public class CounterStorePartition extends Partition {
                         builder.getLookupHashCount(),
                         builder.getTargetBufferSize()
                 ),
-                readOnly
+                readOnly,
+                builder.getPageFileOptions().withLockPages(true)
         );
         VirtualPageFile keys = new VirtualPageFile(
                 keysPath(partitiondDir),
@@ -71,7 +74,9 @@ public class CounterStorePartition extends Partition {
                         builder.getLookupHashCount(),
                         builder.getTargetBufferSize()
                 ),
-                readOnly);
+                readOnly,
+                builder.getPageFileOptions()
+        );
 
         return new CounterStorePartition(keys, metadata, readOnly, builder);
     }
@@ -0,0 +1,56 @@
+package com.upserve.uppend;
+
+import java.util.Objects;
+
+/**
+ * Position in the values of a key after the last value read, used to read only the values appended since. A cursor
+ * is the position of a block in the key's chain and the number of values already read from that block. It is only
+ * meaningful for the partition and key it was returned for, and only until the partition is compacted, which moves
+ * the blocks.
+ */
+public final class Cursor {
+    /**
+     * The cursor before the first value of any key
+     */
+    public static final Cursor START = new Cursor(0, 0);
+
+    private final long block;
+    private final int offset;
+
+    public Cursor(long block, int offset) {
+        if (block < 0 || offset < 0) {
+            throw new IllegalArgumentException("bad cursor: block=" + block + ", offset=" + offset);
+        }
+        this.block = block;
+        this.offset = offset;
+    }
+
+    public long getBlock() {
+        return block;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Cursor cursor = (Cursor) o;
+        return block == cursor.block && offset == cursor.offset;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(block, offset);
+    }
+
+    @Override
+    public String toString() {
+        return "Cursor{" +
+                "block=" + block +
+                ", offset=" + offset +
+                '}';
+    }
+}
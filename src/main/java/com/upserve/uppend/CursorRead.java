@@ -0,0 +1,37 @@
+package com.upserve.uppend;
+
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * The values appended under a key since a cursor, and the cursor to use for the next read
+ *
+ * @param <T> the type of the values
+ */
+public final class CursorRead<T> {
+    private final Stream<T> values;
+    private final Cursor cursor;
+
+    public CursorRead(Stream<T> values, Cursor cursor) {
+        this.values = values;
+        this.cursor = cursor;
+    }
+
+    /**
+     * @return a stream of the values appended since the cursor that was read from, in storage order
+     */
+    public Stream<T> getValues() {
+        return values;
+    }
+
+    /**
+     * @return the cursor after the last of these values
+     */
+    public Cursor getCursor() {
+        return cursor;
+    }
+
+    public <R> CursorRead<R> map(Function<T, R> mapper) {
+        return new CursorRead<>(values.map(mapper), cursor);
+    }
+}
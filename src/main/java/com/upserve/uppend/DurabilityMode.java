@@ -0,0 +1,25 @@
+package com.upserve.uppend;
+
+/**
+ * When a writable store forces its memory mapped files to disk. Until the files are forced a write is only in the page
+ * cache: it survives the process crashing but not the machine.
+ */
+public enum DurabilityMode {
+    /**
+     * Nothing is forced in the background, the kernel writes dirty pages back when it chooses. Each sync of the store
+     * flushes and forces all its partitions on the calling thread.
+     */
+    NONE,
+
+    /**
+     * All partitions are flushed and forced on a dedicated thread at a fixed interval. A sync completes with the next
+     * periodic force.
+     */
+    PERIODIC,
+
+    /**
+     * All partitions are flushed and forced on a dedicated thread as soon as a sync is requested. Syncs requested
+     * while a force is running are committed together by the next one, so concurrent writers share the cost.
+     */
+    GROUP_COMMIT
+}
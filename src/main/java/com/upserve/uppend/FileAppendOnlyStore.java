@@ -5,7 +5,10 @@ import com.upserve.uppend.metrics.*;
 import com.upserve.uppend.metrics.LookupDataMetrics;
 import org.slf4j.Logger;
 
+import java.io.*;
 import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
 import java.util.*;
 import java.util.function.*;
 import java.util.stream.Stream;
@@ -15,6 +18,8 @@ public class FileAppendOnlyStore extends FileStore<AppendStorePartition> impleme
 
     private final Function<String, AppendStorePartition> openPartitionFunction;
     private final Function<String, AppendStorePartition> createPartitionFunction;
+    private final Consumer<String> compactPartitionFunction;
+    private final Consumer<String> defragmentPartitionFunction;
 
     final BlobStoreMetrics.Adders blobStoreMetricsAdders;
     final BlockedLongMetrics.Adders blockedLongMetricsAdders;
@@ -26,6 +31,10 @@ public class FileAppendOnlyStore extends FileStore<AppendStorePartition> impleme
 
         createPartitionFunction = partitionKey -> AppendStorePartition.createPartition(partitionsDir, partitionKey, builder);
 
+        compactPartitionFunction = partitionKey -> AppendStorePartition.compactPartition(partitionsDir, partitionKey, builder);
+
+        defragmentPartitionFunction = partitionKey -> AppendStorePartition.defragmentPartition(partitionsDir, partitionKey, builder);
+
         blobStoreMetricsAdders = builder.getBlobStoreMetricsAdders();
         blockedLongMetricsAdders = builder.getBlockedLongMetricsAdders();
     }
@@ -49,6 +58,13 @@ public class FileAppendOnlyStore extends FileStore<AppendStorePartition> impleme
         getOrCreate(partitionEntropy).append(key, value);
     }
 
+    @Override
+    public void appendAll(String partitionEntropy, String key, Collection<byte[]> values) {
+        log.trace("appending {} values for partition '{}', key '{}'", values.size(), partitionEntropy, key);
+        if (readOnly) throw new RuntimeException("Can not append to store opened in read only mode:" + dir);
+        getOrCreate(partitionEntropy).appendAll(key, values);
+    }
+
     @Override
     public Stream<byte[]> read(String partitionEntropy, String key) {
         log.trace("reading in partition {} with key {}", partitionEntropy, key);
@@ -66,6 +82,14 @@ public class FileAppendOnlyStore extends FileStore<AppendStorePartition> impleme
                 .orElse(Stream.empty());
     }
 
+    @Override
+    public Stream<ByteBuffer> readBuffers(String partitionEntropy, String key) {
+        log.trace("reading buffers in partition {} with key {}", partitionEntropy, key);
+        return getIfPresent(partitionEntropy)
+                .map(partitionObject -> partitionObject.readBuffers(key))
+                .orElse(Stream.empty());
+    }
+
     public byte[] readLast(String partitionEntropy, String key) {
         log.trace("reading last in partition {} with key {}", partitionEntropy, key);
         return getIfPresent(partitionEntropy)
@@ -73,6 +97,49 @@ public class FileAppendOnlyStore extends FileStore<AppendStorePartition> impleme
                 .orElse(null);
     }
 
+    @Override
+    public Stream<byte[]> readRange(String partitionEntropy, String key, long fromIndex, long toIndex) {
+        log.trace("reading range [{}, {}) in partition {} with key {}", fromIndex, toIndex, partitionEntropy, key);
+        if (fromIndex < 0 || toIndex < fromIndex) {
+            throw new IllegalArgumentException("bad range [" + fromIndex + ", " + toIndex + ")");
+        }
+        return getIfPresent(partitionEntropy)
+                .map(partitionObject -> partitionObject.readRange(key, fromIndex, toIndex))
+                .orElse(Stream.empty());
+    }
+
+    @Override
+    public CursorRead<byte[]> readSince(String partitionEntropy, String key, Cursor cursor) {
+        log.trace("reading since {} in partition {} with key {}", cursor, partitionEntropy, key);
+        return getIfPresent(partitionEntropy)
+                .map(partitionObject -> partitionObject.readSince(key, cursor))
+                .orElse(new CursorRead<>(Stream.empty(), cursor));
+    }
+
+    @Override
+    public Stream<byte[]> readLast(String partitionEntropy, String key, int n) {
+        log.trace("reading last {} in partition {} with key {}", n, partitionEntropy, key);
+        return getIfPresent(partitionEntropy)
+                .map(partitionObject -> partitionObject.readLast(key, n))
+                .orElse(Stream.empty());
+    }
+
+    @Override
+    public Stream<byte[]> readReverse(String partitionEntropy, String key) {
+        log.trace("reading reverse in partition {} with key {}", partitionEntropy, key);
+        return getIfPresent(partitionEntropy)
+                .map(partitionObject -> partitionObject.readReverse(key))
+                .orElse(Stream.empty());
+    }
+
+    @Override
+    public long count(String partitionEntropy, String key) {
+        log.trace("counting in partition {} with key {}", partitionEntropy, key);
+        return getIfPresent(partitionEntropy)
+                .map(partitionObject -> partitionObject.count(key))
+                .orElse(0L);
+    }
+
     @Override
     public Stream<String> keys() {
         log.trace("getting keys for {}", getName());
@@ -92,6 +159,34 @@ public class FileAppendOnlyStore extends FileStore<AppendStorePartition> impleme
                 .forEach(partitionObject -> partitionObject.scan(callback));
     }
 
+    @Override
+    public void compact() {
+        log.debug("compacting {}", getName());
+        if (readOnly) throw new RuntimeException("Can not compact a store opened in read only mode:" + dir);
+        forEachClosedPartition(compactPartitionFunction);
+    }
+
+    @Override
+    public void defragment() {
+        log.debug("defragmenting {}", getName());
+        if (readOnly) throw new RuntimeException("Can not defragment a store opened in read only mode:" + dir);
+        forEachClosedPartition(defragmentPartitionFunction);
+    }
+
+    private void forEachClosedPartition(Consumer<String> partitionFunction) {
+        closePartitions();
+
+        try (Stream<Path> stream = Files.list(partitionsDir)) {
+            stream
+                    .map(path -> path.toFile().getName())
+                    .forEach(partitionFunction);
+        } catch (NoSuchFileException e) {
+            log.debug("Partitions directory does not exist: {}", partitionsDir);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to list partitions in " + partitionsDir, e);
+        }
+    }
+
     @Override
     Function<String, AppendStorePartition> getOpenPartitionFunction() {
         return openPartitionFunction;
@@ -43,6 +43,8 @@ abstract class FileStore<T extends Partition> implements AutoCloseable, Register
 
     final AtomicBoolean isClosed;
 
+    private final GroupCommitter groupCommitter;
+
     private static final int PARTITION_HASH_SEED = 626433832;
     private final HashFunction hashFunction = Hashing.murmur3_32(PARTITION_HASH_SEED);
 
@@ -107,6 +109,8 @@ abstract class FileStore<T extends Partition> implements AutoCloseable, Register
         this.lookupDataMetricsAdders = builder.getLookupDataMetricsAdders();
         this.longBlobStoreMetricsAdders = builder.getLongBlobStoreMetricsAdders();
         this.mutableBlobStoreMetricsAdders = builder.getMutableBlobStoreMetricsAdders();
+
+        groupCommitter = readOnly ? null : new GroupCommitter(name, builder.getDurabilityMode(), builder.getDurabilityIntervalMillis(), this::force);
     }
 
     String partitionHash(String partition) {
@@ -178,6 +182,34 @@ abstract class FileStore<T extends Partition> implements AutoCloseable, Register
         log.debug("Flushed!");
     }
 
+    /**
+     * Make the writes made before this call durable, according to the durability mode of the store
+     *
+     * @return a future completed when the writes are on disk
+     */
+    public CompletableFuture<Void> sync() {
+        if (readOnly) throw new RuntimeException("Can not sync a store opened in read only mode:" + dir);
+        return groupCommitter.request();
+    }
+
+    private void force() {
+        // Flush the lookups so new keys are written to the key and metadata files, then force all files to disk
+        flush();
+
+        ForkJoinTask task = AutoFlusher.flusherWorkPool.submit(() ->
+                partitionMap.values().parallelStream().forEach(T::force)
+        );
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Force interrupted", e);
+
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Partition map force failed with", e);
+        }
+    }
+
     @Override
     public void trim(){
         log.debug("Trimming!");
@@ -228,6 +260,7 @@ abstract class FileStore<T extends Partition> implements AutoCloseable, Register
         }
 
         if (!readOnly && flushDelaySeconds > 0) AutoFlusher.deregister(this);
+        if (groupCommitter != null) groupCommitter.close();
 
         closePartitions();
 
@@ -243,7 +276,7 @@ abstract class FileStore<T extends Partition> implements AutoCloseable, Register
         }
     }
 
-    private void closePartitions(){
+    void closePartitions(){
         ForkJoinTask task = AutoFlusher.flusherWorkPool.submit(() ->
                 partitionMap.values().parallelStream().forEach(partition -> {
                     try {
@@ -1,7 +1,8 @@
 package com.upserve.uppend;
 
 import com.codahale.metrics.MetricRegistry;
-import com.upserve.uppend.blobs.NativeIO;
+import com.upserve.uppend.blobs.*;
+import com.upserve.uppend.lookup.LookupData;
 import com.upserve.uppend.metrics.*;
 
 import java.nio.file.Path;
@@ -17,6 +18,9 @@ public class FileStoreBuilder<T extends FileStoreBuilder<T>> {
 
     public static final int DEFAULT_METADATA_PAGE_SIZE = NativeIO.pageSize;
     public static final int DEFAULT_METADATA_TTL = 0; // Off by default!
+    public static final boolean DEFAULT_LOOKUP_HASH_INDEX = false;
+    public static final boolean DEFAULT_LOOKUP_BLOOM_FILTER = false;
+    public static final boolean DEFAULT_LOOKUP_KEY_PREFIXES = false;
 
     private String storeName = "";
     private int partitionCount = DEFAULT_PARTITION_COUNT;
@@ -26,9 +30,26 @@ public class FileStoreBuilder<T extends FileStoreBuilder<T>> {
 
     private int metadataTTL = DEFAULT_METADATA_TTL;
     private int metadataPageSize = DEFAULT_METADATA_PAGE_SIZE;
+    private boolean lookupHashIndex = DEFAULT_LOOKUP_HASH_INDEX;
+    private boolean lookupBloomFilter = DEFAULT_LOOKUP_BLOOM_FILTER;
+    private boolean lookupKeyPrefixes = DEFAULT_LOOKUP_KEY_PREFIXES;
 
     private int targetBufferSize = TARGET_PRODUCTION_BUFFER_SIZE;
 
+    public static final PageBackend DEFAULT_PAGE_BACKEND = PageBackend.MAPPED;
+    private PageBackend pageBackend = DEFAULT_PAGE_BACKEND;
+
+    public static final int DEFAULT_PREALLOCATION_CHUNK_SIZE = 0; // Off by default!
+    private int preallocationChunkSize = DEFAULT_PREALLOCATION_CHUNK_SIZE;
+
+    public static final boolean DEFAULT_HUGE_PAGES = false;
+    private boolean hugePages = DEFAULT_HUGE_PAGES;
+
+    private MemoryLockBudget memoryLockBudget = new MemoryLockBudget(0); // Off by default!
+
+    public static final boolean DEFAULT_EAGER_UNMAPPING = false;
+    private boolean eagerUnmapping = DEFAULT_EAGER_UNMAPPING;
+
     private String writeLockContentString = null;
 
     // Store Options
@@ -36,6 +57,10 @@ public class FileStoreBuilder<T extends FileStoreBuilder<T>> {
     public static final int DEFAULT_FLUSH_THRESHOLD = 1000;
     private int flushDelaySeconds = DEFAULT_FLUSH_DELAY_SECONDS;
     private int flushThreshold = DEFAULT_FLUSH_THRESHOLD;
+    public static final DurabilityMode DEFAULT_DURABILITY_MODE = DurabilityMode.NONE;
+    public static final int DEFAULT_DURABILITY_INTERVAL_MILLIS = 1000;
+    private DurabilityMode durabilityMode = DEFAULT_DURABILITY_MODE;
+    private int durabilityIntervalMillis = DEFAULT_DURABILITY_INTERVAL_MILLIS;
     private Path dir = null;
     private MetricRegistry storeMetricsRegistry = null;
     private String metricsRootName = "";
@@ -89,12 +114,140 @@ public class FileStoreBuilder<T extends FileStoreBuilder<T>> {
         return (T) this;
     }
 
+    /**
+     * Maintain a hash index of the keys alongside the sorted lookup metadata, so that finding a key takes one or two
+     * probes and a single key read instead of a bisect. The index is stored with the metadata, using about 16 bytes
+     * per key, and is built on the next flush of each lookup. Readers use it whenever it is present.
+     *
+     * @param lookupHashIndex maintain the hash index when flushing lookups
+     * @return the builder
+     */
+    @SuppressWarnings("unchecked")
+    public T withLookupHashIndex(boolean lookupHashIndex) {
+        this.lookupHashIndex = lookupHashIndex;
+        return (T) this;
+    }
+
+    /**
+     * Maintain a bloom filter of the keys alongside the sorted lookup metadata, so that looking up a missing key, as
+     * every new key written does, usually skips the bisect. The filter is stored with the metadata, using about 10 bits
+     * per key, and is built on the next flush of each lookup. Readers use it whenever it is present. It is not used
+     * for lookups which have a hash index, which rules out missing keys itself.
+     *
+     * @param lookupBloomFilter maintain the bloom filter when flushing lookups
+     * @return the builder
+     */
+    @SuppressWarnings("unchecked")
+    public T withLookupBloomFilter(boolean lookupBloomFilter) {
+        this.lookupBloomFilter = lookupBloomFilter;
+        return (T) this;
+    }
+
+    /**
+     * Store the first 8 bytes of each key in the sorted lookup metadata, so that the bisect compares prefixes in memory
+     * and only reads a key from the key file when its prefix ties. This adds 8 bytes per key to the metadata and pays
+     * off when keys differ within their first 8 bytes. The prefixes are built on the next flush of each lookup. Readers
+     * use them whenever they are present.
+     *
+     * @param lookupKeyPrefixes maintain the key prefixes when flushing lookups
+     * @return the builder
+     */
+    @SuppressWarnings("unchecked")
+    public T withLookupKeyPrefixes(boolean lookupKeyPrefixes) {
+        this.lookupKeyPrefixes = lookupKeyPrefixes;
+        return (T) this;
+    }
+
     @SuppressWarnings("unchecked")
     public T withTargetBufferSize(int targetBufferSize) {
         this.targetBufferSize = targetBufferSize;
         return (T) this;
     }
 
+    /**
+     * Choose how the pages of the blob, key and metadata files are read and written
+     *
+     * @param pageBackend memory mapped buffers or positional file channel reads and writes
+     * @return the builder
+     */
+    @SuppressWarnings("unchecked")
+    public T withPageBackend(PageBackend pageBackend) {
+        if (pageBackend == null) {
+            throw new IllegalArgumentException("null page backend");
+        }
+        this.pageBackend = pageBackend;
+        return (T) this;
+    }
+
+    /**
+     * Reserve disk blocks with fallocate in chunks of this size ahead of the pages and blocks being allocated in the
+     * files of writable partitions, so the files are not sparse or fragmented and appends do not stall on block
+     * allocation in the file system. Only available on Linux file systems which support fallocate.
+     *
+     * @param preallocationChunkSize the chunk size in bytes, a multiple of the system page size, or zero for none
+     * @return the builder
+     */
+    @SuppressWarnings("unchecked")
+    public T withPreallocationChunkSize(int preallocationChunkSize) {
+        if (preallocationChunkSize < 0 || preallocationChunkSize % NativeIO.pageSize != 0) {
+            throw new IllegalArgumentException(
+                    String.format(
+                            "Illegal preallocationChunkSize %d; Must be a non-negative multiple of the host system page size: %d",
+                            preallocationChunkSize, NativeIO.pageSize
+                    )
+            );
+        }
+        this.preallocationChunkSize = preallocationChunkSize;
+        return (T) this;
+    }
+
+    /**
+     * Advise transparent huge pages (madvise MADV_HUGEPAGE) for the large mapped buffers of the blob, key and metadata
+     * files and the blocked longs pages, to cut TLB misses on random point reads. Whether file backed mappings get huge
+     * pages depends on the kernel and the file system; when the kernel rejects the advice the files are mapped with
+     * normal pages.
+     *
+     * @param hugePages advise transparent huge pages
+     * @return the builder
+     */
+    @SuppressWarnings("unchecked")
+    public T withHugePages(boolean hugePages) {
+        this.hugePages = hugePages;
+        return (T) this;
+    }
+
+    /**
+     * Lock the headers and page tables of the blob, key and metadata files, and the pages of the metadata files, in
+     * memory with mlock, up to a total number of bytes for the store. Every lookup touches these small regions, so
+     * keeping them out of reach of page cache eviction keeps lookup latency independent of memory pressure from
+     * other processes. Regions which do not fit in the budget are left to the page cache. The process must be allowed
+     * to lock this much memory, see RLIMIT_MEMLOCK.
+     *
+     * @param memoryLockBudget the number of bytes to lock, or zero for none
+     * @return the builder
+     */
+    @SuppressWarnings("unchecked")
+    public T withMemoryLockBudget(long memoryLockBudget) {
+        this.memoryLockBudget = new MemoryLockBudget(memoryLockBudget);
+        return (T) this;
+    }
+
+    /**
+     * Unmap the mapped buffers of the blocked longs files when the store is trimmed, and of all files when a partition
+     * is closed, instead of waiting for the garbage collector to free them. Under heavy partition churn this keeps
+     * virtual address space and the number of mappings (vm.max_map_count) bounded. In-flight reads and writes finish
+     * before a buffer is unmapped. The buffers returned by readBuffers are copied instead of being views of the mapped
+     * pages, so they stay valid after the store is trimmed or closed.
+     *
+     * @param eagerUnmapping unmap buffers on trim and close
+     * @return the builder
+     */
+    @SuppressWarnings("unchecked")
+    public T withEagerUnmapping(boolean eagerUnmapping) {
+        this.eagerUnmapping = eagerUnmapping;
+        return (T) this;
+    }
+
     @SuppressWarnings("unchecked")
     public T withWriteLockContentString(String writeLockContentString) {
         this.writeLockContentString = writeLockContentString;
@@ -126,6 +279,36 @@ public class FileStoreBuilder<T extends FileStoreBuilder<T>> {
         return (T) this;
     }
 
+    /**
+     * Choose when the files of the store are forced to disk. In periodic and group commit mode the partitions are
+     * flushed and forced together on a dedicated thread, and writers wait for durability with the future returned by
+     * sync instead of forcing the files themselves.
+     *
+     * @param durabilityMode none, periodic or group commit
+     * @return the builder
+     */
+    @SuppressWarnings("unchecked")
+    public T withDurabilityMode(DurabilityMode durabilityMode) {
+        if (durabilityMode == null) {
+            throw new IllegalArgumentException("null durability mode");
+        }
+        this.durabilityMode = durabilityMode;
+        return (T) this;
+    }
+
+    /**
+     * @param durabilityIntervalMillis the interval between forces in periodic durability mode
+     * @return the builder
+     */
+    @SuppressWarnings("unchecked")
+    public T withDurabilityIntervalMillis(int durabilityIntervalMillis) {
+        if (durabilityIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Illegal durabilityIntervalMillis " + durabilityIntervalMillis + "; Must be positive");
+        }
+        this.durabilityIntervalMillis = durabilityIntervalMillis;
+        return (T) this;
+    }
+
     @SuppressWarnings("unchecked")
     public T withDir(Path dir) {
         this.dir = dir;
@@ -176,6 +359,14 @@ public class FileStoreBuilder<T extends FileStoreBuilder<T>> {
         return flushThreshold;
     }
 
+    public DurabilityMode getDurabilityMode() {
+        return durabilityMode;
+    }
+
+    public int getDurabilityIntervalMillis() {
+        return durabilityIntervalMillis;
+    }
+
     public Path getDir() {
         return dir;
     }
@@ -192,10 +383,64 @@ public class FileStoreBuilder<T extends FileStoreBuilder<T>> {
         return metadataTTL;
     }
 
+    public boolean getLookupHashIndex() {
+        return lookupHashIndex;
+    }
+
+    public boolean getLookupBloomFilter() {
+        return lookupBloomFilter;
+    }
+
+    public boolean getLookupKeyPrefixes() {
+        return lookupKeyPrefixes;
+    }
+
     public int getTargetBufferSize() {
         return targetBufferSize;
     }
 
+    public PageBackend getPageBackend() {
+        return pageBackend;
+    }
+
+    public int getPreallocationChunkSize() {
+        return preallocationChunkSize;
+    }
+
+    public boolean getHugePages() {
+        return hugePages;
+    }
+
+    public MemoryLockBudget getMemoryLockBudget() {
+        return memoryLockBudget;
+    }
+
+    public boolean getEagerUnmapping() {
+        return eagerUnmapping;
+    }
+
+    /**
+     * @return the lookup data options for the lookups of a partition, from the lookup options of this builder
+     */
+    public LookupData.Options getLookupDataOptions() {
+        return new LookupData.Options()
+                .withHashIndex(lookupHashIndex)
+                .withBloomFilter(lookupBloomFilter)
+                .withKeyPrefixes(lookupKeyPrefixes);
+    }
+
+    /**
+     * @return the virtual page file options for the files of a partition, from the file options of this builder
+     */
+    public VirtualPageFile.Options getPageFileOptions() {
+        return new VirtualPageFile.Options()
+                .withPageBackend(pageBackend)
+                .withPreallocationChunkSize(preallocationChunkSize)
+                .withHugePages(hugePages)
+                .withMemoryLockBudget(memoryLockBudget)
+                .withEagerUnmapping(eagerUnmapping);
+    }
+
     public String getStoreName() {
         return storeName.isEmpty() ? getDir().getFileName().toString() : storeName;
     }
@@ -221,9 +466,19 @@ public class FileStoreBuilder<T extends FileStoreBuilder<T>> {
                 ", lookupPageSize=" + lookupPageSize +
                 ", metadataTTL=" + metadataTTL +
                 ", metadataPageSize=" + metadataPageSize +
+                ", lookupHashIndex=" + lookupHashIndex +
+                ", lookupBloomFilter=" + lookupBloomFilter +
+                ", lookupKeyPrefixes=" + lookupKeyPrefixes +
                 ", targetBufferSize=" + targetBufferSize +
+                ", pageBackend=" + pageBackend +
+                ", preallocationChunkSize=" + preallocationChunkSize +
+                ", hugePages=" + hugePages +
+                ", memoryLockBudget=" + memoryLockBudget +
+                ", eagerUnmapping=" + eagerUnmapping +
                 ", flushDelaySeconds=" + flushDelaySeconds +
                 ", flushThreshold=" + flushThreshold +
+                ", durabilityMode=" + durabilityMode +
+                ", durabilityIntervalMillis=" + durabilityIntervalMillis +
                 ", dir=" + dir +
                 ", storeMetricsRegistry=" + storeMetricsRegistry +
                 ", metricsRootName='" + metricsRootName + '\'' +
@@ -0,0 +1,140 @@
+package com.upserve.uppend;
+
+import org.slf4j.Logger;
+
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.*;
+
+/**
+ * Runs the force of a store according to its {@link DurabilityMode} and hands out futures which complete once the
+ * writes made before the request are on disk. In periodic and group commit mode the force runs on a dedicated thread;
+ * all requests made before a force starts share its future.
+ */
+class GroupCommitter implements AutoCloseable {
+    private static final Logger log = org.slf4j.LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private final DurabilityMode mode;
+    private final long intervalNanos;
+    private final Runnable force;
+    private final Thread thread;
+
+    // Guarded by this
+    private CompletableFuture<Void> pending = new CompletableFuture<>();
+    private boolean requested;
+    private boolean closed;
+    private Throwable failure; // the error which stopped the thread, if any
+
+    /**
+     * Create a committer and start its thread if the mode needs one
+     *
+     * @param name the name of the store, used to name the thread
+     * @param mode the durability mode
+     * @param intervalMillis the interval between forces in periodic mode
+     * @param force flushes and forces the store to disk
+     */
+    GroupCommitter(String name, DurabilityMode mode, int intervalMillis, Runnable force) {
+        this.mode = mode;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.force = force;
+
+        if (mode == DurabilityMode.NONE) {
+            thread = null;
+        } else {
+            thread = new Thread(this::run, "group-commit-" + name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Request a force of the store
+     *
+     * @return a future completed when the writes made before this call are on disk, or completed exceptionally if
+     * the force failed
+     */
+    CompletableFuture<Void> request() {
+        if (mode == DurabilityMode.NONE) {
+            try {
+                force.run();
+                return CompletableFuture.completedFuture(null);
+            } catch (RuntimeException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        synchronized (this) {
+            if (failure != null) return CompletableFuture.failedFuture(new IllegalStateException("group commit stopped by an error", failure));
+            if (closed) return CompletableFuture.failedFuture(new IllegalStateException("group commit is closed"));
+            if (mode == DurabilityMode.GROUP_COMMIT && !requested) {
+                requested = true;
+                notifyAll();
+            }
+            return pending;
+        }
+    }
+
+    private void run() {
+        boolean exit = false;
+        while (!exit) {
+            final CompletableFuture<Void> batch;
+            synchronized (this) {
+                long deadline = System.nanoTime() + intervalNanos;
+                try {
+                    while (!closed && !requested) {
+                        if (mode == DurabilityMode.GROUP_COMMIT) {
+                            wait();
+                        } else {
+                            long remaining = deadline - System.nanoTime();
+                            if (remaining <= 0) break;
+                            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    log.warn("Group commit thread interrupted, committing pending syncs and stopping");
+                    closed = true;
+                }
+                batch = pending;
+                pending = new CompletableFuture<>();
+                requested = false;
+                exit = closed;
+            }
+
+            try {
+                force.run();
+                batch.complete(null);
+            } catch (RuntimeException e) {
+                log.error("Unable to force store to disk", e);
+                batch.completeExceptionally(e);
+            } catch (Throwable e) {
+                // An error such as an InternalError from a mapped buffer force stops the thread, fail everything pending
+                log.error("Unable to force store to disk, stopping group commit", e);
+                synchronized (this) {
+                    failure = e;
+                    closed = true;
+                    pending.completeExceptionally(e);
+                }
+                batch.completeExceptionally(e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Force any pending requests and stop the thread
+     */
+    @Override
+    public void close() {
+        if (thread == null) return;
+        synchronized (this) {
+            if (failure != null) log.warn("Closing group commit which was stopped by an error, the last syncs were not forced", failure);
+            closed = true;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            log.error("Interrupted waiting for the group commit thread to stop", e);
+            Thread.currentThread().interrupt();
+        }
+    }
+}
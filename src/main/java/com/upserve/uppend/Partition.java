@@ -78,6 +78,7 @@ public abstract class Partition implements Flushable, Closeable, Trimmable {
                     new VirtualLongBlobStore(virtualFileNumber, longKeyFile, builder.getLongBlobStoreMetricsAdders()),
                     new VirtualMutableBlobStore(virtualFileNumber, metadataBlobFile, builder.getMutableBlobStoreMetricsAdders()),
                     flushThreshold,
+                    builder.getLookupDataOptions(),
                     builder.getLookupDataMetricsAdders()
             );
         }
@@ -135,6 +136,14 @@ public abstract class Partition implements Flushable, Closeable, Trimmable {
         Arrays.stream(lookups).forEach(LookupData::flush);
     }
 
+    /**
+     * Force the key and metadata files to disk. The lookups must be flushed first for new keys to be included.
+     */
+    void force() {
+        longKeyFile.force();
+        metadataBlobFile.force();
+    }
+
     @Override
     public void trim() {
         Arrays.stream(lookups).forEach(LookupData::trim);
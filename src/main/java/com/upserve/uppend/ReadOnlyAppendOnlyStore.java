@@ -2,6 +2,7 @@ package com.upserve.uppend;
 
 import com.upserve.uppend.metrics.*;
 
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.function.BiConsumer;
 import java.util.stream.Stream;
@@ -32,6 +33,53 @@ public interface ReadOnlyAppendOnlyStore extends Trimmable, AutoCloseable, KeySt
      */
     Stream<byte[]> readSequential(String partitionEntropy, String key);
 
+    /**
+     * Read the values stored under a given partition and key, in the order
+     * they were stored, as read only buffers. A value held in one page of
+     * the blob file is returned as a view of the mapped page without copying
+     * it; a value spanning pages is copied. The views must not be used after
+     * the store is trimmed or closed, which drops the mapped pages. With eager
+     * unmapping every value is copied, since the pages are unmapped as soon
+     * as they are dropped.
+     *
+     * @param partitionEntropy the partition under which to retrieve
+     * @param key the key under which to retrieve
+     * @return a stream of read only buffers in storage order
+     * @throws IllegalArgumentException if partition is invalid
+     */
+    Stream<ByteBuffer> readBuffers(String partitionEntropy, String key);
+
+    /**
+     * Read the byte arrays stored under a given partition and key with a
+     * position in [fromIndex, toIndex) in storage order. Blocks of values
+     * before fromIndex are skipped without reading them.
+     *
+     * @param partitionEntropy the partition under which to retrieve
+     * @param key the key under which to retrieve
+     * @param fromIndex the index of the first byte array to return, inclusive
+     * @param toIndex the index after the last byte array to return, exclusive
+     * @return a stream of the stored byte arrays in the range in storage order
+     * @throws IllegalArgumentException if partition is invalid or the range is
+     * negative
+     */
+    Stream<byte[]> readRange(String partitionEntropy, String key, long fromIndex, long toIndex);
+
+    /**
+     * Read the byte arrays stored under a given partition and key since a
+     * cursor returned by an earlier read, in storage order. Only the new
+     * values are read, so polling a key costs O(new values) rather than the
+     * size of its history. Start with {@link Cursor#START}. A cursor holds
+     * block offsets, so it is invalidated when the partition is compacted;
+     * read again from {@link Cursor#START} after a compaction.
+     *
+     * @param partitionEntropy the partition under which to retrieve
+     * @param key the key under which to retrieve
+     * @param cursor the cursor from the previous read of this partition and key
+     * @return the byte arrays stored since the cursor and the cursor to use
+     * for the next read
+     * @throws IllegalArgumentException if partition or cursor is invalid
+     */
+    CursorRead<byte[]> readSince(String partitionEntropy, String key, Cursor cursor);
 
     /**
      * Read the last byte array that was stored under a given partition and key
@@ -43,6 +91,42 @@ public interface ReadOnlyAppendOnlyStore extends Trimmable, AutoCloseable, KeySt
      */
     byte[] readLast(String partitionEntropy, String key);
 
+    /**
+     * Read the last byte arrays that were stored under a given partition and
+     * key. Only the blocks holding those values are read.
+     *
+     * @param partitionEntropy the partition under which to retrieve
+     * @param key the key under which to retrieve
+     * @param n the maximum number of byte arrays to return
+     * @return a stream of up to n of the most recently stored byte arrays in
+     * storage order
+     * @throws IllegalArgumentException if partition is invalid
+     */
+    Stream<byte[]> readLast(String partitionEntropy, String key, int n);
+
+    /**
+     * Read byte arrays that have been stored under a given partition and key,
+     * newest first. The stream is lazy, so reading only the first few values
+     * does not read the rest of the history.
+     *
+     * @param partitionEntropy the partition under which to retrieve
+     * @param key the key under which to retrieve
+     * @return a stream of the stored byte arrays in reverse storage order
+     * @throws IllegalArgumentException if partition is invalid
+     */
+    Stream<byte[]> readReverse(String partitionEntropy, String key);
+
+    /**
+     * Count the byte arrays that have been stored under a given partition and
+     * key without reading them
+     *
+     * @param partitionEntropy the partition under which to count
+     * @param key the key under which to count
+     * @return the number of stored byte arrays, or 0 if none
+     * @throws IllegalArgumentException if partition is invalid
+     */
+    long count(String partitionEntropy, String key);
+
     /**
      * Enumerate the keys in the append store
      *
@@ -54,7 +138,8 @@ public interface ReadOnlyAppendOnlyStore extends Trimmable, AutoCloseable, KeySt
 
     /**
      * Scan all the keys and values in the append store, returning a stream of
-     * entries for each key and stream of values
+     * entries for each key and stream of values. The value streams are lazy
+     * and must be consumed before the store is closed.
      *
      * @return a stream of entries of key to stream of byte array values
      */
@@ -0,0 +1,86 @@
+package com.upserve.uppend.blobs;
+
+import java.util.concurrent.atomic.*;
+import java.util.stream.IntStream;
+
+/**
+ * Applies madvise advice to the virtual files of a VirtualPageFile from the way they are being read.
+ * <p>
+ * Point reads are served with the default advice of the file: random when buffers are not cached, otherwise normal.
+ * While a virtual file is scanned its pages are advised sequential so the kernel reads ahead, and the first pages are
+ * advised will need. When the last scan of a virtual file ends its pages are dropped from the mapping (don't need)
+ * unless the virtual file also served point reads during the scan, then the default advice is restored. A full scan
+ * then does not push the pages which serve point reads out of the page cache.
+ */
+public class AdaptiveAdvice {
+    // The number of point reads during a scan above which a virtual file is hot and kept in the page cache
+    static final long HOT_POINT_READS = 16;
+    // The number of pages advised will need when a scan starts
+    static final int WILL_NEED_PAGES = 4;
+
+    private final VirtualPageFile file;
+    private final boolean enabled;
+    private final NativeIO.Advice pointReadAdvice;
+
+    private final LongAdder[] pointReads;
+    private final AtomicInteger[] activeScans;
+    private final long[] pointReadsAtScanStart; // guarded by the active scans counter of the virtual file
+
+    /**
+     * Create the advice for a file
+     *
+     * @param file the virtual page file to advise
+     * @param enabled apply advice, when false every method does nothing
+     */
+    public AdaptiveAdvice(VirtualPageFile file, boolean enabled) {
+        this.file = file;
+        this.enabled = enabled;
+        pointReadAdvice = file.isCacheBuffers() ? NativeIO.Advice.Normal : NativeIO.Advice.Random;
+
+        final int virtualFiles = enabled ? file.getVirtualFiles() : 0;
+        pointReads = IntStream.range(0, virtualFiles).mapToObj(i -> new LongAdder()).toArray(LongAdder[]::new);
+        activeScans = IntStream.range(0, virtualFiles).mapToObj(i -> new AtomicInteger()).toArray(AtomicInteger[]::new);
+        pointReadsAtScanStart = new long[virtualFiles];
+    }
+
+    /**
+     * Record a point read of a virtual file
+     *
+     * @param virtualFileNumber the virtual file number
+     */
+    public void pointRead(int virtualFileNumber) {
+        if (!enabled) return;
+        pointReads[virtualFileNumber].increment();
+    }
+
+    /**
+     * Advise a virtual file for a sequential scan. Each call must be followed by a call to endScan.
+     *
+     * @param virtualFileNumber the virtual file number
+     */
+    public void beginScan(int virtualFileNumber) {
+        if (!enabled) return;
+        synchronized (activeScans[virtualFileNumber]) {
+            if (activeScans[virtualFileNumber].getAndIncrement() > 0) return;
+            pointReadsAtScanStart[virtualFileNumber] = pointReads[virtualFileNumber].sum();
+            file.advise(virtualFileNumber, 0, Integer.MAX_VALUE, NativeIO.Advice.Sequential);
+            file.advise(virtualFileNumber, 0, WILL_NEED_PAGES, NativeIO.Advice.WillNeed);
+        }
+    }
+
+    /**
+     * Drop the pages of a cold virtual file once nothing is scanning it, and restore the point read advice
+     *
+     * @param virtualFileNumber the virtual file number
+     */
+    public void endScan(int virtualFileNumber) {
+        if (!enabled) return;
+        synchronized (activeScans[virtualFileNumber]) {
+            if (activeScans[virtualFileNumber].decrementAndGet() > 0) return;
+            if (pointReads[virtualFileNumber].sum() - pointReadsAtScanStart[virtualFileNumber] < HOT_POINT_READS) {
+                file.advise(virtualFileNumber, 0, Integer.MAX_VALUE, NativeIO.Advice.DontNeed);
+            }
+            file.advise(virtualFileNumber, 0, Integer.MAX_VALUE, pointReadAdvice);
+        }
+    }
+}
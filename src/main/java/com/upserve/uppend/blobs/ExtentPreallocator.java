@@ -0,0 +1,103 @@
+package com.upserve.uppend.blobs;
+
+import org.slf4j.Logger;
+
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Path;
+
+/**
+ * Reserves the disk blocks of a growing file in chunks ahead of its allocation position with fallocate, so the file
+ * is not left sparse, its extents are not fragmented by other files growing alongside it, and writes into newly
+ * allocated space do not wait for the file system to allocate blocks. The file size is not changed.
+ * <p>
+ * Preallocation is an optimization only: if fallocate is not available or fails, a warning is logged and the file
+ * grows as before.
+ */
+public class ExtentPreallocator implements Closeable {
+    private static final Logger log = org.slf4j.LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private final Path file;
+    private final long chunkSize;
+
+    private int fd = -1; // -1 when preallocation is off
+    private volatile long reservedEnd; // Long.MAX_VALUE when preallocation is off
+
+    /**
+     * Create a preallocator for a file
+     *
+     * @param file the path of the file, which must exist
+     * @param chunkSize the number of bytes to reserve ahead of the allocation position, zero turns preallocation off
+     * @param position the current allocation position in the file
+     */
+    public ExtentPreallocator(Path file, long chunkSize, long position) {
+        if (chunkSize < 0) throw new IllegalArgumentException("Preallocation chunk size must not be negative: " + chunkSize);
+        this.file = file;
+        this.chunkSize = chunkSize;
+        this.reservedEnd = Long.MAX_VALUE;
+
+        if (chunkSize > 0) {
+            try {
+                fd = NativeIO.open(file);
+                reservedEnd = position;
+            } catch (IOException | UnsatisfiedLinkError e) {
+                log.warn("Unable to preallocate extents for {}, preallocation is off", file, e);
+            }
+        }
+    }
+
+    /**
+     * Make sure the chunk after the allocation position is reserved. Only calls fallocate when the position comes
+     * within a chunk of the end of the reserved space, it then reserves up to the next chunk boundary past that.
+     *
+     * @param position the allocation position in the file
+     */
+    public void reserve(long position) {
+        final long end = position + chunkSize;
+        if (end <= reservedEnd) return;
+
+        synchronized (this) {
+            if (end <= reservedEnd) return;
+
+            final long start = Math.max(reservedEnd, position);
+            final long chunkEnd = (end + chunkSize - 1) / chunkSize * chunkSize;
+            try {
+                NativeIO.fallocate(fd, start, chunkEnd - start);
+                log.trace("reserved {} bytes at {} in {}", chunkEnd - start, start, file);
+                reservedEnd = chunkEnd;
+            } catch (IOException | UnsatisfiedLinkError e) {
+                log.warn("Unable to preallocate extents for {}, preallocation is off", file, e);
+                closeDescriptor();
+            }
+        }
+    }
+
+    /**
+     * Forget the reserved space after the file has been truncated
+     *
+     * @param position the allocation position in the truncated file
+     */
+    public synchronized void reset(long position) {
+        if (fd >= 0) reservedEnd = position;
+    }
+
+    public synchronized boolean isPreallocating() {
+        return fd >= 0;
+    }
+
+    @Override
+    public synchronized void close() {
+        closeDescriptor();
+    }
+
+    private void closeDescriptor() {
+        if (fd < 0) return;
+        try {
+            NativeIO.close(fd);
+        } catch (IOException e) {
+            log.warn("Unable to close preallocation descriptor for {}", file, e);
+        }
+        fd = -1;
+        reservedEnd = Long.MAX_VALUE;
+    }
+}
@@ -61,4 +61,57 @@ public class FilePage implements Page {
 
         return actualWrite;
     }
+
+    @Override
+    public int getInt(int pagePosition) {
+        return read(pagePosition, ByteBuffer.allocate(4)).getInt(0);
+    }
+
+    @Override
+    public long getLong(int pagePosition) {
+        return read(pagePosition, ByteBuffer.allocate(8)).getLong(0);
+    }
+
+    private ByteBuffer read(int pagePosition, ByteBuffer byteBuffer) {
+        final int size = byteBuffer.remaining();
+        final int channelRead;
+        try {
+            channelRead = channel.read(byteBuffer, pageStart + pagePosition);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read from page", e);
+        }
+
+        if (channelRead != size) throw new IllegalStateException("Failed to read past end of file");
+        return byteBuffer;
+    }
+
+    @Override
+    public void putInt(int pagePosition, int value) {
+        write(pagePosition, (ByteBuffer) ByteBuffer.allocate(4).putInt(value).flip());
+    }
+
+    @Override
+    public void putLong(int pagePosition, long value) {
+        write(pagePosition, (ByteBuffer) ByteBuffer.allocate(8).putLong(value).flip());
+    }
+
+    private void write(int pagePosition, ByteBuffer byteBuffer) {
+        final int size = byteBuffer.remaining();
+        final int channelWrite;
+        try {
+            channelWrite = channel.write(byteBuffer, pageStart + pagePosition);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to write to page", e);
+        }
+
+        if (channelWrite != size) throw new IllegalStateException("Failed to write all bytes to file page");
+    }
+
+    @Override
+    public ByteBuffer buffer(int pagePosition, int length) {
+        // There is nothing mapped to slice, so read a copy
+        byte[] dst = new byte[actualOperationSize(pagePosition, pageSize, 0, length)];
+        get(pagePosition, dst, 0);
+        return ByteBuffer.wrap(dst).asReadOnlyBuffer();
+    }
 }
\ No newline at end of file
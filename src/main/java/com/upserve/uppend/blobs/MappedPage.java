@@ -1,26 +1,45 @@
 package com.upserve.uppend.blobs;
 
 import java.nio.*;
+import java.util.function.Supplier;
 
 /**
  * Mapped Byte Buffer backed implementation of Page
+ * <p>
+ * When the buffer may be unmapped eagerly, the page is given a supplier of the buffer instead of the buffer itself.
+ * The buffer is fetched from the supplier after entering the unmap fence on every access, so a page held by a
+ * reader never touches a buffer which has been retired.
  */
 public class MappedPage implements Page {
-    private final MappedByteBuffer buffer;
+    private final Supplier<MappedByteBuffer> buffer;
     private final int pageSize;
     private final int startingPosition;
+    private final UnmapFence unmapFence;
 
     /**
      * Constructor for a MappedPage
      *
-     * @param buffer the mapped byte buffer representing a page of a file
+     * @param buffer supplies the mapped byte buffer representing a page of a file, called inside the unmap fence
      * @param startingPosition the starting offset in a larger buffer
      * @param pageSize the size of the page to create
+     * @param unmapFence the fence guarding the buffer against being unmapped while it is read or written
      */
-    public MappedPage(MappedByteBuffer buffer, int startingPosition, int pageSize) {
+    public MappedPage(Supplier<MappedByteBuffer> buffer, int startingPosition, int pageSize, UnmapFence unmapFence) {
         this.pageSize = pageSize;
         this.buffer = buffer;
         this.startingPosition = startingPosition;
+        this.unmapFence = unmapFence;
+    }
+
+    /**
+     * Constructor for a MappedPage
+     *
+     * @param buffer the mapped byte buffer representing a page of a file
+     * @param startingPosition the starting offset in a larger buffer
+     * @param pageSize the size of the page to create
+     */
+    public MappedPage(MappedByteBuffer buffer, int startingPosition, int pageSize) {
+        this(() -> buffer, startingPosition, pageSize, UnmapFence.DISABLED);
     }
 
     /**
@@ -36,10 +55,15 @@ public class MappedPage implements Page {
     public int get(int pagePosition, byte[] dst, int bufferOffset) {
         final int actualRead = actualOperationSize(pagePosition, pageSize, bufferOffset, dst.length);
 
-        // Make a local buffer with local position
-        ByteBuffer localBuffer = buffer.duplicate();
-        localBuffer.position(pagePosition + startingPosition);
-        localBuffer.get(dst, bufferOffset, actualRead);
+        final int token = unmapFence.enter();
+        try {
+            // Make a local buffer with local position
+            ByteBuffer localBuffer = buffer.get().duplicate();
+            localBuffer.position(pagePosition + startingPosition);
+            localBuffer.get(dst, bufferOffset, actualRead);
+        } finally {
+            unmapFence.exit(token);
+        }
 
         return actualRead;
     }
@@ -48,11 +72,78 @@ public class MappedPage implements Page {
     public int put(int pagePosition, byte[] src, int bufferOffset) {
         final int actualWrite = actualOperationSize(pagePosition, pageSize, bufferOffset, src.length);
 
-        // Make a local buffer with local position
-        ByteBuffer localBuffer = buffer.duplicate();
-        localBuffer.position(pagePosition + startingPosition);
-        localBuffer.put(src, bufferOffset, actualWrite);
+        final int token = unmapFence.enter();
+        try {
+            // Make a local buffer with local position
+            ByteBuffer localBuffer = buffer.get().duplicate();
+            localBuffer.position(pagePosition + startingPosition);
+            localBuffer.put(src, bufferOffset, actualWrite);
+        } finally {
+            unmapFence.exit(token);
+        }
 
         return actualWrite;
     }
+
+    @Override
+    public int getInt(int pagePosition) {
+        final int token = unmapFence.enter();
+        try {
+            return buffer.get().getInt(pagePosition + startingPosition);
+        } finally {
+            unmapFence.exit(token);
+        }
+    }
+
+    @Override
+    public long getLong(int pagePosition) {
+        final int token = unmapFence.enter();
+        try {
+            return buffer.get().getLong(pagePosition + startingPosition);
+        } finally {
+            unmapFence.exit(token);
+        }
+    }
+
+    @Override
+    public void putInt(int pagePosition, int value) {
+        final int token = unmapFence.enter();
+        try {
+            buffer.get().putInt(pagePosition + startingPosition, value);
+        } finally {
+            unmapFence.exit(token);
+        }
+    }
+
+    @Override
+    public void putLong(int pagePosition, long value) {
+        final int token = unmapFence.enter();
+        try {
+            buffer.get().putLong(pagePosition + startingPosition, value);
+        } finally {
+            unmapFence.exit(token);
+        }
+    }
+
+    // Without eager unmapping the bytes are sliced, not copied, and the view stays valid while it is referenced. With
+    // eager unmapping the buffer may be unmapped as soon as the fence is left, so the bytes are copied inside it.
+    @Override
+    public ByteBuffer buffer(int pagePosition, int length) {
+        final int actualRead = actualOperationSize(pagePosition, pageSize, 0, length);
+
+        final int token = unmapFence.enter();
+        try {
+            ByteBuffer localBuffer = buffer.get().duplicate();
+            localBuffer.position(pagePosition + startingPosition);
+            localBuffer.limit(pagePosition + startingPosition + actualRead);
+            if (unmapFence.isEnabled()) {
+                ByteBuffer copy = ByteBuffer.allocate(actualRead);
+                copy.put(localBuffer).flip();
+                return copy.asReadOnlyBuffer();
+            }
+            return localBuffer.slice().asReadOnlyBuffer();
+        } finally {
+            unmapFence.exit(token);
+        }
+    }
 }
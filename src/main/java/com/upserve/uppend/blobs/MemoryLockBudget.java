@@ -0,0 +1,115 @@
+package com.upserve.uppend.blobs;
+
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.MappedByteBuffer;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A limit on the bytes of mapped buffers a store locks in memory with mlock. Locked regions are not evicted from the
+ * page cache under memory pressure, so the small regions every lookup touches stay resident. Regions are locked first
+ * come first served until the budget is spent; the rest are left to the page cache.
+ * <p>
+ * The process must be allowed to lock the memory: see RLIMIT_MEMLOCK (ulimit -l) or CAP_IPC_LOCK.
+ */
+public class MemoryLockBudget {
+    private static final Logger log = org.slf4j.LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private final long budget;
+    private final AtomicLong lockedBytes = new AtomicLong();
+    private final AtomicBoolean warned = new AtomicBoolean();
+
+    /**
+     * A region of a mapped buffer locked against this budget
+     */
+    static class LockedRegion {
+        private final MappedByteBuffer buffer;
+        private final int offset;
+        private final int length;
+        private final long size;
+
+        private LockedRegion(MappedByteBuffer buffer, int offset, int length, long size) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.length = length;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Create a budget
+     *
+     * @param budget the number of bytes which may be locked, zero to lock nothing
+     */
+    public MemoryLockBudget(long budget) {
+        if (budget < 0) throw new IllegalArgumentException("Memory lock budget must not be negative: " + budget);
+        this.budget = budget;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public long getLockedBytes() {
+        return lockedBytes.get();
+    }
+
+    /**
+     * Lock a region of a mapped buffer if the budget allows it
+     *
+     * @param buffer the mapped buffer
+     * @param offset the start of the region in the buffer
+     * @param length the length of the region
+     * @return the locked region, or null if it was not locked
+     */
+    LockedRegion lock(MappedByteBuffer buffer, int offset, int length) {
+        if (budget == 0) return null;
+
+        final long size = NativeIO.lockedSize(buffer, offset, length);
+        long current;
+        do {
+            current = lockedBytes.get();
+            if (current + size > budget) {
+                warnOnce("Memory lock budget of {} bytes is spent, not locking {} more bytes", budget, size);
+                return null;
+            }
+        } while (!lockedBytes.compareAndSet(current, current + size));
+
+        try {
+            NativeIO.mlock(buffer, offset, length);
+        } catch (IOException | UnsatisfiedLinkError e) {
+            lockedBytes.addAndGet(-size);
+            warnOnce("Unable to lock {} bytes in memory: {}", size, e.getMessage());
+            return null;
+        }
+        return new LockedRegion(buffer, offset, length, size);
+    }
+
+    /**
+     * Unlock a region and return its bytes to the budget
+     *
+     * @param region the region returned by lock
+     */
+    void unlock(LockedRegion region) {
+        try {
+            NativeIO.munlock(region.buffer, region.offset, region.length);
+        } catch (IOException e) {
+            log.warn("Unable to unlock {} bytes", region.size, e);
+        }
+        lockedBytes.addAndGet(-region.size);
+    }
+
+    private void warnOnce(String format, Object... args) {
+        if (!warned.getAndSet(true)) log.warn(format, args);
+    }
+
+    @Override
+    public String toString() {
+        return "MemoryLockBudget{" +
+                "budget=" + budget +
+                ", lockedBytes=" + lockedBytes.get() +
+                '}';
+    }
+}
@@ -1,13 +1,15 @@
 package com.upserve.uppend.blobs;
 
 import jnr.ffi.*;
-import jnr.ffi.types.size_t;
+import jnr.ffi.types.*;
 import org.slf4j.Logger;
 import com.kenai.jffi.MemoryIO;
 
 import java.io.IOException;
 import java.lang.invoke.MethodHandles;
 import java.nio.*;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class NativeIO {
     private static final Logger log = org.slf4j.LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
@@ -18,7 +20,7 @@ public class NativeIO {
     public enum Advice {
         // These seem to be fairly stable https://github.com/torvalds/linux
         // TODO add to https://github.com/jnr/jnr-constants
-        Normal(0), Random(1), Sequential(2), WillNeed(3), DontNeed(4);
+        Normal(0), Random(1), Sequential(2), WillNeed(3), DontNeed(4), HugePage(14), NoHugePage(15);
         private final int value;
         Advice(int val) {
             this.value = val;
@@ -28,8 +30,18 @@ public class NativeIO {
     public interface NativeC {
         int madvise(@size_t long address, @size_t long size, int advice);
         int getpagesize();
+        int open(String path, int flags);
+        int close(int fd);
+        int fallocate(int fd, int mode, @off_t long offset, @off_t long len);
+        int mlock(@size_t long address, @size_t long size);
+        int munlock(@size_t long address, @size_t long size);
     }
 
+    private static final AtomicBoolean hugePagesUnavailable = new AtomicBoolean();
+
+    private static final int O_WRONLY = 1;
+    private static final int FALLOC_FL_KEEP_SIZE = 1;
+
     static long alignedAddress(long address) {
         return address & (- pageSize);
     }
@@ -41,16 +53,28 @@ public class NativeIO {
     }
 
     public static void madvise(MappedByteBuffer buffer, Advice advice) throws IOException {
+        madvise(buffer, 0, buffer.capacity(), advice);
+    }
+
+    /**
+     * Advise the kernel how a range of a mapped buffer will be used. The range is widened to system page boundaries.
+     *
+     * @param buffer the mapped buffer
+     * @param offset the start of the range in the buffer
+     * @param length the length of the range
+     * @param advice the advice
+     * @throws IOException if the madvise system call fails
+     */
+    public static void madvise(MappedByteBuffer buffer, int offset, int length, Advice advice) throws IOException {
 
-        final long address = MemoryIO.getInstance().getDirectBufferAddress(buffer);
-        final int capacity = buffer.capacity();
+        final long address = MemoryIO.getInstance().getDirectBufferAddress(buffer) + offset;
 
         long alignedAddress = alignedAddress(address);
-        long alignedSize = alignedSize(alignedAddress, capacity);
+        long alignedSize = alignedSize(address, length);
 
         log.debug(
                 "Page size {}; Address: raw - {}, aligned - {}; Size: raw - {}, aligned - {}",
-                pageSize, address, alignedAddress, capacity, alignedSize
+                pageSize, address, alignedAddress, length, alignedSize
         );
         int val = nativeC.madvise(alignedAddress, alignedSize, advice.value);
 
@@ -58,4 +82,97 @@ public class NativeIO {
             throw new IOException(String.format("System call madvise failed with code: %d", val));
         }
     }
+
+    /**
+     * Ask the kernel to back a mapped buffer with transparent huge pages. Whether file backed mappings get huge pages
+     * depends on the kernel and the file system; only the 2 MB aligned parts of the buffer can be huge pages. A
+     * kernel without transparent huge pages rejects the advice, which is logged once.
+     *
+     * @param buffer the mapped buffer
+     * @return true if the advice was accepted
+     */
+    public static boolean adviseHugePages(MappedByteBuffer buffer) {
+        try {
+            madvise(buffer, Advice.HugePage);
+            return true;
+        } catch (IOException e) {
+            if (!hugePagesUnavailable.getAndSet(true)) {
+                log.warn("Transparent huge pages are not available, mapping with normal pages: {}", e.getMessage());
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The number of bytes of memory locked by mlock for a range of a mapped buffer
+     *
+     * @param buffer the mapped buffer
+     * @param offset the start of the range in the buffer
+     * @param length the length of the range
+     * @return the length of the range widened to system page boundaries
+     */
+    static long lockedSize(MappedByteBuffer buffer, int offset, int length) {
+        return alignedSize(MemoryIO.getInstance().getDirectBufferAddress(buffer) + offset, length);
+    }
+
+    /**
+     * Lock a range of a mapped buffer in memory, faulting in its pages. The range is widened to system page boundaries.
+     *
+     * @param buffer the mapped buffer
+     * @param offset the start of the range in the buffer
+     * @param length the length of the range
+     * @throws IOException if the mlock system call fails, typically because of RLIMIT_MEMLOCK
+     */
+    static void mlock(MappedByteBuffer buffer, int offset, int length) throws IOException {
+        final long address = MemoryIO.getInstance().getDirectBufferAddress(buffer) + offset;
+        int val = nativeC.mlock(alignedAddress(address), alignedSize(address, length));
+
+        if (val != 0) {
+            throw new IOException(String.format("System call mlock failed with errno: %d", errno()));
+        }
+    }
+
+    static void munlock(MappedByteBuffer buffer, int offset, int length) throws IOException {
+        final long address = MemoryIO.getInstance().getDirectBufferAddress(buffer) + offset;
+        int val = nativeC.munlock(alignedAddress(address), alignedSize(address, length));
+
+        if (val != 0) {
+            throw new IOException(String.format("System call munlock failed with errno: %d", errno()));
+        }
+    }
+
+    static int open(Path path) throws IOException {
+        int fd = nativeC.open(path.toString(), O_WRONLY);
+        if (fd < 0) {
+            throw new IOException(String.format("System call open failed for %s with errno: %d", path, errno()));
+        }
+        return fd;
+    }
+
+    static void close(int fd) throws IOException {
+        if (nativeC.close(fd) != 0) {
+            throw new IOException(String.format("System call close failed with errno: %d", errno()));
+        }
+    }
+
+    /**
+     * Reserve the disk blocks for a range of a file without changing its size. Holes in the range are allocated and
+     * read as zeros.
+     *
+     * @param fd the file descriptor
+     * @param offset the start of the range
+     * @param length the length of the range
+     * @throws IOException if the file system does not support fallocate or the blocks could not be allocated
+     */
+    static void fallocate(int fd, long offset, long length) throws IOException {
+        int val = nativeC.fallocate(fd, FALLOC_FL_KEEP_SIZE, offset, length);
+
+        if (val != 0) {
+            throw new IOException(String.format("System call fallocate failed with errno: %d", errno()));
+        }
+    }
+
+    private static int errno() {
+        return LastError.getLastError(jnr.ffi.Runtime.getRuntime(nativeC));
+    }
 }
@@ -1,5 +1,7 @@
 package com.upserve.uppend.blobs;
 
+import java.nio.ByteBuffer;
+
 import static java.lang.Integer.min;
 
 /**
@@ -11,6 +13,48 @@ public interface Page {
 
     int put(int pagePosition, byte[] src, int bufferOffset);
 
+    /**
+     * Get an int at a position in this page. The four bytes must be in the page.
+     *
+     * @param pagePosition the position in the page
+     * @return the value
+     */
+    int getInt(int pagePosition);
+
+    /**
+     * Get a long at a position in this page. The eight bytes must be in the page.
+     *
+     * @param pagePosition the position in the page
+     * @return the value
+     */
+    long getLong(int pagePosition);
+
+    /**
+     * Put an int at a position in this page. The four bytes must fit in the page.
+     *
+     * @param pagePosition the position in the page
+     * @param value the value to put
+     */
+    void putInt(int pagePosition, int value);
+
+    /**
+     * Put a long at a position in this page. The eight bytes must fit in the page.
+     *
+     * @param pagePosition the position in the page
+     * @param value the value to put
+     */
+    void putLong(int pagePosition, long value);
+
+    /**
+     * Get a read only buffer over bytes of this page, without copying them when the page is memory mapped and its
+     * buffer is not unmapped eagerly
+     *
+     * @param pagePosition the position in the page to start at
+     * @param length the number of bytes wanted
+     * @return a read only buffer of at most length bytes - fewer when the end of the page is reached
+     */
+    ByteBuffer buffer(int pagePosition, int length);
+
     default int actualOperationSize(int pagePosition, int pagesize, int bufferOffset, int bufferLength) {
         final int desiredRead = bufferLength - bufferOffset;
         final int availableToRead = pagesize - pagePosition;
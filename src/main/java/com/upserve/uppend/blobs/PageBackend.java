@@ -0,0 +1,17 @@
+package com.upserve.uppend.blobs;
+
+/**
+ * How the pages of a {@link VirtualPageFile} are read and written. The header and page tables are always mapped.
+ */
+public enum PageBackend {
+    /**
+     * Pages are slices of large memory mapped buffers; reads and writes are memory accesses which may page fault
+     */
+    MAPPED,
+
+    /**
+     * Pages are read and written with positional FileChannel reads and writes through the page cache, nothing is
+     * mapped
+     */
+    CHANNEL
+}
@@ -0,0 +1,127 @@
+package com.upserve.uppend.blobs;
+
+import org.slf4j.Logger;
+
+import java.lang.invoke.*;
+import java.lang.reflect.Field;
+import java.nio.*;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Unmaps retired mapped buffers eagerly instead of waiting for the garbage collector to free them, so trimming or
+ * closing a file returns its virtual address space and mappings (see vm.max_map_count) immediately.
+ * <p>
+ * Touching an unmapped buffer crashes the JVM, so every access to a buffer which may be retired must be made between
+ * {@link #enter()} and {@link #exit(int)}. A buffer is retired by removing it from where readers find it, then calling
+ * {@link #retire(Collection)}, which waits for the readers that may still hold it before unmapping. Readers are
+ * counted in two epochs of thread striped counters: retiring flips the epoch and waits only for the readers counted
+ * in the old one, so a steady stream of new readers can not hold it up.
+ * <p>
+ * Unmapping uses the cleaner of the buffer through sun.misc.Unsafe. When that is not available, or the fence is not
+ * enabled, retired buffers are left to the garbage collector as before and enter and exit do nothing.
+ */
+public class UnmapFence {
+    private static final Logger log = org.slf4j.LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final UnmapFence DISABLED = new UnmapFence(false);
+
+    private static final int STRIPES = 64;
+    private static final int PADDING = 16; // longs per stripe, keeps the counters of each stripe on their own cache lines
+    private static final int EPOCH_SIZE = STRIPES * PADDING;
+
+    private static final MethodHandle INVOKE_CLEANER = invokeCleaner();
+
+    private final boolean enabled;
+    private final AtomicLongArray readers;
+    private volatile int epoch;
+
+    /**
+     * Create a fence
+     *
+     * @param enabled unmap retired buffers, when false retired buffers are left to the garbage collector
+     */
+    public UnmapFence(boolean enabled) {
+        this.enabled = enabled && INVOKE_CLEANER != null;
+        readers = this.enabled ? new AtomicLongArray(2 * EPOCH_SIZE) : null;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enter a section which accesses buffers that may be retired
+     *
+     * @return the token to pass to exit
+     */
+    public int enter() {
+        if (!enabled) return -1;
+        final int stripe = (int) (Thread.currentThread().getId() % STRIPES) * PADDING;
+        while (true) {
+            final int current = epoch;
+            final int index = (current & 1) * EPOCH_SIZE + stripe;
+            readers.incrementAndGet(index);
+            // A retire which flipped the epoch before the increment may not have seen it, count again in the new epoch
+            if (epoch == current) return index;
+            readers.decrementAndGet(index);
+        }
+    }
+
+    /**
+     * Leave a section entered with enter
+     *
+     * @param token the token returned by enter
+     */
+    public void exit(int token) {
+        if (token < 0) return;
+        readers.decrementAndGet(token);
+    }
+
+    /**
+     * Unmap buffers once the readers which may still hold them have left. The buffers must already be unreachable for
+     * new readers. Must not be called from inside a section entered on this fence.
+     *
+     * @param buffers the mapped buffers to unmap, which must not be slices or duplicates
+     */
+    public void retire(Collection<MappedByteBuffer> buffers) {
+        if (!enabled || buffers.isEmpty()) return;
+
+        synchronized (this) {
+            final int oldEpochStart = (epoch & 1) * EPOCH_SIZE;
+            epoch++;
+            for (int stripe = 0; stripe < STRIPES; stripe++) {
+                int spins = 0;
+                while (readers.get(oldEpochStart + stripe * PADDING) > 0) {
+                    if (++spins < 1000) {
+                        Thread.onSpinWait();
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            }
+        }
+
+        for (MappedByteBuffer buffer : buffers) {
+            try {
+                INVOKE_CLEANER.invokeExact((ByteBuffer) buffer);
+            } catch (Throwable e) {
+                log.warn("Unable to unmap buffer, leaving it to the garbage collector", e);
+            }
+        }
+    }
+
+    private static MethodHandle invokeCleaner() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(theUnsafe.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.warn("Eager unmapping of buffers is not available, unmapping is left to the garbage collector: {}", e.toString());
+            return null;
+        }
+    }
+}
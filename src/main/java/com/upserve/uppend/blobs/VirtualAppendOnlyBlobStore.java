@@ -4,6 +4,7 @@ import com.upserve.uppend.metrics.BlobStoreMetrics;
 import org.slf4j.Logger;
 
 import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
 
 public class VirtualAppendOnlyBlobStore extends VirtualPageFileIO {
     private static final Logger log = org.slf4j.LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
@@ -23,7 +24,8 @@ public class VirtualAppendOnlyBlobStore extends VirtualPageFileIO {
         final long tic = System.nanoTime();
         final int size = recordSize(bytes);
         final long pos = appendPosition(size);
-        write(pos, byteRecord(bytes));
+        writeInt(pos, bytes.length);
+        if (bytes.length > 0) write(pos + 4, bytes);
         if (log.isTraceEnabled()) log.trace("appended {} bytes to {} at pos {}", bytes.length, virtualFileNumber, pos);
         blobStoreMetricsAdders.appendCounter.increment();
         blobStoreMetricsAdders.bytesAppended.add(size);
@@ -57,15 +59,28 @@ public class VirtualAppendOnlyBlobStore extends VirtualPageFileIO {
         return buf;
     }
 
-    private static int recordSize(byte[] inputBytes) {
-        return inputBytes.length + 4;
-    }
+    /**
+     * Read a blob at this position as a read only buffer. The buffer is a view of the mapped page unless the blob
+     * spans pages or the file unmaps its buffers eagerly, in which case it is a copy. A view must not be used after the
+     * file is closed.
+     * Results are unpredictable for bad position requests, as for {@link #read(long)}.
+     * @param pos the position to read from in the virtual file
+     * @return the blob as a read only buffer
+     */
+    public ByteBuffer readBuffer(long pos) {
+        final long tic = System.nanoTime();
+        if (log.isTraceEnabled()) log.trace("read buffer from  {} @ {}", virtualFileNumber, pos);
+        int size = readInt(pos);
+        ByteBuffer buf = super.readBuffer(pos + 4, size);
+        if (log.isTraceEnabled()) log.trace("read buffer of {} bytes from {} @ {}", size, virtualFileNumber, pos);
 
-    private static byte[] byteRecord(byte[] inputBytes) {
-        byte[] result = new byte[recordSize(inputBytes)];
-        System.arraycopy(int2bytes(inputBytes.length), 0, result, 0, 4);
-        System.arraycopy(inputBytes, 0, result, 4, inputBytes.length);
+        blobStoreMetricsAdders.readCounter.increment();
+        blobStoreMetricsAdders.bytesRead.add(size + 4);
+        blobStoreMetricsAdders.readTimer.add(System.nanoTime() - tic);
+        return buf;
+    }
 
-        return result;
+    private static int recordSize(byte[] inputBytes) {
+        return inputBytes.length + 4;
     }
 }
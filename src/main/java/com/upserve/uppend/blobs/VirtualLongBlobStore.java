@@ -31,7 +31,9 @@ public class VirtualLongBlobStore extends VirtualPageFileIO {
         final int size = recordSize(bytes);
         // Ensures that the long value is aligned with a single page.
         final long pos = appendPageAlignedPosition(size, 4, 12);
-        write(pos, byteRecord(val, bytes));
+        writeInt(pos, bytes.length);
+        super.writeLong(pos + 4, val);
+        if (bytes.length > 0) write(pos + 12, bytes);
 
         longBlobStoreMetricsAdders.appendCounter.increment();
         longBlobStoreMetricsAdders.bytesAppended.add(size);
@@ -103,12 +105,4 @@ public class VirtualLongBlobStore extends VirtualPageFileIO {
     private static int recordSize(byte[] inputBytes) {
         return inputBytes.length + 12;
     }
-
-    private static byte[] byteRecord(long val, byte[] inputBytes) {
-        byte[] result = new byte[recordSize(inputBytes)];
-        System.arraycopy(int2bytes(inputBytes.length), 0, result, 0, 4);
-        System.arraycopy(long2bytes(val), 0, result, 4, 8);
-        System.arraycopy(inputBytes, 0, result, 12, inputBytes.length);
-        return result;
-    }
 }
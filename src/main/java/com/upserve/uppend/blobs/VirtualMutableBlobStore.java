@@ -1,6 +1,7 @@
 package com.upserve.uppend.blobs;
 
 import com.google.common.hash.*;
+import com.google.common.primitives.Ints;
 import com.upserve.uppend.metrics.MutableBlobStoreMetrics;
 import org.slf4j.Logger;
 
@@ -26,7 +27,10 @@ public class VirtualMutableBlobStore extends VirtualPageFileIO {
     public void write(long position, byte[] bytes) {
         final long tic = System.nanoTime();
         final int size = recordSize(bytes);
-        super.write(position, byteRecord(bytes));
+        writeInt(position, bytes.length);
+        // The checksum bytes are the little endian murmur hash
+        writeInt(position + 4, Integer.reverseBytes(hashFunction.hashBytes(bytes).asInt()));
+        if (bytes.length > 0) super.write(position + 8, bytes);
         mutableBlobStoreMetricsAdders.writeCounter.increment();
         mutableBlobStoreMetricsAdders.bytesWritten.add(size);
         mutableBlobStoreMetricsAdders.writeTimer.add(System.nanoTime() - tic);
@@ -48,20 +52,19 @@ public class VirtualMutableBlobStore extends VirtualPageFileIO {
         int size = readInt(pos);
         byte[] buf = new byte[size];
 
-        byte[] checksum = new byte[4];
-        read(pos + 4, checksum);
+        int checksum = readInt(pos + 4);
 
         read(pos + 8, buf);
 
         if (log.isTraceEnabled()) log.trace("read mapped {} bytes from {} @ {}", size, virtualFileNumber, pos);
-        if (Arrays.equals(checksum, hashFunction.hashBytes(buf).asBytes())) {
+        if (checksum == Integer.reverseBytes(hashFunction.hashBytes(buf).asInt())) {
             mutableBlobStoreMetricsAdders.bytesRead.add(recordSize(buf));
             mutableBlobStoreMetricsAdders.readCounter.increment();
             mutableBlobStoreMetricsAdders.readTimer.add(System.nanoTime() - tic);
             return buf;
         } else {
             log.warn("Read at {} got size {}, checksum {} did not match bytes starting with {} (upto first 10)",
-                    pos, size, checksum,  Arrays.copyOfRange(buf, 0, 10 <= size ? 10 : size ));
+                    pos, size, Ints.toByteArray(checksum),  Arrays.copyOfRange(buf, 0, 10 <= size ? 10 : size ));
             throw new IllegalStateException("Checksum did not match for the requested blob");
         }
     }
@@ -69,17 +72,4 @@ public class VirtualMutableBlobStore extends VirtualPageFileIO {
     private static int recordSize(byte[] inputBytes) {
         return inputBytes.length + 8;
     }
-
-    private static byte[] byteChecksum(byte[] inputBytes) {
-        return hashFunction.hashBytes(inputBytes).asBytes();
-    }
-
-    private static byte[] byteRecord(byte[] inputBytes) {
-        byte[] result = new byte[recordSize(inputBytes)];
-        System.arraycopy(int2bytes(inputBytes.length), 0, result, 0, 4);
-        System.arraycopy(byteChecksum(inputBytes), 0, result, 4, 4);
-        System.arraycopy(inputBytes, 0, result, 8, inputBytes.length);
-
-        return result;
-    }
 }
@@ -9,6 +9,7 @@ import java.nio.*;
 import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
 import java.util.function.Supplier;
 import java.util.stream.IntStream;
@@ -41,6 +42,12 @@ import java.util.stream.IntStream;
  * Pages - a collection of bytes of size pageSize
  * <p>
  * Pages are interspersed with additional Page Tables as needed
+ * <p>
+ * Radix format: the high byte of the virtualFiles int records the format version. In the legacy format every one of
+ * the MAX_PAGE_TABLE_BLOCKS locations points to a Page Table. When a virtual file needs more Page Tables than the
+ * direct locations hold, the file is upgraded in place: the last location then points to a radix root of
+ * RADIX_ROOT_SIZE longs, each the location of a radix node of RADIX_NODE_SIZE longs, each the location of a Page
+ * Table. Files which never outgrow the direct Page Tables keep the legacy format.
  */
 public class VirtualPageFile implements Closeable {
     private static final Logger log = org.slf4j.LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
@@ -58,8 +65,20 @@ public class VirtualPageFile implements Closeable {
     // Maximum number of pages per record block
     private static final int PAGE_TABLE_SIZE = 1000;
 
+    private static final int FORMAT_VERSION_SHIFT = 24;
+    private static final int VIRTUAL_FILES_MASK = (1 << FORMAT_VERSION_SHIFT) - 1;
+    private static final int LEGACY_FORMAT = 0;
+    private static final int RADIX_FORMAT = 2;
+
+    // The last page table location is the radix root in the radix format
+    private static final int DIRECT_PAGE_TABLE_BLOCKS = MAX_PAGE_TABLE_BLOCKS - 1;
+    private static final int RADIX_ROOT_SIZE = 2048;
+    private static final int RADIX_NODE_SIZE = 1024;
+    private static final long MAX_PAGES = (long) (DIRECT_PAGE_TABLE_BLOCKS + RADIX_ROOT_SIZE * RADIX_NODE_SIZE) * PAGE_TABLE_SIZE;
+
     private static final int MAX_BUFFERS = 1024 * 64; // 128 TB per partition for 2Gb Bufffers
     private final MappedByteBuffer[] mappedByteBuffers;
+    private boolean buffersRetired; // guarded by mappedByteBuffers
     private final int bufferSize;
 
     final Path filePath;
@@ -70,6 +89,13 @@ public class VirtualPageFile implements Closeable {
     private final AtomicLong nextPagePosition;
     private final boolean readOnly;
     private final boolean cacheBuffers;
+    private final PageBackend pageBackend;
+    private final boolean hugePages;
+    private final MemoryLockBudget memoryLockBudget;
+    private final boolean lockPages;
+    private final UnmapFence unmapFence;
+    private final List<MemoryLockBudget.LockedRegion> lockedRegions = Collections.synchronizedList(new ArrayList<>());
+    private final ExtentPreallocator preallocator;
 
     private final AtomicLong[] virtualFilePositions; // the current position in the virtual file for each virtual file
     private final AtomicInteger[] virtualFilePageCounts; // the number of pages currently allocated for each virtual file
@@ -78,6 +104,11 @@ public class VirtualPageFile implements Closeable {
 
     private final MappedByteBuffer[] pageTables; // Array of Index-able list of page start locations for each virtual file
 
+    private volatile int formatVersion;
+    private volatile MappedByteBuffer radixRoot;
+    private final MappedByteBuffer[] radixNodes = new MappedByteBuffer[RADIX_ROOT_SIZE];
+    private final ConcurrentMap<Integer, MappedByteBuffer> radixPageTables = new ConcurrentHashMap<>();
+
     private final int virtualFiles;
     private final int pageSize;
 
@@ -96,23 +127,88 @@ public class VirtualPageFile implements Closeable {
     public void close() throws IOException {
         if (!channel.isOpen()) return;
 
-        Arrays.fill(mappedByteBuffers, null);
+        synchronized (lockedRegions) {
+            lockedRegions.forEach(memoryLockBudget::unlock);
+            lockedRegions.clear();
+        }
+
+        // The page buffers are unmapped once in-flight page reads have finished; the header and page tables are small
+        // and are left to the garbage collector
+        List<MappedByteBuffer> retired = new ArrayList<>();
+        synchronized (mappedByteBuffers) {
+            buffersRetired = true;
+            for (int bufferIndex = 0; bufferIndex < MAX_BUFFERS; bufferIndex++) {
+                if (mappedByteBuffers[bufferIndex] != null) {
+                    retired.add(mappedByteBuffers[bufferIndex]);
+                    mappedByteBuffers[bufferIndex] = null;
+                }
+            }
+        }
         Arrays.fill(pageTables, null);
+        Arrays.fill(radixNodes, null);
+        radixRoot = null;
+        radixPageTables.clear();
 
         if (!readOnly) {
             channel.truncate(nextPagePosition.get());
         }
+        preallocator.close();
         channel.close();
+        unmapFence.retire(retired);
+    }
+
+    /**
+     * Force the pages, page tables and header of a writable file to disk. Mapped buffers are forced whole, which
+     * writes back only their dirty pages; pages written through the channel backend are forced with the channel.
+     */
+    public void force() {
+        if (readOnly || !channel.isOpen()) return;
+
+        final int token = unmapFence.enter();
+        try {
+            for (MappedByteBuffer buffer : mappedByteBuffers) {
+                if (buffer != null) buffer.force();
+            }
+        } finally {
+            unmapFence.exit(token);
+        }
+        for (MappedByteBuffer buffer : pageTables) {
+            if (buffer != null) buffer.force();
+        }
+        radixPageTables.values().forEach(MappedByteBuffer::force);
+        for (MappedByteBuffer buffer : radixNodes) {
+            if (buffer != null) buffer.force();
+        }
+        MappedByteBuffer root = radixRoot;
+        if (root != null) root.force();
+        headerBuffer.force();
+        headerBlockLocations.force();
+
+        if (pageBackend == PageBackend.CHANNEL) {
+            try {
+                channel.force(false);
+            } catch (IOException e) {
+                throw new UncheckedIOException("unable to force " + filePath, e);
+            }
+        }
     }
 
     int getVirtualFiles() {
         return virtualFiles;
     }
 
+    int getPageSize() {
+        return pageSize;
+    }
+
     public boolean isReadOnly() {
         return readOnly;
     }
 
+    boolean isCacheBuffers() {
+        return cacheBuffers;
+    }
+
     public int getAllocatedPageCount() {
         return pageAllocationCount.intValue();
     }
@@ -204,8 +300,8 @@ public class VirtualPageFile implements Closeable {
      */
     int pageNumber(long pos) {
         long result = (pos / (long) pageSize);
-        if (result >= PAGE_TABLE_SIZE * MAX_PAGE_TABLE_BLOCKS)
-            throw new IllegalStateException("The position " + pos + " exceeds the page limit " + PAGE_TABLE_SIZE * MAX_PAGE_TABLE_BLOCKS + ", for file" + getFilePath() + "with page size " + pageSize );
+        if (result >= MAX_PAGES)
+            throw new IllegalStateException("The position " + pos + " exceeds the page limit " + MAX_PAGES + ", for file" + getFilePath() + "with page size " + pageSize );
         return (int) result;
     }
 
@@ -225,7 +321,7 @@ public class VirtualPageFile implements Closeable {
         }
 
         // Laptop benchmark 2019-11-09 shows using mapped pages for writing is faster. Confirm in production env.
-        return mappedPage(startPosition);
+        return page(startPosition);
     }
 
     /**
@@ -237,7 +333,11 @@ public class VirtualPageFile implements Closeable {
      */
     Page getExistingPage(int virtualFileNumber, int pageNumber) {
         long startPosition = getValidPageStart(virtualFileNumber, pageNumber);
-        return mappedPage(startPosition);
+        return page(startPosition);
+    }
+
+    private Page page(long startPosition) {
+        return pageBackend == PageBackend.CHANNEL ? filePage(startPosition) : mappedPage(startPosition);
     }
 
     private MappedPage mappedPage(long startPosition) {
@@ -245,15 +345,77 @@ public class VirtualPageFile implements Closeable {
         final int mapIndex = (int) (postHeaderPosition / bufferSize);
         final int mapPosition = (int) (postHeaderPosition % bufferSize);
 
-        MappedByteBuffer bigbuffer = ensureBuffered(mapIndex);
-
-        return new MappedPage(bigbuffer, mapPosition, pageSize);
+        // The page looks the buffer up inside the unmap fence on each access rather than holding on to it
+        ensureBuffered(mapIndex);
+        return new MappedPage(() -> ensureBuffered(mapIndex), mapPosition, pageSize, unmapFence);
     }
 
     private FilePage filePage(long startPosition) {
         return new FilePage(channel, startPosition, pageSize);
     }
 
+    /**
+     * Advise the kernel how the mapped pages of a virtual file will be used. Pages which are contiguous in the file are
+     * advised together, so a defragmented virtual file takes one call per mapped buffer. Files using the channel page
+     * backend are not mapped and are left alone.
+     *
+     * @param virtualFileNumber the virtual file number
+     * @param firstPage the first page to advise
+     * @param pageCount the number of pages to advise, limited to the pages allocated
+     * @param advice the advice
+     */
+    void advise(int virtualFileNumber, int firstPage, int pageCount, NativeIO.Advice advice) {
+        if (pageBackend != PageBackend.MAPPED) return;
+        forEachPageRun(virtualFileNumber, firstPage, pageCount, (runStart, runEnd) -> adviseRun(runStart, runEnd, advice));
+    }
+
+    // Calls the consumer with the start and end of each run of pages which are contiguous in a mapped buffer
+    private void forEachPageRun(int virtualFileNumber, int firstPage, int pageCount, LongBinaryConsumer runConsumer) {
+        final int allocatedPages = readOnly ? getHeaderVirtualFilePageCount(virtualFileNumber) : virtualFilePageCounts[virtualFileNumber].get();
+        final int endPage = (int) Math.min((long) firstPage + pageCount, allocatedPages);
+
+        long runStart = -1;
+        long runEnd = -1;
+        for (int pageNumber = firstPage; pageNumber < endPage; pageNumber++) {
+            final long pageStart = getValidPageStart(virtualFileNumber, pageNumber);
+            if (pageStart == runEnd && (pageStart - totalHeaderSize) / bufferSize == (runStart - totalHeaderSize) / bufferSize) {
+                runEnd += pageSize;
+            } else {
+                if (runStart >= 0) runConsumer.accept(runStart, runEnd);
+                runStart = pageStart;
+                runEnd = pageStart + pageSize;
+            }
+        }
+        if (runStart >= 0) runConsumer.accept(runStart, runEnd);
+    }
+
+    private interface LongBinaryConsumer {
+        void accept(long first, long second);
+    }
+
+    private void adviseRun(long runStart, long runEnd, NativeIO.Advice advice) {
+        final long postHeaderPosition = runStart - totalHeaderSize;
+        final int mapIndex = (int) (postHeaderPosition / bufferSize);
+        final int mapPosition = (int) (postHeaderPosition % bufferSize);
+        try {
+            NativeIO.madvise(ensureBuffered(mapIndex), mapPosition, (int) (runEnd - runStart), advice);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to advise " + advice + " for pages at " + runStart + " in file " + filePath, e);
+        }
+    }
+
+    private void lockRun(long runStart, long runEnd) {
+        final long postHeaderPosition = runStart - totalHeaderSize;
+        final int mapIndex = (int) (postHeaderPosition / bufferSize);
+        final int mapPosition = (int) (postHeaderPosition % bufferSize);
+        lock(ensureBuffered(mapIndex), mapPosition, (int) (runEnd - runStart));
+    }
+
+    private void lock(MappedByteBuffer buffer, int offset, int length) {
+        MemoryLockBudget.LockedRegion region = memoryLockBudget.lock(buffer, offset, length);
+        if (region != null) lockedRegions.add(region);
+    }
+
     long getFileSize(){
         try {
             return channel.size();
@@ -267,11 +429,31 @@ public class VirtualPageFile implements Closeable {
     }
 
     public VirtualPageFile(Path filePath, int virtualFiles, int pageSize, int targetBufferSize, boolean readOnly, boolean cacheBuffers) {
+        this(filePath, virtualFiles, pageSize, targetBufferSize, readOnly, new Options().withCacheBuffers(cacheBuffers));
+    }
+
+    /**
+     * Open or create a virtual page file
+     *
+     * @param filePath the path of the file
+     * @param virtualFiles the number of virtual files
+     * @param pageSize the size of a page in bytes
+     * @param targetBufferSize the size of the mapped buffers holding the pages
+     * @param readOnly open the file read only
+     * @param options how the pages are read, written, mapped and locked
+     */
+    public VirtualPageFile(Path filePath, int virtualFiles, int pageSize, int targetBufferSize, boolean readOnly, Options options) {
+        final PageBackend pageBackend = options.getPageBackend();
         this.filePath = filePath;
         this.readOnly = readOnly;
         this.virtualFiles = virtualFiles;
         this.pageSize = pageSize;
-        this.cacheBuffers = cacheBuffers;
+        this.cacheBuffers = options.getCacheBuffers();
+        this.pageBackend = pageBackend;
+        this.hugePages = options.getHugePages();
+        this.memoryLockBudget = options.getMemoryLockBudget();
+        this.lockPages = options.getLockPages() && pageBackend == PageBackend.MAPPED;
+        this.unmapFence = new UnmapFence(options.getEagerUnmapping());
 
         this.mappedByteBuffers = new MappedByteBuffer[MAX_BUFFERS];
 
@@ -306,10 +488,12 @@ public class VirtualPageFile implements Closeable {
             initialSize = channel.size();
             headerBlockLocations = channel.map(mapMode, SELF_DESCRIBING_HEADER_SIZE, PAGE_TABLE_BLOCK_LOCATION_HEADER_SIZE);
             NativeIO.madvise(headerBlockLocations, NativeIO.Advice.WillNeed);
+            lock(headerBlockLocations, 0, PAGE_TABLE_BLOCK_LOCATION_HEADER_SIZE);
 
             LongBuffer longHeaderBlockLocations = headerBlockLocations.asLongBuffer();
             ByteBuffer intBuffer = LOCAL_INT_BUFFER.get();
             if (!readOnly && initialSize == 0) {
+                formatVersion = LEGACY_FORMAT;
                 intBuffer.putInt(virtualFiles);
                 channel.write(intBuffer.flip(), 0);
 
@@ -320,11 +504,15 @@ public class VirtualPageFile implements Closeable {
             } else {
                 channel.read(intBuffer, 0);
                 int val = intBuffer.flip().getInt();
+                formatVersion = val >>> FORMAT_VERSION_SHIFT;
+                val &= VIRTUAL_FILES_MASK;
+                if (formatVersion != LEGACY_FORMAT && formatVersion != RADIX_FORMAT)
+                    throw new IllegalArgumentException("Unknown format version " + formatVersion + " in file " + getFilePath());
                 if (val != virtualFiles)
                     throw new IllegalArgumentException("The specfied number of virtual files " + virtualFiles + " does not match the value in the datastore " + val + " in file " + getFilePath());
 
                 channel.read(intBuffer, 4);
-                val = intBuffer.flip().getInt();
+                val = intBuffer.flip().getInt() & VIRTUAL_FILES_MASK;
                 if (val != virtualFiles)
                     throw new IllegalArgumentException("The specfied page size " + pageSize + " does not match the value in the datastore " + val + " in file " + getFilePath());
 
@@ -344,6 +532,7 @@ public class VirtualPageFile implements Closeable {
         try {
             headerBuffer = channel.map(mapMode, SELF_DESCRIBING_HEADER_SIZE + PAGE_TABLE_BLOCK_LOCATION_HEADER_SIZE, headerSize);
             NativeIO.madvise(headerBuffer, NativeIO.Advice.WillNeed);
+            lock(headerBuffer, 0, headerSize);
         } catch (IOException e) {
             throw new UncheckedIOException("unable to map header for path: " + filePath, e);
         }
@@ -368,15 +557,17 @@ public class VirtualPageFile implements Closeable {
         try {
             pageTables[0] = channel.map(mapMode, headerSize + SELF_DESCRIBING_HEADER_SIZE + PAGE_TABLE_BLOCK_LOCATION_HEADER_SIZE, tableSize);
             NativeIO.madvise(pageTables[0], NativeIO.Advice.WillNeed);
+            lock(pageTables[0], 0, tableSize);
         } catch (IOException e) {
             throw new UncheckedIOException("unable to map page locations for path: " + filePath, e);
         }
 
         long lastTableStart = 0;
-        for(int i=0; i< MAX_PAGE_TABLE_BLOCKS; i++) {
-            long position = headerBlockLocations.get(i);
+        final int directTableBlocks = formatVersion == RADIX_FORMAT ? DIRECT_PAGE_TABLE_BLOCKS : MAX_PAGE_TABLE_BLOCKS;
+        for(int i=0; i< directTableBlocks; i++) {
+            long position = headerBlockLocations.getLong(i * 8);
             if (position > 0){
-                lastTableStart = position;
+                lastTableStart = Math.max(lastTableStart, position);
             }
         }
 
@@ -384,6 +575,11 @@ public class VirtualPageFile implements Closeable {
             throw new IllegalStateException("Bad value for last table start in header");
         }
 
+        long lastTableEnd = lastTableStart > 0 ? lastTableStart + allocationSize(tableSize) : 0;
+        if (formatVersion == RADIX_FORMAT) {
+            lastTableEnd = Math.max(lastTableEnd, radixTablesEnd());
+        }
+
         long lastStartPosition = IntStream
                 .range(0, virtualFiles)
                 .mapToLong(index -> {
@@ -394,12 +590,65 @@ public class VirtualPageFile implements Closeable {
                 .max().orElse(0L);
 
         if (lastStartPosition == 0) {
-            nextPagePosition = new AtomicLong(totalHeaderSize);
+            nextPagePosition = new AtomicLong(Math.max(totalHeaderSize, lastTableEnd));
         } else if (lastStartPosition < totalHeaderSize) {
             throw new IllegalStateException("file position " + lastStartPosition + " is less than header size: " + headerSize + " in file " + filePath);
         } else {
-            nextPagePosition = new AtomicLong(Math.max(lastStartPosition + pageSize,  lastTableStart + tableSize));
-            preloadBuffers(nextPagePosition.get());
+            nextPagePosition = new AtomicLong(Math.max(lastStartPosition + pageSize,  lastTableEnd));
+            if (pageBackend == PageBackend.MAPPED) preloadBuffers(nextPagePosition.get());
+        }
+
+        preallocator = new ExtentPreallocator(filePath, readOnly ? 0 : options.getPreallocationChunkSize(), nextPagePosition.get());
+
+        if (this.lockPages) {
+            for (int virtualFileNumber = 0; virtualFileNumber < virtualFiles; virtualFileNumber++) {
+                forEachPageRun(virtualFileNumber, 0, Integer.MAX_VALUE, this::lockRun);
+            }
+        }
+    }
+
+    /**
+     * Rewrite a closed virtual page file so that the pages of each virtual file are contiguous, in virtual file order.
+     * Positions in the virtual files do not change. The pages are copied to a new file which then replaces the
+     * original atomically, an interrupted rewrite leaves the original untouched.
+     *
+     * @param filePath the path of the file
+     * @param virtualFiles the number of virtual files
+     * @param pageSize the size of a page in bytes
+     * @param targetBufferSize the size of the mapped buffers holding the pages
+     */
+    public static void defragment(Path filePath, int virtualFiles, int pageSize, int targetBufferSize) {
+        Path defragmentingPath = filePath.resolveSibling(filePath.getFileName() + ".defragmenting");
+        try {
+            Files.deleteIfExists(defragmentingPath);
+
+            long pages = 0;
+            try (VirtualPageFile source = new VirtualPageFile(filePath, virtualFiles, pageSize, targetBufferSize, true);
+                 VirtualPageFile target = new VirtualPageFile(defragmentingPath, virtualFiles, pageSize, targetBufferSize, false)) {
+                byte[] page = new byte[pageSize];
+                for (int virtualFileNumber = 0; virtualFileNumber < virtualFiles; virtualFileNumber++) {
+                    final int pageCount = source.getHeaderVirtualFilePageCount(virtualFileNumber);
+                    // Allocate all the pages of the virtual file together
+                    if (pageCount > 0) target.allocatePosition(virtualFileNumber, pageCount - 1);
+                    for (int pageNumber = 0; pageNumber < pageCount; pageNumber++) {
+                        source.getExistingPage(virtualFileNumber, pageNumber).get(0, page, 0);
+                        target.getExistingPage(virtualFileNumber, pageNumber).put(0, page, 0);
+                    }
+                    pages += pageCount;
+
+                    final long position = source.getHeaderVirtualFilePosition(virtualFileNumber);
+                    target.getAtomicVirtualFilePosition(virtualFileNumber).set(position);
+                    target.putHeaderVirtualFilePosition(virtualFileNumber, position);
+                }
+            }
+
+            try (FileChannel chan = FileChannel.open(defragmentingPath, StandardOpenOption.WRITE)) {
+                chan.force(true);
+            }
+            Files.move(defragmentingPath, filePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            log.info("defragmented {} pages in {}", pages, filePath);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to defragment " + filePath, e);
         }
     }
 
@@ -410,7 +659,7 @@ public class VirtualPageFile implements Closeable {
         return ensurePageTable(pageTableNumber).get(PAGE_TABLE_SIZE * virtualFileNumber + pageInTable);
     }
 
-    private long getValidPageStart(int virtualFileNumber, int pageNumber) {
+    long getValidPageStart(int virtualFileNumber, int pageNumber) {
         long result = getRawPageStart(virtualFileNumber, pageNumber);
         if (result < totalHeaderSize) {
             if (result == 0) {
@@ -464,17 +713,29 @@ public class VirtualPageFile implements Closeable {
 
         int pagesToAllocate = pageNumber - currentPageCount + 1;
         // Do the atomic stuff
-        long firstPageStart = nextPagePosition.getAndAdd(pageSize * pagesToAllocate);
+        long firstPageStart = nextPagePosition.getAndAdd((long) pageSize * pagesToAllocate);
+        preallocator.reserve(firstPageStart + (long) pageSize * pagesToAllocate);
+
+        if (pageBackend == PageBackend.CHANNEL) {
+            // Mapping extends the file, so extend it here for reads of allocated pages which have not been written
+            try {
+                channel.write(ByteBuffer.wrap(new byte[1]), firstPageStart + (long) pageSize * pagesToAllocate - 1);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to extend " + filePath + " for new pages", e);
+            }
+        }
 
         for (int i=0; i < pagesToAllocate; i++) {
             // Update the persistent table of pages
-            putPageStart(virtualFileNumber, currentPageCount + i, firstPageStart + i * pageSize);
+            putPageStart(virtualFileNumber, currentPageCount + i, firstPageStart + (long) i * pageSize);
             // Now that the page is allocated and persistent - update the counter which is the lock controlling access
         }
 
         putHeaderVirtualFilePageCount(virtualFileNumber, currentPageCount + pagesToAllocate);
         virtualFilePageCounts[virtualFileNumber].set(currentPageCount + pagesToAllocate);
 
+        if (lockPages) forEachPageRun(virtualFileNumber, currentPageCount, pagesToAllocate, this::lockRun);
+
         // Stats only
         pageAllocationCount.add(pagesToAllocate);
     }
@@ -485,10 +746,12 @@ public class VirtualPageFile implements Closeable {
             synchronized (mappedByteBuffers) {
                 buffer = mappedByteBuffers[bufferIndex];
                 if (buffer == null) {
+                    if (buffersRetired) throw new IllegalStateException("Unable to map buffer for index " + bufferIndex + ", file is closed: " + filePath);
                     long bufferStart = ((long) bufferIndex * bufferSize) + totalHeaderSize;
                     try {
                         buffer = channel.map(mapMode, bufferStart, bufferSize);
                         if (!cacheBuffers) NativeIO.madvise(buffer, NativeIO.Advice.Random);
+                        if (hugePages) NativeIO.adviseHugePages(buffer);
                     } catch (IOException e) {
                         throw new UncheckedIOException("Unable to map buffer for index " + bufferIndex + " at (" + bufferStart +  " start position) in file " + filePath, e);
                     }
@@ -500,6 +763,11 @@ public class VirtualPageFile implements Closeable {
     }
 
     private LongBuffer ensurePageTable(int pageNumber) {
+        if (pageNumber >= DIRECT_PAGE_TABLE_BLOCKS) {
+            MappedByteBuffer legacyTable = pageNumber == DIRECT_PAGE_TABLE_BLOCKS ? pageTables[pageNumber] : null;
+            return legacyTable != null ? legacyTable.asLongBuffer() : ensureRadixPageTable(pageNumber);
+        }
+
         MappedByteBuffer buffer = pageTables[pageNumber];
         if (buffer == null) {
             synchronized (pageTables) {
@@ -508,24 +776,12 @@ public class VirtualPageFile implements Closeable {
 
                     long bufferStart = headerBlockLocations.asLongBuffer().get(pageNumber);
 
-                    // All allocated space must be in multiples of pageSize to guarantee a buffer will not end in the middle of a page
-                    final int apparentSize;
-                    if (pageSize > tableSize) {
-                        apparentSize = pageSize;
-                    } else {
-                        apparentSize = (tableSize / pageSize + 1) * pageSize;
-                    }
-
                     if (!readOnly && bufferStart == 0) {
-                      bufferStart = nextPagePosition.getAndAdd(apparentSize);
+                      bufferStart = nextPagePosition.getAndAdd(allocationSize(tableSize));
                       headerBlockLocations.asLongBuffer().put(pageNumber, bufferStart);
                     }
-                    try {
-                        buffer = channel.map(mapMode, bufferStart, tableSize);
-                        NativeIO.madvise(buffer, NativeIO.Advice.WillNeed);
-                    } catch (IOException e) {
-                        throw new UncheckedIOException("Unable to map buffer for page table " + pageNumber + " at (" + bufferStart +  " start position) in file " + filePath, e);
-                    }
+                    buffer = mapTable(bufferStart, tableSize, "page table " + pageNumber);
+                    lock(buffer, 0, tableSize);
                     pageTables[pageNumber] = buffer;
                 }
             }
@@ -533,6 +789,143 @@ public class VirtualPageFile implements Closeable {
         return buffer.asLongBuffer();
     }
 
+    /**
+     * Get a page table past the direct page tables. A legacy file whose last direct location already holds a page
+     * table keeps using it, otherwise the file is upgraded to the radix format the first time it is needed.
+     */
+    private LongBuffer ensureRadixPageTable(int pageNumber) {
+        MappedByteBuffer buffer = radixPageTables.get(pageNumber);
+        if (buffer != null) return buffer.asLongBuffer();
+
+        synchronized (pageTables) {
+            buffer = radixPageTables.get(pageNumber);
+            if (buffer != null) return buffer.asLongBuffer();
+
+            if (readFormatVersion() == LEGACY_FORMAT && headerBlockLocations.getLong(DIRECT_PAGE_TABLE_BLOCKS * 8) != 0) {
+                if (pageNumber != DIRECT_PAGE_TABLE_BLOCKS) {
+                    throw new IllegalStateException("The page table " + pageNumber + " exceeds the limit " + MAX_PAGE_TABLE_BLOCKS + " of the legacy format in file " + getFilePath());
+                }
+                buffer = mapTable(headerBlockLocations.getLong(DIRECT_PAGE_TABLE_BLOCKS * 8), tableSize, "page table " + pageNumber);
+                lock(buffer, 0, tableSize);
+                pageTables[pageNumber] = buffer;
+                return buffer.asLongBuffer();
+            }
+
+            final int radixIndex = pageNumber - DIRECT_PAGE_TABLE_BLOCKS;
+            LongBuffer node = ensureRadixNode(radixIndex / RADIX_NODE_SIZE);
+            long bufferStart = node.get(radixIndex % RADIX_NODE_SIZE);
+            if (bufferStart == 0) {
+                if (readOnly) throw new IllegalStateException("The page table " + pageNumber + " is not allocated in file " + getFilePath());
+                bufferStart = nextPagePosition.getAndAdd(allocationSize(tableSize));
+                node.put(radixIndex % RADIX_NODE_SIZE, bufferStart);
+            }
+            buffer = mapTable(bufferStart, tableSize, "page table " + pageNumber);
+            lock(buffer, 0, tableSize);
+            radixPageTables.put(pageNumber, buffer);
+        }
+        return buffer.asLongBuffer();
+    }
+
+    // Called holding the page tables lock
+    private LongBuffer ensureRadixNode(int rootIndex) {
+        MappedByteBuffer node = radixNodes[rootIndex];
+        if (node == null) {
+            LongBuffer root = ensureRadixRoot();
+            long nodeStart = root.get(rootIndex);
+            if (nodeStart == 0) {
+                if (readOnly) throw new IllegalStateException("The radix node " + rootIndex + " is not allocated in file " + getFilePath());
+                nodeStart = nextPagePosition.getAndAdd(allocationSize(RADIX_NODE_SIZE * 8));
+                root.put(rootIndex, nodeStart);
+            }
+            node = mapTable(nodeStart, RADIX_NODE_SIZE * 8, "radix node " + rootIndex);
+            lock(node, 0, RADIX_NODE_SIZE * 8);
+            radixNodes[rootIndex] = node;
+        }
+        return node.asLongBuffer();
+    }
+
+    // Called holding the page tables lock
+    private LongBuffer ensureRadixRoot() {
+        if (radixRoot == null) {
+            long rootStart = headerBlockLocations.getLong(DIRECT_PAGE_TABLE_BLOCKS * 8);
+            if (rootStart == 0) {
+                if (readOnly) throw new IllegalStateException("The radix root is not allocated in file " + getFilePath());
+                // Record the version first so the root is never mistaken for a legacy page table
+                writeFormatVersion(RADIX_FORMAT);
+                rootStart = nextPagePosition.getAndAdd(allocationSize(RADIX_ROOT_SIZE * 8));
+                headerBlockLocations.putLong(DIRECT_PAGE_TABLE_BLOCKS * 8, rootStart);
+                log.info("Upgraded {} to radix page tables", filePath);
+            }
+            MappedByteBuffer root = mapTable(rootStart, RADIX_ROOT_SIZE * 8, "radix root");
+            lock(root, 0, RADIX_ROOT_SIZE * 8);
+            radixRoot = root;
+        }
+        return radixRoot.asLongBuffer();
+    }
+
+    // Called during initialize only - the end of the last radix root, node or page table
+    private long radixTablesEnd() {
+        long rootStart = headerBlockLocations.getLong(DIRECT_PAGE_TABLE_BLOCKS * 8);
+        if (rootStart == 0) return 0;
+        long end = rootStart + allocationSize(RADIX_ROOT_SIZE * 8);
+        LongBuffer root = mapTable(rootStart, RADIX_ROOT_SIZE * 8, "radix root").asLongBuffer();
+        for (int rootIndex = 0; rootIndex < RADIX_ROOT_SIZE; rootIndex++) {
+            long nodeStart = root.get(rootIndex);
+            if (nodeStart == 0) continue;
+            end = Math.max(end, nodeStart + allocationSize(RADIX_NODE_SIZE * 8));
+            LongBuffer node = mapTable(nodeStart, RADIX_NODE_SIZE * 8, "radix node " + rootIndex).asLongBuffer();
+            for (int nodeIndex = 0; nodeIndex < RADIX_NODE_SIZE; nodeIndex++) {
+                long tableStart = node.get(nodeIndex);
+                if (tableStart > 0) end = Math.max(end, tableStart + allocationSize(tableSize));
+            }
+        }
+        return end;
+    }
+
+    private int readFormatVersion() {
+        if (formatVersion == LEGACY_FORMAT) {
+            // A writer may have upgraded the file since it was opened
+            ByteBuffer intBuffer = LOCAL_INT_BUFFER.get();
+            try {
+                channel.read(intBuffer, 0);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to read the format version of " + filePath, e);
+            }
+            formatVersion = intBuffer.flip().getInt() >>> FORMAT_VERSION_SHIFT;
+        }
+        return formatVersion;
+    }
+
+    private void writeFormatVersion(int version) {
+        ByteBuffer intBuffer = LOCAL_INT_BUFFER.get();
+        intBuffer.putInt(version << FORMAT_VERSION_SHIFT | virtualFiles).flip();
+        try {
+            channel.write(intBuffer, 0);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to write the format version of " + filePath, e);
+        }
+        formatVersion = version;
+    }
+
+    // All allocated space must be in multiples of pageSize to guarantee a buffer will not end in the middle of a page
+    private int allocationSize(int size) {
+        if (pageSize > size) {
+            return pageSize;
+        } else {
+            return (size / pageSize + 1) * pageSize;
+        }
+    }
+
+    private MappedByteBuffer mapTable(long bufferStart, int size, String description) {
+        try {
+            MappedByteBuffer buffer = channel.map(mapMode, bufferStart, size);
+            NativeIO.madvise(buffer, NativeIO.Advice.WillNeed);
+            return buffer;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to map buffer for " + description + " at (" + bufferStart +  " start position) in file " + filePath, e);
+        }
+    }
+
     // Called during initialize only - no need to synchronize
     private void preloadBuffers(long nextPagePosition){
         for (int bufferIndex=0; bufferIndex<MAX_BUFFERS; bufferIndex++){
@@ -543,10 +936,130 @@ public class VirtualPageFile implements Closeable {
             try {
                 MappedByteBuffer buffer = channel.map(mapMode, bufferStart, bufferSize);
                 if (!cacheBuffers) NativeIO.madvise(buffer, NativeIO.Advice.Random);
+                if (hugePages) NativeIO.adviseHugePages(buffer);
                 mappedByteBuffers[bufferIndex] = buffer;
             } catch (IOException e) {
                 throw new UncheckedIOException("Unable to preload mapped buffer for index " + bufferIndex + " at (" + bufferStart + " start position) in file "  + filePath, e);
             }
         }
     }
+
+    /**
+     * How the pages of a virtual page file are read, written, mapped and locked, set with the same with methods as the
+     * store builders. The defaults are mapped pages with the default page cache advice.
+     */
+    public static class Options {
+        private boolean cacheBuffers = true;
+        private PageBackend pageBackend = PageBackend.MAPPED;
+        private int preallocationChunkSize = 0;
+        private boolean hugePages = false;
+        private MemoryLockBudget memoryLockBudget = new MemoryLockBudget(0);
+        private boolean lockPages = false;
+        private boolean eagerUnmapping = false;
+
+        /**
+         * @param cacheBuffers use the default page cache advice for mapped buffers rather than random access
+         * @return these options
+         */
+        public Options withCacheBuffers(boolean cacheBuffers) {
+            this.cacheBuffers = cacheBuffers;
+            return this;
+        }
+
+        /**
+         * @param pageBackend how pages are read and written
+         * @return these options
+         */
+        public Options withPageBackend(PageBackend pageBackend) {
+            this.pageBackend = pageBackend;
+            return this;
+        }
+
+        /**
+         * @param preallocationChunkSize the number of bytes to reserve with fallocate ahead of new pages, zero for none
+         * @return these options
+         */
+        public Options withPreallocationChunkSize(int preallocationChunkSize) {
+            this.preallocationChunkSize = preallocationChunkSize;
+            return this;
+        }
+
+        /**
+         * @param hugePages advise transparent huge pages for the mapped buffers holding the pages
+         * @return these options
+         */
+        public Options withHugePages(boolean hugePages) {
+            this.hugePages = hugePages;
+            return this;
+        }
+
+        /**
+         * @param memoryLockBudget the budget for locking the header and page tables in memory
+         * @return these options
+         */
+        public Options withMemoryLockBudget(MemoryLockBudget memoryLockBudget) {
+            this.memoryLockBudget = memoryLockBudget;
+            return this;
+        }
+
+        /**
+         * @param lockPages also lock the pages in memory, for small files read on every lookup
+         * @return these options
+         */
+        public Options withLockPages(boolean lockPages) {
+            this.lockPages = lockPages;
+            return this;
+        }
+
+        /**
+         * @param eagerUnmapping unmap the buffers holding the pages on close instead of leaving them to the garbage
+         *                       collector
+         * @return these options
+         */
+        public Options withEagerUnmapping(boolean eagerUnmapping) {
+            this.eagerUnmapping = eagerUnmapping;
+            return this;
+        }
+
+        public boolean getCacheBuffers() {
+            return cacheBuffers;
+        }
+
+        public PageBackend getPageBackend() {
+            return pageBackend;
+        }
+
+        public int getPreallocationChunkSize() {
+            return preallocationChunkSize;
+        }
+
+        public boolean getHugePages() {
+            return hugePages;
+        }
+
+        public MemoryLockBudget getMemoryLockBudget() {
+            return memoryLockBudget;
+        }
+
+        public boolean getLockPages() {
+            return lockPages;
+        }
+
+        public boolean getEagerUnmapping() {
+            return eagerUnmapping;
+        }
+
+        @Override
+        public String toString() {
+            return "Options{" +
+                    "cacheBuffers=" + cacheBuffers +
+                    ", pageBackend=" + pageBackend +
+                    ", preallocationChunkSize=" + preallocationChunkSize +
+                    ", hugePages=" + hugePages +
+                    ", memoryLockBudget=" + memoryLockBudget +
+                    ", lockPages=" + lockPages +
+                    ", eagerUnmapping=" + eagerUnmapping +
+                    '}';
+        }
+    }
 }
@@ -1,19 +1,16 @@
 package com.upserve.uppend.blobs;
 
 import com.google.common.primitives.*;
-import com.upserve.uppend.util.ThreadLocalByteBuffers;
 import org.slf4j.Logger;
 
 import java.io.*;
 import java.lang.invoke.MethodHandles;
 import java.nio.ByteBuffer;
-import java.util.function.Supplier;
 
 public class VirtualPageFileIO {
     private static final Logger log = org.slf4j.LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
-    private static final Supplier<ByteBuffer> LOCAL_INT_BUFFER = ThreadLocalByteBuffers.LOCAL_INT_BUFFER;
-    private static final Supplier<ByteBuffer> LOCAL_LONG_BUFFER = ThreadLocalByteBuffers.LOCAL_LONG_BUFFER;
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0).asReadOnlyBuffer();
 
     final int virtualFileNumber;
     private final VirtualPageFile virtualPageFile;
@@ -52,23 +49,23 @@ public class VirtualPageFileIO {
     }
 
     void writeInt(long pos, int val) {
-        write(pos, int2bytes(val));
-    }
-
-    static byte[] int2bytes(int val) {
-        ByteBuffer intBuf = LOCAL_INT_BUFFER.get();
-        intBuf.putInt(val).flip();
-        return intBuf.array();
+        final int pagePosition = virtualPageFile.pagePosition(pos);
+        if (pagePosition >= 0 && pagePosition + 4 <= virtualPageFile.getPageSize()) {
+            virtualPageFile.getOrCreatePage(virtualFileNumber, virtualPageFile.pageNumber(pos)).putInt(pagePosition, val);
+        } else {
+            // The int spans pages
+            write(pos, Ints.toByteArray(val));
+        }
     }
 
     void writeLong(long pos, long val) {
-        write(pos, long2bytes(val));
-    }
-
-    static byte[] long2bytes(long val) {
-        ByteBuffer longBuf = LOCAL_LONG_BUFFER.get();
-        longBuf.putLong(val).flip();
-        return longBuf.array();
+        final int pagePosition = virtualPageFile.pagePosition(pos);
+        if (pagePosition >= 0 && pagePosition + 8 <= virtualPageFile.getPageSize()) {
+            virtualPageFile.getOrCreatePage(virtualFileNumber, virtualPageFile.pageNumber(pos)).putLong(pagePosition, val);
+        } else {
+            // The long spans pages
+            write(pos, Longs.toByteArray(val));
+        }
     }
 
     void write(long pos, byte[] bytes) {
@@ -96,14 +93,24 @@ public class VirtualPageFileIO {
     }
 
     int readInt(long pos) {
-        // TODO make thread local byte array?
+        final int pagePosition = virtualPageFile.pagePosition(pos);
+        if (pagePosition >= 0 && pagePosition + 4 <= virtualPageFile.getPageSize()) {
+            return virtualPageFile.getExistingPage(virtualFileNumber, virtualPageFile.pageNumber(pos)).getInt(pagePosition);
+        }
+
+        // The int spans pages
         byte[] buf = new byte[4];
         read(pos, buf);
         return Ints.fromByteArray(buf);
     }
 
     long readLong(long pos) {
-        // TODO make thread local byte array?
+        final int pagePosition = virtualPageFile.pagePosition(pos);
+        if (pagePosition >= 0 && pagePosition + 8 <= virtualPageFile.getPageSize()) {
+            return virtualPageFile.getExistingPage(virtualFileNumber, virtualPageFile.pageNumber(pos)).getLong(pagePosition);
+        }
+
+        // The long spans pages
         byte[] buf = new byte[8];
         read(pos, buf);
         return Longs.fromByteArray(buf);
@@ -118,6 +125,28 @@ public class VirtualPageFileIO {
         }
     }
 
+    /**
+     * Read bytes as a read only buffer. When the bytes are within one mapped page the buffer is a slice of the page,
+     * otherwise they are copied into a new buffer.
+     *
+     * @param pos the position to read from
+     * @param size the number of bytes to read
+     * @return a read only buffer of size bytes
+     */
+    ByteBuffer readBuffer(long pos, int size) {
+        if (size == 0) return EMPTY_BUFFER;
+        Page page = virtualPageFile.getExistingPage(virtualFileNumber, virtualPageFile.pageNumber(pos));
+        ByteBuffer buffer = page.buffer(virtualPageFile.pagePosition(pos), size);
+        if (buffer.remaining() == size) {
+            return buffer;
+        }
+
+        // The bytes span pages
+        byte[] buf = new byte[size];
+        read(pos, buf);
+        return ByteBuffer.wrap(buf).asReadOnlyBuffer();
+    }
+
     private int readPagedOffset(long pos, byte[] buf, int offset) {
         int pageNumber = virtualPageFile.pageNumber(pos);
 
@@ -32,7 +32,9 @@ import java.util.concurrent.Callable;
         subcommands = {
                 CommandVersion.class,
                 CommandBenchmark.class,
-                CommandFileStoreBenchmark.class
+                CommandFileStoreBenchmark.class,
+                CommandCompact.class,
+                CommandDefragment.class
         }
 )
 public class Cli implements Callable<Void> {
@@ -32,7 +32,7 @@ public class CommandBenchmark implements Callable<Void> {
     @Parameters(index = "0", description = "Store path")
     Path path;
 
-    @Option(names = {"-m", "--mode"}, description = "Benchmark mode (read|write|readwrite|scan)")
+    @Option(names = {"-m", "--mode"}, description = "Benchmark mode (read|write|readwrite|scan|pointread)")
     BenchmarkMode mode = BenchmarkMode.write;
 
     @Option(names = {"-s", "--size"}, description = "Benchmark size (nano|micro|small|medium|large|huge|gigantic)")
@@ -47,6 +47,9 @@ public class CommandBenchmark implements Callable<Void> {
     @Option(names = {"-k", "--keep-buffer-cache"}, description = "Keep page cache buffers for blobs")
     boolean keepBufferCache = false; // Default is use madvise random! Use True for madvise normal (LRU like behavior).
 
+    @Option(names = {"-H", "--huge-pages"}, description = "Advise transparent huge pages for mapped buffers (pointread compares with and without)")
+    boolean hugePages = false;
+
     @SuppressWarnings("unused")
     @Option(names = "--help", usageHelp = true, description = "Print usage")
     boolean help;
@@ -139,7 +142,8 @@ public class CommandBenchmark implements Callable<Void> {
                 .withFlushThreshold(flushThreshold)
                 .withFlushDelaySeconds(flushDelay)
                 .withStoreMetrics(metrics)
-                .withCacheBuffers(keepBufferCache);
+                .withCacheBuffers(keepBufferCache)
+                .withHugePages(hugePages);
 
         return new Benchmark(mode, builder, keys, count);
     }
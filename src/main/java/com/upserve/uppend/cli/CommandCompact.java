@@ -0,0 +1,64 @@
+package com.upserve.uppend.cli;
+
+import com.upserve.uppend.*;
+import org.slf4j.Logger;
+import picocli.CommandLine.*;
+
+import java.lang.invoke.MethodHandles;
+import java.nio.file.*;
+import java.util.concurrent.Callable;
+
+@SuppressWarnings({"WeakerAccess", "unused"})
+@Command(
+        name = "compact",
+        description = "Rewrite the blocks of each key in a closed store contiguously, in key order",
+        showDefaultValues = true,
+        synopsisHeading = "%nUsage: uppend ",
+        parameterListHeading = "%nParameters:%n",
+        optionListHeading = "%nOptions:%n",
+        commandListHeading = "%nCommands:%n",
+        descriptionHeading = "%n",
+        footerHeading = "%n"
+)
+public class CommandCompact implements Callable<Void> {
+    private static final Logger log = org.slf4j.LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    @Parameters(index = "0", description = "Store path")
+    Path path;
+
+    @Option(names = {"-n", "--hash-count"}, description = "The lookup hash count the store was created with")
+    int hashCount = FileStoreBuilder.DEFAULT_LOOKUP_HASH_COUNT;
+
+    @Option(names = "--lookup-page-size", description = "The lookup page size the store was created with")
+    int lookupPageSize = FileStoreBuilder.DEFAULT_LOOKUP_PAGE_SIZE;
+
+    @Option(names = "--metadata-page-size", description = "The metadata page size the store was created with")
+    int metadataPageSize = FileStoreBuilder.DEFAULT_METADATA_PAGE_SIZE;
+
+    @Option(names = "--blob-page-size", description = "The blob page size the store was created with")
+    int blobPageSize = AppendOnlyStoreBuilder.DEFAULT_BLOB_PAGE_SIZE;
+
+    @SuppressWarnings("unused")
+    @Option(names = "--help", usageHelp = true, description = "Print usage")
+    boolean help;
+
+    @Override
+    public Void call() throws Exception {
+        if (!Files.isDirectory(path)) {
+            throw new IllegalArgumentException("Store path is not a directory: " + path);
+        }
+
+        long tic = System.currentTimeMillis();
+        try (AppendOnlyStore store = Uppend.store(path)
+                .withLongLookupHashCount(hashCount)
+                .withLookupPageSize(lookupPageSize)
+                .withMetadataPageSize(metadataPageSize)
+                .withBlobPageSize(blobPageSize)
+                .withFlushDelaySeconds(0)
+                .build()) {
+            store.compact();
+        }
+        log.info("Compacted {} in {} ms", path, System.currentTimeMillis() - tic);
+        return null;
+    }
+}
@@ -94,6 +94,12 @@ public class Benchmark {
                 writer = BenchmarkWriter.noop();
                 reader = new ScanReader(testInstance);
                 break;
+            case pointread:
+                // Open the store twice, with and without huge pages, to compare point read latency on the same files
+                testInstance = builder.withHugePages(false).build(true);
+                writer = BenchmarkWriter.noop();
+                reader = new PointReadComparison(testInstance, builder.withHugePages(true).build(true, "hugepages"));
+                break;
             default:
                 throw new RuntimeException("Unknown mode: " + mode);
         }
@@ -150,6 +156,76 @@ public class Benchmark {
         }
     }
 
+    /**
+     * Times single value point reads of random keys against two read only stores over the same files, one mapped with
+     * normal pages and one with huge pages. The rounds alternate which store reads first, with the same keys, so both
+     * see the same page cache. Latency is dominated by TLB misses once the page cache holds the files.
+     */
+    private class PointReadComparison implements BenchmarkRunnable {
+        private static final int ROUNDS = 10;
+
+        private final AppendOnlyStore normalPagesInstance;
+        private final AppendOnlyStore hugePagesInstance;
+        private final Histogram normalPagesLatency = new Histogram(new UniformReservoir());
+        private final Histogram hugePagesLatency = new Histogram(new UniformReservoir());
+        private LongSummaryStatistics result;
+
+        PointReadComparison(AppendOnlyStore normalPagesInstance, AppendOnlyStore hugePagesInstance) {
+            this.normalPagesInstance = normalPagesInstance;
+            this.hugePagesInstance = hugePagesInstance;
+        }
+
+        @Override
+        public LongSummaryStatistics getStats() {
+            return result;
+        }
+
+        @Override
+        public void run() {
+            result = new LongSummaryStatistics();
+            final long readsPerRound = Math.max(1, count / ROUNDS);
+            for (int round = 0; round < ROUNDS; round++) {
+                long[] keys = ThreadLocalRandom.current().longs(readsPerRound, 0, range).toArray();
+                if (round % 2 == 0) {
+                    pointReads(normalPagesInstance, normalPagesLatency, keys);
+                    pointReads(hugePagesInstance, hugePagesLatency, keys);
+                } else {
+                    pointReads(hugePagesInstance, hugePagesLatency, keys);
+                    pointReads(normalPagesInstance, normalPagesLatency, keys);
+                }
+            }
+            log.info(present("normal pages", normalPagesLatency));
+            log.info(present("huge pages", hugePagesLatency));
+
+            try {
+                hugePagesInstance.close();
+            } catch (Exception e) {
+                throw new RuntimeException("error closing huge pages uppend store", e);
+            }
+        }
+
+        private void pointReads(AppendOnlyStore store, Histogram latency, long[] keys) {
+            Arrays.stream(keys).parallel().forEach(longInt -> {
+                String formatted = format(longInt);
+                long tic = System.nanoTime();
+                int bytes = store.readLast(formatted, formatted, 1).mapToInt(theseBytes -> theseBytes.length).sum();
+                latency.update(System.nanoTime() - tic);
+                synchronized (result) {
+                    result.accept(bytes);
+                }
+            });
+        }
+
+        private String present(String name, Histogram latency) {
+            Snapshot snapshot = latency.getSnapshot();
+            return String.format(
+                    "Point read latency with %s: %d reads; mean %7.2fus; p50 %7.2fus; p99 %7.2fus; p99.9 %7.2fus",
+                    name, latency.getCount(), snapshot.getMean() / 1000D, snapshot.getMedian() / 1000D,
+                    snapshot.get99thPercentile() / 1000D, snapshot.get999thPercentile() / 1000D
+            );
+        }
+    }
+
     public static String format(long value) {
         return String.format("%09X", value);
     }
@@ -4,5 +4,6 @@ public enum BenchmarkMode {
     read,
     write,
     readwrite,
-    scan
+    scan,
+    pointread
 }
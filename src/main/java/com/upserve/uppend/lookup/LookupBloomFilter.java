@@ -0,0 +1,102 @@
+package com.upserve.uppend.lookup;
+
+import com.google.common.hash.*;
+import com.upserve.uppend.blobs.VirtualLongBlobStore;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+/**
+ * A Bloom filter of the keys in the metadata, so that a key which is definitely missing is found without a bisect.
+ * <p>
+ * The filter is sized for a capacity of keys at a one percent false positive rate, about 10 bits per key. New keys are
+ * added to a copy of the current filter on flush; when the keys outgrow the capacity the filter is rebuilt for twice
+ * as many keys, reading each key from the longBlob file once.
+ */
+class LookupBloomFilter {
+    private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+    private static final int MIN_CAPACITY = 1024;
+
+    private final BloomFilter<byte[]> filter;
+    private final int capacity;
+
+    private LookupBloomFilter(BloomFilter<byte[]> filter, int capacity) {
+        this.filter = filter;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Build the filter for the keys of the current metadata plus the keys being flushed
+     *
+     * @param current the filter of the current metadata or null if it has none
+     * @param currentKeyStorageOrder the key positions of the current metadata
+     * @param newKeys the keys being flushed
+     * @param longBlobStore the longBlobStore to read keys when the filter is rebuilt
+     * @return the new filter
+     */
+    static LookupBloomFilter build(LookupBloomFilter current, int[] currentKeyStorageOrder, Collection<LookupKey> newKeys,
+                                   VirtualLongBlobStore longBlobStore) {
+        final int numKeys = currentKeyStorageOrder.length + newKeys.size();
+
+        final LookupBloomFilter result;
+        if (current != null && numKeys <= current.capacity) {
+            result = new LookupBloomFilter(current.filter.copy(), current.capacity);
+        } else {
+            int capacity = Math.max(MIN_CAPACITY, numKeys * 2);
+            result = new LookupBloomFilter(BloomFilter.create(Funnels.byteArrayFunnel(), capacity, FALSE_POSITIVE_PROBABILITY), capacity);
+            for (int position : currentKeyStorageOrder) {
+                result.filter.put(longBlobStore.readBlob(position));
+            }
+        }
+
+        for (LookupKey key : newKeys) {
+            result.filter.put(key.bytes());
+        }
+        return result;
+    }
+
+    /**
+     * Read a filter written by toBytes
+     *
+     * @param buffer the buffer positioned at the filter, which is consumed
+     * @param length the number of bytes of the filter
+     * @return the filter
+     */
+    static LookupBloomFilter readFrom(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            int capacity = in.readInt();
+            return new LookupBloomFilter(BloomFilter.readFrom(in, Funnels.byteArrayFunnel()), capacity);
+        } catch (IOException e) {
+            throw new IllegalStateException("Bloom filter is corrupted", e);
+        }
+    }
+
+    byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(capacity);
+            filter.writeTo(out);
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to write bloom filter", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @param key the key to check
+     * @return false if the key is definitely not in the filter
+     */
+    boolean mightContain(LookupKey key) {
+        return filter.mightContain(key.bytes());
+    }
+}
@@ -42,6 +42,9 @@ public class LookupData implements Flushable, Trimmable {
     private final long startTime;
 
     private final boolean readOnly;
+    private final boolean hashIndex;
+    private final boolean bloomFilter;
+    private final boolean keyPrefixes;
 
     private final VirtualLongBlobStore keyLongBlobs;
 
@@ -64,8 +67,14 @@ public class LookupData implements Flushable, Trimmable {
 
     public static LookupData lookupWriter(VirtualLongBlobStore keyLongBlobs, VirtualMutableBlobStore metadataBlobs,
                                           int flushThreshold, LookupDataMetrics.Adders lookupDataMetricsAdders){
+        return lookupWriter(keyLongBlobs, metadataBlobs, flushThreshold, new Options(), lookupDataMetricsAdders);
+    }
+
+    public static LookupData lookupWriter(VirtualLongBlobStore keyLongBlobs, VirtualMutableBlobStore metadataBlobs,
+                                          int flushThreshold, Options options,
+                                          LookupDataMetrics.Adders lookupDataMetricsAdders){
         return new LookupData(
-                keyLongBlobs, metadataBlobs, flushThreshold, -1, false, lookupDataMetricsAdders
+                keyLongBlobs, metadataBlobs, flushThreshold, -1, options, false, lookupDataMetricsAdders
         );
     }
 
@@ -77,7 +86,7 @@ public class LookupData implements Flushable, Trimmable {
     public static LookupData lookupReader(VirtualLongBlobStore keyLongBlobs, VirtualMutableBlobStore metadataBlobs,
                                           int reloadInterval, LookupDataMetrics.Adders lookupDataMetricsAdders){
         return new LookupData(
-                keyLongBlobs, metadataBlobs, -1, reloadInterval, true, lookupDataMetricsAdders
+                keyLongBlobs, metadataBlobs, -1, reloadInterval, new Options(), true, lookupDataMetricsAdders
         );
     }
 
@@ -89,15 +98,21 @@ public class LookupData implements Flushable, Trimmable {
      * @param flushThreshold number of keys that trigger scheduling of flush; use n == -1 to disable
      * @param reloadInterval (for read-only mode) number of seconds to metadata to expire, reload is immediate for
      *                       the first thread that hits it; use n <= 0 to disable
+     * @param options (for write mode) the lookup structures to maintain in the metadata, readers use whichever ones
+     *                the metadata has
      * @param readOnly a very self-descriptive boolean value
      * @param lookupDataMetricsAdders thread-safe timing and metrics container
      */
     private LookupData(VirtualLongBlobStore keyLongBlobs, VirtualMutableBlobStore metadataBlobs, int flushThreshold,
-                       int reloadInterval, boolean readOnly, LookupDataMetrics.Adders lookupDataMetricsAdders) {
+                       int reloadInterval, Options options, boolean readOnly,
+                       LookupDataMetrics.Adders lookupDataMetricsAdders) {
         this.keyLongBlobs = keyLongBlobs;
         this.metadataBlobs = metadataBlobs;
 
         this.readOnly = readOnly;
+        this.hashIndex = options.getHashIndex();
+        this.bloomFilter = options.getBloomFilter();
+        this.keyPrefixes = options.getKeyPrefixes();
         this.lookupDataMetricsAdders = lookupDataMetricsAdders;
 
         this.firstFlush = new AtomicBoolean(true);
@@ -413,7 +428,10 @@ public class LookupData implements Flushable, Trimmable {
         int sortedPositionsSize = sortedPositions.length;
         LookupKey minKey = sortedPositionsSize > 0 ? readKey((long) sortedPositions[0]) : null;
         LookupKey maxKey = sortedPositionsSize > 0 ? readKey((long) sortedPositions[sortedPositionsSize - 1]) : null;
-        return LookupMetadata.generateMetadata(minKey, maxKey, sortedPositions, metadataBlobs,
+        LookupHashIndex index = hashIndex ? LookupHashIndex.build(null, sortedPositions, Collections.emptyList(), keyLongBlobs) : null;
+        LookupBloomFilter filter = bloomFilter ? LookupBloomFilter.build(null, sortedPositions, Collections.emptyList(), keyLongBlobs) : null;
+        long[] prefixes = keyPrefixes ? Arrays.stream(sortedPositions).mapToLong(position -> LookupMetadata.keyPrefix(keyLongBlobs.readBlob(position))).toArray() : null;
+        return LookupMetadata.generateMetadata(minKey, maxKey, sortedPositions, prefixes, index, filter, metadataBlobs,
                 metaDataGeneration.incrementAndGet(), lookupDataMetricsAdders);
     }
 
@@ -474,7 +492,7 @@ public class LookupData implements Flushable, Trimmable {
                         // Check the metadata generation of the LookupKeys
                         if (key.getMetaDataGeneration() != currentMetadataGeneration) {
                             // Update the index of the key for the current metadata generation for so we can insert it correctly
-                            currentMetadata.findKey(keyLongBlobs, key);
+                            currentMetadata.bisectKey(keyLongBlobs, key);
                         }
                     })
                     .forEach(key -> {
@@ -517,6 +535,10 @@ public class LookupData implements Flushable, Trimmable {
 
         int[] newKeySortOrder = new int[currentKeySortOrder.length + flushSize];
 
+        // Carry the current prefixes over, reading the keys only if the current metadata has none
+        long[] currentKeyPrefixes = currentMetadata.getKeyPrefixes();
+        long[] newKeyPrefixes = keyPrefixes ? new long[newKeySortOrder.length] : null;
+
         Map<Integer, List<LookupKey>> newKeysGroupedBySortOrderIndex = flushCache.keySet().stream().collect(Collectors.groupingBy(LookupKey::getInsertAfterSortIndex, Collectors.toList()));
 
         int index = 0;
@@ -534,11 +556,18 @@ public class LookupData implements Flushable, Trimmable {
                 if (newEntries.size() > 0) minKey = newEntries.get(0);
             } else {
                 newKeySortOrder[index] = currentKeySortOrder[i];
+                if (newKeyPrefixes != null) {
+                    newKeyPrefixes[index] = currentKeyPrefixes != null ?
+                            currentKeyPrefixes[i] : LookupMetadata.keyPrefix(keyLongBlobs.readBlob(currentKeySortOrder[i]));
+                }
                 index++;
             }
 
             for (LookupKey key : newEntries) {
                 newKeySortOrder[index] = key.getPosition();
+                if (newKeyPrefixes != null) {
+                    newKeyPrefixes[index] = LookupMetadata.keyPrefix(key.bytes());
+                }
                 index++;
             }
 
@@ -549,12 +578,27 @@ public class LookupData implements Flushable, Trimmable {
 
         log.debug("Finished creating sortOrder");
 
+        LookupHashIndex newHashIndex = null;
+        if (hashIndex) {
+            newHashIndex = LookupHashIndex.build(currentMetadata.getHashIndex(), currentKeySortOrder, flushCache.keySet(), keyLongBlobs);
+            log.debug("Finished creating hashIndex");
+        }
+
+        LookupBloomFilter newBloomFilter = null;
+        if (bloomFilter) {
+            newBloomFilter = LookupBloomFilter.build(currentMetadata.getBloomFilter(), currentKeySortOrder, flushCache.keySet(), keyLongBlobs);
+            log.debug("Finished creating bloomFilter");
+        }
+
         atomicMetadataRef.set(
                 LookupMetadata
                         .generateMetadata(
                                 minKey,
                                 maxKey,
                                 newKeySortOrder,
+                                newKeyPrefixes,
+                                newHashIndex,
+                                newBloomFilter,
                                 metadataBlobs,
                                 metaDataGeneration.incrementAndGet(),
                                 lookupDataMetricsAdders
@@ -702,4 +746,62 @@ public class LookupData implements Flushable, Trimmable {
                 .forEach(entry -> keyValueFunction
                         .accept(entry.getKey(), entry.getValue()));
     }
+
+    /**
+     * The lookup structures a writer maintains in the metadata alongside the sorted keys, set with the same with
+     * methods as the store builders. All are off by default.
+     */
+    public static class Options {
+        private boolean hashIndex = false;
+        private boolean bloomFilter = false;
+        private boolean keyPrefixes = false;
+
+        /**
+         * @param hashIndex maintain a hash index of the keys for point lookups
+         * @return these options
+         */
+        public Options withHashIndex(boolean hashIndex) {
+            this.hashIndex = hashIndex;
+            return this;
+        }
+
+        /**
+         * @param bloomFilter maintain a bloom filter of the keys to skip the bisect for missing keys
+         * @return these options
+         */
+        public Options withBloomFilter(boolean bloomFilter) {
+            this.bloomFilter = bloomFilter;
+            return this;
+        }
+
+        /**
+         * @param keyPrefixes maintain the 8 byte prefixes of the keys so the bisect reads keys only on prefix ties
+         * @return these options
+         */
+        public Options withKeyPrefixes(boolean keyPrefixes) {
+            this.keyPrefixes = keyPrefixes;
+            return this;
+        }
+
+        public boolean getHashIndex() {
+            return hashIndex;
+        }
+
+        public boolean getBloomFilter() {
+            return bloomFilter;
+        }
+
+        public boolean getKeyPrefixes() {
+            return keyPrefixes;
+        }
+
+        @Override
+        public String toString() {
+            return "Options{" +
+                    "hashIndex=" + hashIndex +
+                    ", bloomFilter=" + bloomFilter +
+                    ", keyPrefixes=" + keyPrefixes +
+                    '}';
+        }
+    }
 }
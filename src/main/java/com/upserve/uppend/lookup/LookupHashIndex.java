@@ -0,0 +1,157 @@
+package com.upserve.uppend.lookup;
+
+import com.google.common.hash.*;
+import com.upserve.uppend.blobs.VirtualLongBlobStore;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * An open addressing hash table from the fingerprint of a key to the position of the key in the longBlob file.
+ * A point lookup probes the table, usually one or two slots, and verifies the key bytes once, instead of reading
+ * log2(n) keys to bisect the sorted storage order.
+ * <p>
+ * The table is immutable and held in a heap buffer, so it is freed with the metadata which refers to it. Each slot is
+ * the int fingerprint followed by the int position, an empty slot has position -1. It is sized to at most half full so
+ * that a probe always ends at an empty slot.
+ */
+class LookupHashIndex {
+    private static final HashFunction hashFunction = Hashing.murmur3_32(0x6c6b7570);
+
+    private static final int SLOT_SIZE = 8;
+    private static final int EMPTY = -1;
+
+    private final ByteBuffer table;
+    private final int mask;
+    private final int size;
+
+    private LookupHashIndex(int slots) {
+        table = ByteBuffer.allocate(slots * SLOT_SIZE);
+        for (int slot = 0; slot < slots; slot++) {
+            table.putInt(slot * SLOT_SIZE + 4, EMPTY);
+        }
+        mask = slots - 1;
+        size = 0;
+    }
+
+    private LookupHashIndex(ByteBuffer table, int size) {
+        this.table = table;
+        this.mask = table.capacity() / SLOT_SIZE - 1;
+        this.size = size;
+    }
+
+    /**
+     * Build the index for the keys of the current metadata plus the keys being flushed. Entries of the current index
+     * are rehashed by fingerprint; the keys are only read from the longBlob file when the current metadata has no index.
+     *
+     * @param current the index of the current metadata or null if it has none
+     * @param currentKeyStorageOrder the key positions of the current metadata
+     * @param newKeys the keys being flushed, which must have their position set
+     * @param longBlobStore the longBlobStore to read keys
+     * @return the new index
+     */
+    static LookupHashIndex build(LookupHashIndex current, int[] currentKeyStorageOrder, Collection<LookupKey> newKeys,
+                                 VirtualLongBlobStore longBlobStore) {
+        LookupHashIndex index = new LookupHashIndex(slotsFor(currentKeyStorageOrder.length + newKeys.size()));
+        int size = 0;
+
+        if (current != null) {
+            for (int slot = 0; slot <= current.mask; slot++) {
+                int position = current.table.getInt(slot * SLOT_SIZE + 4);
+                if (position != EMPTY) {
+                    index.insert(current.table.getInt(slot * SLOT_SIZE), position);
+                    size++;
+                }
+            }
+        } else {
+            for (int position : currentKeyStorageOrder) {
+                index.insert(fingerprint(longBlobStore.readBlob(position)), position);
+                size++;
+            }
+        }
+
+        for (LookupKey key : newKeys) {
+            index.insert(fingerprint(key.bytes()), key.getPosition());
+            size++;
+        }
+
+        return new LookupHashIndex(index.table, size);
+    }
+
+    /**
+     * Read an index written by writeTo
+     *
+     * @param buffer the buffer positioned at the index, which is consumed
+     * @param length the number of bytes of the index
+     * @return the index
+     */
+    static LookupHashIndex readFrom(ByteBuffer buffer, int length) {
+        if (length < SLOT_SIZE || Integer.bitCount(length / SLOT_SIZE) != 1 || length % SLOT_SIZE != 0) {
+            throw new IllegalStateException("Hash index has an invalid length " + length);
+        }
+        ByteBuffer table = ByteBuffer.allocate(length);
+        ByteBuffer source = buffer.slice();
+        source.limit(length);
+        table.put(source);
+        buffer.position(buffer.position() + length);
+
+        int size = 0;
+        for (int slot = 0; slot < length / SLOT_SIZE; slot++) {
+            if (table.getInt(slot * SLOT_SIZE + 4) != EMPTY) size++;
+        }
+        return new LookupHashIndex(table, size);
+    }
+
+    void writeTo(ByteBuffer buffer) {
+        ByteBuffer source = table.duplicate();
+        source.clear();
+        buffer.put(source);
+    }
+
+    int byteLength() {
+        return table.capacity();
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Find the position of a key
+     *
+     * @param longBlobStore the longBlobStore to read keys for verification
+     * @param key the key to find
+     * @return the position of the key in the longBlob file or -1 if it is not in the index
+     */
+    int find(VirtualLongBlobStore longBlobStore, LookupKey key) {
+        final int fingerprint = fingerprint(key.bytes());
+        int slot = fingerprint & mask;
+        while (true) {
+            int position = table.getInt(slot * SLOT_SIZE + 4);
+            if (position == EMPTY) {
+                return EMPTY;
+            }
+            if (table.getInt(slot * SLOT_SIZE) == fingerprint && Arrays.equals(longBlobStore.readBlob(position), key.bytes())) {
+                return position;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void insert(int fingerprint, int position) {
+        int slot = fingerprint & mask;
+        while (table.getInt(slot * SLOT_SIZE + 4) != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        table.putInt(slot * SLOT_SIZE, fingerprint);
+        table.putInt(slot * SLOT_SIZE + 4, position);
+    }
+
+    static int fingerprint(byte[] keyBytes) {
+        return hashFunction.hashBytes(keyBytes).asInt();
+    }
+
+    private static int slotsFor(int numKeys) {
+        return Math.max(2, Integer.highestOneBit(Math.max(1, numKeys) * 2 - 1) << 1);
+    }
+}
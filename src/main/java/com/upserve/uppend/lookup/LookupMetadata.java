@@ -35,12 +35,24 @@ public class LookupMetadata {
     private static final int MAX_TREE_NODES = treeSize(MAX_BISECT_KEY_CACHE_DEPTH);
     private final LookupKey[] bisectKeys = new LookupKey[MAX_TREE_NODES];
 
+    // Optional sections follow the keyStorageOrder as (int tag, int length, bytes); readers skip unknown tags
+    private static final int HASH_INDEX_SECTION = 0x48494458; // "HIDX"
+    private static final int BLOOM_FILTER_SECTION = 0x424c4f4d; // "BLOM"
+    private static final int KEY_PREFIXES_SECTION = 0x50524658; // "PRFX"
+
+    // Marks a key found missing without a bisect, so that flush looks up where to insert it
+    static final int UNSORTED_GENERATION = -1;
+
     private final int metadataGeneration;
 
     private final int numKeys;
     private final LookupKey minKey;
     private final LookupKey maxKey;
     private final int[] keyStorageOrder;
+    // Optional order preserving 8 byte prefixes of the keys in keyStorageOrder, see keyPrefix
+    private final long[] keyPrefixes;
+    private final LookupHashIndex hashIndex;
+    private final LookupBloomFilter bloomFilter;
 
     private final LookupDataMetrics.Adders lookupDataMetricsAdders;
     private final byte[] checksum;
@@ -48,10 +60,20 @@ public class LookupMetadata {
     static LookupMetadata generateMetadata(LookupKey minKey, LookupKey maxKey, int[] keyStorageOrder,
                                                   VirtualMutableBlobStore metaDataBlobs, int metadataGeneration,
                                                   LookupDataMetrics.Adders lookupDataMetricsAdders) {
+        return generateMetadata(minKey, maxKey, keyStorageOrder, null, null, null, metaDataBlobs, metadataGeneration, lookupDataMetricsAdders);
+    }
+
+    static LookupMetadata generateMetadata(LookupKey minKey, LookupKey maxKey, int[] keyStorageOrder, long[] keyPrefixes,
+                                                  LookupHashIndex hashIndex, LookupBloomFilter bloomFilter,
+                                                  VirtualMutableBlobStore metaDataBlobs, int metadataGeneration,
+                                                  LookupDataMetrics.Adders lookupDataMetricsAdders) {
         LookupMetadata newMetadata = new LookupMetadata(
                 minKey,
                 maxKey,
                 keyStorageOrder,
+                keyPrefixes,
+                hashIndex,
+                bloomFilter,
                 metadataGeneration,
                 lookupDataMetricsAdders
         );
@@ -62,16 +84,28 @@ public class LookupMetadata {
     }
 
     LookupMetadata(LookupKey minKey, LookupKey maxKey, int[] keyStorageOrder, int metadataGeneration) {
-        this(minKey, maxKey, keyStorageOrder, metadataGeneration, new LookupDataMetrics.Adders());
+        this(minKey, maxKey, keyStorageOrder, null, null, null, metadataGeneration, new LookupDataMetrics.Adders());
 
     }
 
-    private LookupMetadata(LookupKey minKey, LookupKey maxKey, int[] keyStorageOrder, int metadataGeneration,
+    LookupMetadata(LookupKey minKey, LookupKey maxKey, int[] keyStorageOrder, long[] keyPrefixes, LookupHashIndex hashIndex,
+                   LookupBloomFilter bloomFilter, int metadataGeneration) {
+        this(minKey, maxKey, keyStorageOrder, keyPrefixes, hashIndex, bloomFilter, metadataGeneration, new LookupDataMetrics.Adders());
+    }
+
+    private LookupMetadata(LookupKey minKey, LookupKey maxKey, int[] keyStorageOrder, long[] keyPrefixes,
+                   LookupHashIndex hashIndex, LookupBloomFilter bloomFilter, int metadataGeneration,
                    LookupDataMetrics.Adders lookupDataMetricsAdders) {
+        if (keyPrefixes != null && keyPrefixes.length != keyStorageOrder.length) {
+            throw new IllegalArgumentException("keyPrefixes must be the same length as the keyStorageOrder");
+        }
         this.numKeys = keyStorageOrder.length;
         this.minKey = minKey;
         this.maxKey = maxKey;
         this.keyStorageOrder = keyStorageOrder;
+        this.keyPrefixes = keyPrefixes;
+        this.hashIndex = hashIndex;
+        this.bloomFilter = bloomFilter;
         this.metadataGeneration = metadataGeneration;
         this.lookupDataMetricsAdders = lookupDataMetricsAdders;
 
@@ -95,7 +129,7 @@ public class LookupMetadata {
                 return new LookupMetadata(bytes, metadataGeneration, currentChecksum, lookupDataMetricsAdders);
             }
         } else {
-            return new LookupMetadata(null, null, new int[0], metadataGeneration, lookupDataMetricsAdders);
+            return new LookupMetadata(null, null, new int[0], null, null, null, metadataGeneration, lookupDataMetricsAdders);
         }
     }
 
@@ -103,6 +137,9 @@ public class LookupMetadata {
         ByteBuffer buffer = ByteBuffer.wrap(bytes);
 
         int minKeyLength, maxKeyLength;
+        LookupHashIndex hashIndex = null;
+        LookupBloomFilter bloomFilter = null;
+        long[] keyPrefixes = null;
         try {
             numKeys = buffer.getInt();
             minKeyLength = buffer.getInt();
@@ -117,9 +154,35 @@ public class LookupMetadata {
             IntBuffer ibuf = buffer.asIntBuffer();
             keyStorageOrder = new int[numKeys];
             ibuf.get(keyStorageOrder);
+            buffer.position(buffer.position() + 4 * numKeys);
+
+            while (buffer.remaining() >= 8) {
+                int tag = buffer.getInt();
+                int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    throw new BufferUnderflowException();
+                }
+                if (tag == HASH_INDEX_SECTION) {
+                    hashIndex = LookupHashIndex.readFrom(buffer, length);
+                } else if (tag == BLOOM_FILTER_SECTION) {
+                    bloomFilter = LookupBloomFilter.readFrom(buffer, length);
+                } else if (tag == KEY_PREFIXES_SECTION) {
+                    if (length != 8 * numKeys) {
+                        throw new IllegalStateException("Key prefixes have an invalid length " + length);
+                    }
+                    keyPrefixes = new long[numKeys];
+                    buffer.asLongBuffer().get(keyPrefixes);
+                    buffer.position(buffer.position() + length);
+                } else {
+                    buffer.position(buffer.position() + length);
+                }
+            }
         } catch (BufferUnderflowException e) {
             throw new IllegalStateException("Meta blob is corrupted", e); // The checksum is correct - indicates a format change!
         }
+        this.hashIndex = hashIndex;
+        this.bloomFilter = bloomFilter;
+        this.keyPrefixes = keyPrefixes;
 
         this.metadataGeneration = metadataGeneration;
         this.checksum = checksum;
@@ -127,9 +190,10 @@ public class LookupMetadata {
     }
 
     /**
-     * Finds the value associated with a key or null if not present using bisect on the sorted storage order
+     * Finds the value associated with a key or null if not present, using the hash index when there is one or bisect
+     * on the sorted storage order. Without a hash index, keys the bloom filter rules out are not bisected.
      * If the result is null (key not found) the key is marked with the generation of the metadata used and the
-     * sortIndex it should be inserted after.
+     * sortIndex it should be inserted after, or with UNSORTED_GENERATION if the bisect was skipped.
      * If the result is not null (key was found) the key is marked with its position in the longBlob file.
      *
      * @param longBlobStore The longBlobStore to read keys and values
@@ -141,106 +205,163 @@ public class LookupMetadata {
         // https://softwareengineering.stackexchange.com/questions/210428/is-try-finally-expensive
         final long tic = System.nanoTime();
         try {
-            key.setMetaDataGeneration(metadataGeneration);
-
-            if (numKeys == 0) {
-                key.setInsertAfterSortIndex(-1);
+            if (hashIndex != null) {
+                int position = hashIndex.find(longBlobStore, key);
+                if (position < 0) {
+                    // Leave finding the sortIndex to flush, which is only needed if the key gets written
+                    key.setMetaDataGeneration(UNSORTED_GENERATION);
+                    lookupDataMetricsAdders.lookupMissCount.increment();
+                    return null;
+                }
+                key.setMetaDataGeneration(metadataGeneration);
+                key.setPosition(position);
+                lookupDataMetricsAdders.lookupHitCount.increment();
+                return longBlobStore.readLong(position);
+            }
+            if (bloomFilter != null && !bloomFilter.mightContain(key)) {
+                key.setMetaDataGeneration(UNSORTED_GENERATION);
                 lookupDataMetricsAdders.lookupMissCount.increment();
                 return null;
             }
+            return bisectKey(longBlobStore, key);
+        }
+        finally {
+            lookupDataMetricsAdders.findKeyTimer.add(System.nanoTime() - tic);
+        }
+    }
 
-            int keyIndexLower = 0;
-            int keyIndexUpper = numKeys - 1;
-            LookupKey lowerKey = minKey;
-            LookupKey upperKey = maxKey;
+    /**
+     * Finds the value associated with a key or null if not present using bisect on the sorted storage order, marking
+     * the key as described for findKey. Always sets the sortIndex of a missing key.
+     * When the metadata has key prefixes, a midpoint key is only read if its prefix equals the prefix of the key.
+     *
+     * @param longBlobStore The longBlobStore to read keys and values
+     * @param key the key to find and mark
+     * @return the position of the key
+     */
+    Long bisectKey(VirtualLongBlobStore longBlobStore, LookupKey key) {
+        key.setMetaDataGeneration(metadataGeneration);
 
-            int bisectCount = 0;
-            int bisectKeyTreeArrayIndex = 1;
+        if (numKeys == 0) {
+            key.setInsertAfterSortIndex(-1);
+            lookupDataMetricsAdders.lookupMissCount.increment();
+            return null;
+        }
 
-            int keyPosition;
-            LookupKey midpointKey;
-            int midpointKeyIndex;
+        int keyIndexLower = 0;
+        int keyIndexUpper = numKeys - 1;
+        LookupKey lowerKey = minKey;
+        LookupKey upperKey = maxKey;
 
-            int comparison = lowerKey.compareTo(key);
-            if (comparison > 0 /* new key is less than lowerKey */) {
-                key.setInsertAfterSortIndex(-1); // Insert it after this index in the sort order
-                lookupDataMetricsAdders.lookupMissCount.increment();
-                return null;
-            }
-            if (comparison == 0) {
-                key.setPosition(keyStorageOrder[keyIndexLower]);
-                lookupDataMetricsAdders.lookupHitCount.increment();
-                return longBlobStore.readLong(keyStorageOrder[keyIndexLower]);
-            }
+        int bisectCount = 0;
+        int bisectKeyTreeArrayIndex = 1;
 
-            comparison = upperKey.compareTo(key);
-            if (comparison < 0 /* new key is greater than upperKey */) {
-                key.setInsertAfterSortIndex(keyIndexUpper); // Insert it after this index in the sort order
-                lookupDataMetricsAdders.lookupMissCount.increment();
-                return null;
-            }
-            if (comparison == 0) {
-                key.setPosition(keyStorageOrder[keyIndexUpper]);
-                lookupDataMetricsAdders.lookupHitCount.increment();
-                return longBlobStore.readLong(keyStorageOrder[keyIndexUpper]);
-            }
+        int keyPosition;
+        LookupKey midpointKey;
+        int midpointKeyIndex;
+        final long prefix = keyPrefixes != null ? keyPrefix(key.bytes()) : 0L;
 
-            if (numKeys == 2) { // There are no other values keys besides upper and lower
-                key.setInsertAfterSortIndex(keyIndexLower);
-                lookupDataMetricsAdders.lookupMissCount.increment();
-                return null;
-            }
+        int comparison = lowerKey.compareTo(key);
+        if (comparison > 0 /* new key is less than lowerKey */) {
+            key.setInsertAfterSortIndex(-1); // Insert it after this index in the sort order
+            lookupDataMetricsAdders.lookupMissCount.increment();
+            return null;
+        }
+        if (comparison == 0) {
+            key.setPosition(keyStorageOrder[keyIndexLower]);
+            lookupDataMetricsAdders.lookupHitCount.increment();
+            return longBlobStore.readLong(keyStorageOrder[keyIndexLower]);
+        }
+
+        comparison = upperKey.compareTo(key);
+        if (comparison < 0 /* new key is greater than upperKey */) {
+            key.setInsertAfterSortIndex(keyIndexUpper); // Insert it after this index in the sort order
+            lookupDataMetricsAdders.lookupMissCount.increment();
+            return null;
+        }
+        if (comparison == 0) {
+            key.setPosition(keyStorageOrder[keyIndexUpper]);
+            lookupDataMetricsAdders.lookupHitCount.increment();
+            return longBlobStore.readLong(keyStorageOrder[keyIndexUpper]);
+        }
+
+        if (numKeys == 2) { // There are no other values keys besides upper and lower
+            key.setInsertAfterSortIndex(keyIndexLower);
+            lookupDataMetricsAdders.lookupMissCount.increment();
+            return null;
+        }
 
-            // bisect till we find the key or return null
-            do {
-                midpointKeyIndex = keyIndexLower + ((keyIndexUpper - keyIndexLower) / 2);
+        // bisect till we find the key or return null
+        do {
+            midpointKeyIndex = keyIndexLower + ((keyIndexUpper - keyIndexLower) / 2);
 
-                if (log.isTraceEnabled())
-                    log.trace("reading {}: [{}, {}], [{}, {}], {}", key, keyIndexLower, keyIndexUpper, lowerKey, upperKey, midpointKeyIndex);
+            if (log.isTraceEnabled())
+                log.trace("reading {}: [{}, {}], [{}, {}], {}", key, keyIndexLower, keyIndexUpper, lowerKey, upperKey, midpointKeyIndex);
 
-                keyPosition = keyStorageOrder[midpointKeyIndex];
+            keyPosition = keyStorageOrder[midpointKeyIndex];
+            comparison = keyPrefixes != null ? Long.compareUnsigned(prefix, keyPrefixes[midpointKeyIndex]) : 0;
+            if (comparison != 0) {
+                // The prefixes differ so the midpoint key is not needed
+                midpointKey = null;
+            } else if (bisectCount < MAX_BISECT_KEY_CACHE_DEPTH) {
                 // Cache only the most frequently used midpoint keys
-                if (bisectCount < MAX_BISECT_KEY_CACHE_DEPTH) {
-                    if (bisectKeys[bisectKeyTreeArrayIndex] == null) {
-                        lookupDataMetricsAdders.cacheMissCount.increment();
-                        midpointKey = bisectKeys[bisectKeyTreeArrayIndex] = new LookupKey(longBlobStore.readBlob(keyPosition));
-                    } else {
-                        lookupDataMetricsAdders.cacheHitCount.increment();
-                        midpointKey = bisectKeys[bisectKeyTreeArrayIndex];
-                    }
+                if (bisectKeys[bisectKeyTreeArrayIndex] == null) {
+                    lookupDataMetricsAdders.cacheMissCount.increment();
+                    midpointKey = bisectKeys[bisectKeyTreeArrayIndex] = new LookupKey(longBlobStore.readBlob(keyPosition));
                 } else {
-                    midpointKey = new LookupKey(longBlobStore.readBlob(keyPosition));
+                    lookupDataMetricsAdders.cacheHitCount.increment();
+                    midpointKey = bisectKeys[bisectKeyTreeArrayIndex];
                 }
+            } else {
+                midpointKey = new LookupKey(longBlobStore.readBlob(keyPosition));
+            }
 
+            if (midpointKey != null) {
                 comparison = key.compareTo(midpointKey);
+            }
 
-                if (comparison == 0) {
-                    key.setPosition(keyPosition);
-                    lookupDataMetricsAdders.lookupHitCount.increment();
-                    return longBlobStore.readLong(keyPosition);
-                }
+            if (comparison == 0) {
+                key.setPosition(keyPosition);
+                lookupDataMetricsAdders.lookupHitCount.increment();
+                return longBlobStore.readLong(keyPosition);
+            }
 
-                if (comparison < 0) {
-                    upperKey = midpointKey;
-                    keyIndexUpper = midpointKeyIndex;
-                    bisectKeyTreeArrayIndex = bisectKeyTreeArrayIndex * 2;
+            if (comparison < 0) {
+                upperKey = midpointKey;
+                keyIndexUpper = midpointKeyIndex;
+                bisectKeyTreeArrayIndex = bisectKeyTreeArrayIndex * 2;
 
-                } else {
-                    lowerKey = midpointKey;
-                    keyIndexLower = midpointKeyIndex;
-                    bisectKeyTreeArrayIndex = bisectKeyTreeArrayIndex * 2 + 1;
-                }
+            } else {
+                lowerKey = midpointKey;
+                keyIndexLower = midpointKeyIndex;
+                bisectKeyTreeArrayIndex = bisectKeyTreeArrayIndex * 2 + 1;
+            }
 
-                bisectCount++;
-            } while ((keyIndexLower + 1) < keyIndexUpper);
+            bisectCount++;
+        } while ((keyIndexLower + 1) < keyIndexUpper);
 
-            key.setInsertAfterSortIndex(keyIndexLower); // Insert it in the sort order after this key
-            lookupDataMetricsAdders.lookupMissCount.increment();
-            return null;
-        }
-        finally {
-            lookupDataMetricsAdders.findKeyTimer.add(System.nanoTime() - tic);
+        key.setInsertAfterSortIndex(keyIndexLower); // Insert it in the sort order after this key
+        lookupDataMetricsAdders.lookupMissCount.increment();
+        return null;
+    }
+
+    /**
+     * The first 8 bytes of a key as a long which compares unsigned in the same order as the keys. Each byte is flipped
+     * to sort the signed bytes of LookupKey.compareTo as unsigned, and short keys are padded with zero. If the prefixes
+     * of two keys differ their order is decided, otherwise the keys must be compared.
+     *
+     * @param keyBytes the bytes of the key
+     * @return the prefix
+     */
+    static long keyPrefix(byte[] keyBytes) {
+        long prefix = 0L;
+        for (int i = 0; i < 8; i++) {
+            prefix <<= 8;
+            if (i < keyBytes.length) {
+                prefix |= (keyBytes[i] ^ 0x80) & 0xFF;
+            }
         }
+        return prefix;
     }
 
     private static int treeSize(int depth) {
@@ -254,7 +375,11 @@ public class LookupMetadata {
     void writeTo(VirtualMutableBlobStore metadataBlobs) {
         int headerSize = 12 + minKey.byteLength() + maxKey.byteLength();
         int intBufSize = 4 * numKeys;
-        ByteBuffer byteBuffer = ByteBuffer.allocate(headerSize + intBufSize);
+        int hashIndexSize = hashIndex == null ? 0 : 8 + hashIndex.byteLength();
+        byte[] bloomFilterBytes = bloomFilter == null ? null : bloomFilter.toBytes();
+        int bloomFilterSize = bloomFilterBytes == null ? 0 : 8 + bloomFilterBytes.length;
+        int keyPrefixesSize = keyPrefixes == null ? 0 : 8 + 8 * numKeys;
+        ByteBuffer byteBuffer = ByteBuffer.allocate(headerSize + intBufSize + hashIndexSize + bloomFilterSize + keyPrefixesSize);
         byteBuffer.putInt(numKeys);
         byteBuffer.putInt(minKey.byteLength());
         byteBuffer.put(minKey.bytes());
@@ -263,6 +388,24 @@ public class LookupMetadata {
 
         IntBuffer intBuffer = byteBuffer.asIntBuffer();
         intBuffer.put(keyStorageOrder);
+        byteBuffer.position(byteBuffer.position() + intBufSize);
+
+        if (hashIndex != null) {
+            byteBuffer.putInt(HASH_INDEX_SECTION);
+            byteBuffer.putInt(hashIndex.byteLength());
+            hashIndex.writeTo(byteBuffer);
+        }
+        if (bloomFilterBytes != null) {
+            byteBuffer.putInt(BLOOM_FILTER_SECTION);
+            byteBuffer.putInt(bloomFilterBytes.length);
+            byteBuffer.put(bloomFilterBytes);
+        }
+        if (keyPrefixes != null) {
+            byteBuffer.putInt(KEY_PREFIXES_SECTION);
+            byteBuffer.putInt(8 * numKeys);
+            byteBuffer.asLongBuffer().put(keyPrefixes);
+            byteBuffer.position(byteBuffer.position() + 8 * numKeys);
+        }
         byteBuffer.rewind();
 
         metadataBlobs.write(0L, byteBuffer.array());
@@ -274,6 +417,9 @@ public class LookupMetadata {
                 "numKeys=" + numKeys +
                 ", minKey=" + minKey +
                 ", maxKey=" + maxKey +
+                ", hashIndex=" + (hashIndex != null) +
+                ", bloomFilter=" + (bloomFilter != null) +
+                ", keyPrefixes=" + (keyPrefixes != null) +
                 '}';
     }
 
@@ -289,6 +435,18 @@ public class LookupMetadata {
         return keyStorageOrder;
     }
 
+    long[] getKeyPrefixes() {
+        return keyPrefixes;
+    }
+
+    LookupHashIndex getHashIndex() {
+        return hashIndex;
+    }
+
+    LookupBloomFilter getBloomFilter() {
+        return bloomFilter;
+    }
+
     LookupKey getMinKey() {
         return minKey;
     }
@@ -4,7 +4,10 @@ import com.codahale.metrics.*;
 import com.google.common.collect.Maps;
 import com.upserve.uppend.*;
 
+import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.BiConsumer;
 import java.util.stream.Stream;
 
@@ -15,6 +18,8 @@ public class AppendOnlyStoreWithMetrics implements AppendOnlyStore {
     public static final String KEYS_TIMER_METRIC_NAME = "keysTimer";
     public static final String SCAN_TIMER_METRIC_NAME = "scanTimer";
     public static final String CLEAR_TIMER_METRIC_NAME = "clearTimer";
+    public static final String COMPACT_TIMER_METRIC_NAME = "compactTimer";
+    public static final String DEFRAGMENT_TIMER_METRIC_NAME = "defragmentTimer";
     public static final String CLOSE_TIMER_METRIC_NAME = "closeTimer";
     public static final String TRIM_TIMER_METRIC_NAME = "purgeTimer";
 
@@ -46,6 +51,8 @@ public class AppendOnlyStoreWithMetrics implements AppendOnlyStore {
     private final Timer keysTimer;
     private final Timer scanTimer;
     private final Timer clearTimer;
+    private final Timer compactTimer;
+    private final Timer defragmentTimer;
     private final Timer closeTimer;
     private final Timer trimTimer;
 
@@ -71,6 +78,8 @@ public class AppendOnlyStoreWithMetrics implements AppendOnlyStore {
         keysTimer = metrics.timer(MetricRegistry.name(rootName, UPPEND_APPEND_STORE, store.getName(), KEYS_TIMER_METRIC_NAME));
         scanTimer = metrics.timer(MetricRegistry.name(rootName, UPPEND_APPEND_STORE, store.getName(), SCAN_TIMER_METRIC_NAME));
         clearTimer = metrics.timer(MetricRegistry.name(rootName, UPPEND_APPEND_STORE, store.getName(), CLEAR_TIMER_METRIC_NAME));
+        compactTimer = metrics.timer(MetricRegistry.name(rootName, UPPEND_APPEND_STORE, store.getName(), COMPACT_TIMER_METRIC_NAME));
+        defragmentTimer = metrics.timer(MetricRegistry.name(rootName, UPPEND_APPEND_STORE, store.getName(), DEFRAGMENT_TIMER_METRIC_NAME));
         closeTimer = metrics.timer(MetricRegistry.name(rootName, UPPEND_APPEND_STORE, store.getName(), CLOSE_TIMER_METRIC_NAME));
         trimTimer = metrics.timer(MetricRegistry.name(rootName, UPPEND_APPEND_STORE, store.getName(), TRIM_TIMER_METRIC_NAME));
 
@@ -125,6 +134,17 @@ public class AppendOnlyStoreWithMetrics implements AppendOnlyStore {
         }
     }
 
+    @Override
+    public void appendAll(String partitionEntropy, String key, Collection<byte[]> values) {
+        final Timer.Context context = writeTimer.time();
+        try {
+            writeBytesMeter.mark(values.stream().mapToLong(value -> value.length).sum());
+            store.appendAll(partitionEntropy, key, values);
+        } finally {
+            context.stop();
+        }
+    }
+
     @Override
     public void register(int seconds) {
         store.register(seconds);
@@ -145,6 +165,11 @@ public class AppendOnlyStoreWithMetrics implements AppendOnlyStore {
         }
     }
 
+    @Override
+    public CompletableFuture<Void> sync() {
+        return store.sync();
+    }
+
     @Override
     public Stream<byte[]> read(String partitionEntropy, String key) {
         final Timer.Context context = readTimer.time();
@@ -167,6 +192,17 @@ public class AppendOnlyStoreWithMetrics implements AppendOnlyStore {
         }
     }
 
+    @Override
+    public Stream<ByteBuffer> readBuffers(String partitionEntropy, String key) {
+        final Timer.Context context = readTimer.time();
+        try {
+            return store.readBuffers(partitionEntropy, key)
+                    .peek(buffer -> readBytesMeter.mark(buffer.remaining()));
+        } finally {
+            context.stop();
+        }
+    }
+
     @Override
     public byte[] readLast(String partitionEntropy, String key) {
         final Timer.Context context = readTimer.time();
@@ -179,6 +215,60 @@ public class AppendOnlyStoreWithMetrics implements AppendOnlyStore {
         }
     }
 
+    @Override
+    public Stream<byte[]> readRange(String partitionEntropy, String key, long fromIndex, long toIndex) {
+        final Timer.Context context = readTimer.time();
+        try {
+            return store.readRange(partitionEntropy, key, fromIndex, toIndex)
+                    .peek(bytes -> readBytesMeter.mark(bytes.length));
+        } finally {
+            context.stop();
+        }
+    }
+
+    @Override
+    public CursorRead<byte[]> readSince(String partitionEntropy, String key, Cursor cursor) {
+        final Timer.Context context = readTimer.time();
+        try {
+            CursorRead<byte[]> result = store.readSince(partitionEntropy, key, cursor);
+            return new CursorRead<>(result.getValues().peek(bytes -> readBytesMeter.mark(bytes.length)), result.getCursor());
+        } finally {
+            context.stop();
+        }
+    }
+
+    @Override
+    public Stream<byte[]> readLast(String partitionEntropy, String key, int n) {
+        final Timer.Context context = readTimer.time();
+        try {
+            return store.readLast(partitionEntropy, key, n)
+                    .peek(bytes -> readBytesMeter.mark(bytes.length));
+        } finally {
+            context.stop();
+        }
+    }
+
+    @Override
+    public Stream<byte[]> readReverse(String partitionEntropy, String key) {
+        final Timer.Context context = readTimer.time();
+        try {
+            return store.readReverse(partitionEntropy, key)
+                    .peek(bytes -> readBytesMeter.mark(bytes.length));
+        } finally {
+            context.stop();
+        }
+    }
+
+    @Override
+    public long count(String partitionEntropy, String key) {
+        final Timer.Context context = readTimer.time();
+        try {
+            return store.count(partitionEntropy, key);
+        } finally {
+            context.stop();
+        }
+    }
+
     @Override
     public Stream<String> keys() {
         final Timer.Context context = keysTimer.time();
@@ -224,6 +314,26 @@ public class AppendOnlyStoreWithMetrics implements AppendOnlyStore {
         }
     }
 
+    @Override
+    public void compact() {
+        final Timer.Context context = compactTimer.time();
+        try {
+            store.compact();
+        } finally {
+            context.stop();
+        }
+    }
+
+    @Override
+    public void defragment() {
+        final Timer.Context context = defragmentTimer.time();
+        try {
+            store.defragment();
+        } finally {
+            context.stop();
+        }
+    }
+
     @Override
     public String getName() {
         return store.getName();
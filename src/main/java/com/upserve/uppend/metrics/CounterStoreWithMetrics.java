@@ -4,6 +4,7 @@ import com.codahale.metrics.*;
 import com.upserve.uppend.CounterStore;
 
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.ObjLongConsumer;
 import java.util.stream.Stream;
 
@@ -88,6 +89,11 @@ public class CounterStoreWithMetrics implements CounterStore {
         }
     }
 
+    @Override
+    public CompletableFuture<Void> sync() {
+        return store.sync();
+    }
+
     @Override
     public Long get(String partitionEntropy, String key) {
         final Timer.Context context = metricsGetTimer.time();
@@ -55,6 +55,45 @@ public class Varint {
         throw new IOException("malformed varint in stream");
     }
 
+    /**
+     * Encode a long value as a varint into a byte array.
+     *
+     * @param out the array to write to, with room for up to 10 bytes at offset
+     * @param offset the index in the array to write the first byte at
+     * @param value the value to encode as a varint
+     * @return the index after the last byte written
+     */
+    public static int write(byte[] out, int offset, long value) {
+        while (value < 0 || value > 127) {
+            out[offset++] = (byte) (128 | value & 127);
+            value >>>= 7;
+        }
+        out[offset++] = (byte) value;
+        return offset;
+    }
+
+    /**
+     * Decode a varint from a byte array and return its value as a 64 bit
+     * long. Use {@link #computeSize(long)} on the value to find where the
+     * next varint starts.
+     *
+     * @param in the array to read from
+     * @param offset the index of the first byte of the varint
+     * @return the value of varint
+     * @throws IllegalArgumentException if the bytes are not a varint
+     */
+    public static long readLong(byte[] in, int offset) {
+        long value = 0;
+        for (int shift = 0; shift < 64 && offset < in.length; shift += 7) {
+            int b = in[offset++] & 255;
+            value |= (long) (b & 127) << shift;
+            if (b < 128) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("malformed varint in array");
+    }
+
     /**
      * Computes the size of varint encoding for a given value.
      *
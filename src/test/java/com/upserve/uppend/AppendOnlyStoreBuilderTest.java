@@ -29,4 +29,13 @@ public class AppendOnlyStoreBuilderTest {
         store.flush();
         assertEquals(1, metrics.getTimers().get(MetricRegistry.name("Root", UPPEND_APPEND_STORE, store.getName(), FLUSH_TIMER_METRIC_NAME)).getCount());
     }
+
+    @Test
+    public void testMaxBlobsPerBlock() {
+        AppendOnlyStoreBuilder builder = Uppend.store(Paths.get("build/tmp/test/append-only-store-builder")).withBlobsPerBlock(4);
+        assertEquals(4, builder.getMaxBlobsPerBlock());
+        builder.withMaxBlobsPerBlock(64);
+        assertEquals(4, builder.getBlobsPerBlock());
+        assertEquals(64, builder.getMaxBlobsPerBlock());
+    }
 }
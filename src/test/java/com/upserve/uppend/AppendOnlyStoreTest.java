@@ -2,16 +2,19 @@ package com.upserve.uppend;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.primitives.Longs;
+import com.upserve.uppend.blobs.PageBackend;
 import com.upserve.uppend.util.SafeDeleting;
 import org.junit.*;
 import org.junit.rules.ExpectedException;
 
 import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.channels.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.stream.Collectors;
+import java.util.stream.*;
 
 import static com.upserve.uppend.TestHelper.genBytes;
 import static org.junit.Assert.*;
@@ -63,6 +66,250 @@ public class AppendOnlyStoreTest {
         assertArrayEquals(new String[]{"xyzzy"}, results.stream().sorted().toArray(String[]::new));
     }
 
+    @Test
+    public void testGroupCommitSync() throws Exception {
+        store.close();
+        store = TestHelper.getDefaultAppendStoreTestBuilder()
+                .withDir(path.resolve("store-path"))
+                .withDurabilityMode(DurabilityMode.GROUP_COMMIT)
+                .build(false);
+
+        store.append("partition", "foo", "bar".getBytes());
+        store.append("partition2", "qux", "xyzzy".getBytes());
+        store.sync().get(10, TimeUnit.SECONDS);
+
+        assertArrayEquals("bar".getBytes(), store.readLast("partition", "foo"));
+        assertArrayEquals("xyzzy".getBytes(), store.readLast("partition2", "qux"));
+    }
+
+    @Test
+    public void testAppendAll() throws Exception {
+        store.append("partition", "foo", "a".getBytes());
+        store.appendAll("partition", "foo", IntStream.range(0, 100).mapToObj(i -> ("v" + i).getBytes()).collect(Collectors.toList()));
+        store.appendAll("partition", "bar", Collections.emptyList());
+        store.append("partition", "foo", "z".getBytes());
+
+        List<String> expected = new ArrayList<>();
+        expected.add("a");
+        IntStream.range(0, 100).mapToObj(i -> "v" + i).forEach(expected::add);
+        expected.add("z");
+        assertEquals(expected, store.readSequential("partition", "foo").map(String::new).collect(Collectors.toList()));
+        assertEquals("z", new String(store.readLast("partition", "foo")));
+        assertEquals(0, store.read("partition", "bar").count());
+        assertEquals(102, store.count("partition", "foo"));
+        assertEquals(0, store.count("partition", "bar"));
+        assertEquals(0, store.count("other", "foo"));
+
+        store.close();
+        store = newStore();
+        assertEquals(expected, store.readSequential("partition", "foo").map(String::new).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void testCompressedValues() throws Exception {
+        store.close();
+        SafeDeleting.removeDirectory(path);
+        store = TestHelper.getDefaultAppendStoreTestBuilder()
+                .withDir(path.resolve("store-path"))
+                .withCompressValues(true)
+                .build();
+
+        List<String> expected = IntStream.range(0, 200).mapToObj(i -> "v" + i).collect(Collectors.toList());
+        expected.forEach(value -> store.append("partition", "foo", value.getBytes()));
+        assertEquals(expected, store.readSequential("partition", "foo").map(String::new).collect(Collectors.toList()));
+        assertEquals(200, store.count("partition", "foo"));
+
+        store.close();
+        store = newStore();
+        assertEquals(expected, store.read("partition", "foo").map(String::new).sorted(Comparator.comparing(value -> Integer.parseInt(value.substring(1)))).collect(Collectors.toList()));
+        assertEquals("v199", new String(store.readLast("partition", "foo")));
+    }
+
+    @Test
+    public void testReadBuffers() {
+        List<String> expected = IntStream.range(0, 200).mapToObj(i -> "v" + i).collect(Collectors.toList());
+        expected.forEach(value -> store.append("partition", "foo", value.getBytes()));
+
+        assertEquals(
+                expected,
+                store.readBuffers("partition", "foo").map(StandardCharsets.UTF_8::decode).map(CharBuffer::toString).collect(Collectors.toList())
+        );
+        assertEquals(0, store.readBuffers("partition", "bar").count());
+        assertEquals(0, store.readBuffers("other", "foo").count());
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        List<String> expected = IntStream.range(0, 500).mapToObj(i -> "v" + i).collect(Collectors.toList());
+        for (String value : expected) {
+            store.append("partition", "foo", value.getBytes());
+            store.append("partition", "bar", value.getBytes());
+            store.append("other", "foo", value.getBytes());
+        }
+        store.flush();
+
+        store.compact();
+
+        assertEquals(expected, store.readSequential("partition", "foo").map(String::new).collect(Collectors.toList()));
+        assertEquals(expected, store.readSequential("partition", "bar").map(String::new).collect(Collectors.toList()));
+        assertEquals(expected, store.readSequential("other", "foo").map(String::new).collect(Collectors.toList()));
+        assertEquals(3, store.keyCount());
+        assertFalse(Files.exists(path.resolve("store-path/partitions/partition/compacted")));
+
+        store.append("partition", "foo", "z".getBytes());
+        store.append("partition", "baz", "a".getBytes());
+        store.close();
+        store = newStore();
+        assertEquals(501, store.count("partition", "foo"));
+        assertEquals("z", new String(store.readLast("partition", "foo")));
+        assertEquals(Collections.singletonList("a"), store.readSequential("partition", "baz").map(String::new).collect(Collectors.toList()));
+        assertEquals(expected, store.readSequential("other", "foo").map(String::new).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void testDefragment() throws Exception {
+        List<String> expected = IntStream.range(0, 500).mapToObj(i -> "v" + i).collect(Collectors.toList());
+        for (String value : expected) {
+            store.append("partition", "foo", value.getBytes());
+            store.append("partition", "bar", value.getBytes());
+        }
+        store.flush();
+
+        store.defragment();
+
+        assertEquals(expected, store.readSequential("partition", "foo").map(String::new).collect(Collectors.toList()));
+        assertEquals(expected, store.readSequential("partition", "bar").map(String::new).collect(Collectors.toList()));
+
+        store.append("partition", "foo", "z".getBytes());
+        store.close();
+        store = newStore();
+        assertEquals(501, store.count("partition", "foo"));
+        assertEquals("z", new String(store.readLast("partition", "foo")));
+        assertEquals(2, store.keyCount());
+    }
+
+    @Test
+    public void testIncompleteCompactionIsRemoved() throws Exception {
+        store.append("partition", "foo", "bar".getBytes());
+        store.close();
+
+        Path compacting = path.resolve("store-path/partitions/partition/compacting");
+        Files.createDirectories(compacting);
+        Files.write(compacting.resolve("blockedLongs"), new byte[16]);
+
+        store = newStore();
+        assertEquals(Collections.singletonList("bar"), store.readSequential("partition", "foo").map(String::new).collect(Collectors.toList()));
+        assertFalse(Files.exists(compacting));
+    }
+
+    @Test
+    public void testLiveCompactionIsNotRemoved() throws Exception {
+        store.append("partition", "foo", "bar".getBytes());
+        store.close();
+
+        Path partitionDir = path.resolve("store-path/partitions/partition");
+        Path compacting = partitionDir.resolve("compacting");
+        Files.createDirectories(compacting);
+        Files.write(compacting.resolve("blockedLongs"), new byte[16]);
+
+        // Another store holds the compaction lock while it compacts the partition
+        try (FileChannel lockChan = FileChannel.open(partitionDir.resolve("compactionLock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock lock = lockChan.lock()) {
+            store = newStore();
+            try {
+                store.readSequential("partition", "foo").count();
+                fail("Expected the partition to be busy");
+            } catch (IllegalStateException e) {
+                assertTrue(e.getMessage().contains("is being compacted"));
+            }
+            assertTrue(Files.exists(compacting));
+            store.close();
+        }
+
+        store = newStore();
+        assertEquals(Collections.singletonList("bar"), store.readSequential("partition", "foo").map(String::new).collect(Collectors.toList()));
+        assertFalse(Files.exists(compacting));
+    }
+
+    @Test
+    public void testChannelPageBackend() throws Exception {
+        store.close();
+        SafeDeleting.removeDirectory(path);
+        store = TestHelper.getDefaultAppendStoreTestBuilder()
+                .withDir(path.resolve("store-path"))
+                .withPageBackend(PageBackend.CHANNEL)
+                .build();
+
+        List<String> expected = IntStream.range(0, 200).mapToObj(i -> "v" + i).collect(Collectors.toList());
+        expected.forEach(value -> store.append("partition", "foo", value.getBytes()));
+        assertEquals(expected, store.readSequential("partition", "foo").map(String::new).collect(Collectors.toList()));
+
+        store.close();
+        store = newStore();
+        assertEquals(expected, store.readSequential("partition", "foo").map(String::new).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void testReadRange() {
+        IntStream.range(0, 100).forEach(i -> store.append("partition", "foo", ("v" + i).getBytes()));
+
+        assertEquals(
+                IntStream.range(40, 50).mapToObj(i -> "v" + i).collect(Collectors.toList()),
+                store.readRange("partition", "foo", 40, 50).map(String::new).collect(Collectors.toList())
+        );
+        assertEquals(
+                IntStream.range(95, 100).mapToObj(i -> "v" + i).collect(Collectors.toList()),
+                store.readRange("partition", "foo", 95, 200).map(String::new).collect(Collectors.toList())
+        );
+        assertEquals(0, store.readRange("partition", "foo", 100, 200).count());
+        assertEquals(0, store.readRange("partition", "bar", 0, 10).count());
+    }
+
+    @Test
+    public void testReadSince() throws Exception {
+        CursorRead<byte[]> result = store.readSince("partition", "foo", Cursor.START);
+        assertEquals(0, result.getValues().count());
+        assertEquals(Cursor.START, result.getCursor());
+
+        store.append("partition", "foo", "a".getBytes());
+        store.append("partition", "foo", "b".getBytes());
+        result = store.readSince("partition", "foo", result.getCursor());
+        assertEquals(Arrays.asList("a", "b"), result.getValues().map(String::new).collect(Collectors.toList()));
+
+        Cursor cursor = result.getCursor();
+        result = store.readSince("partition", "foo", cursor);
+        assertEquals(0, result.getValues().count());
+        assertEquals(cursor, result.getCursor());
+
+        IntStream.range(0, 100).forEach(i -> store.append("partition", "foo", ("v" + i).getBytes()));
+        store.flush();
+
+        // A read only follower can continue from the writer's cursor
+        try (AppendOnlyStore reader = newStore(true)) {
+            result = reader.readSince("partition", "foo", cursor);
+            assertEquals(
+                    IntStream.range(0, 100).mapToObj(i -> "v" + i).collect(Collectors.toList()),
+                    result.getValues().map(String::new).collect(Collectors.toList())
+            );
+        }
+    }
+
+    @Test
+    public void testReadReverseAndReadLastN() {
+        IntStream.range(0, 100).forEach(i -> store.append("partition", "foo", ("v" + i).getBytes()));
+
+        assertEquals(
+                IntStream.range(0, 100).mapToObj(i -> "v" + (99 - i)).collect(Collectors.toList()),
+                store.readReverse("partition", "foo").map(String::new).collect(Collectors.toList())
+        );
+        assertEquals(
+                IntStream.range(97, 100).mapToObj(i -> "v" + i).collect(Collectors.toList()),
+                store.readLast("partition", "foo", 3).map(String::new).collect(Collectors.toList())
+        );
+        assertEquals(0, store.readReverse("partition", "bar").count());
+        assertEquals(0, store.readLast("other", "foo", 3).count());
+    }
+
     @Test
     public void testEmptyReadOnlyStore() throws Exception {
         cleanUp();
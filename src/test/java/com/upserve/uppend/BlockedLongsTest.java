@@ -1,5 +1,6 @@
 package com.upserve.uppend;
 
+import com.upserve.uppend.metrics.BlockedLongMetrics;
 import com.upserve.uppend.util.*;
 import org.junit.*;
 
@@ -111,6 +112,576 @@ public class BlockedLongsTest {
         assertEquals(256, v.lastValue(pos));
     }
 
+    @Test
+    public void testParallelValues() {
+        BlockedLongs v = new BlockedLongs(path, 4, readOnly);
+        long pos = v.allocate();
+        for (long i = 0; i < 1001; i++) {
+            v.append(pos, i);
+        }
+        assertArrayEquals(LongStream.range(0, 1001).toArray(), v.values(pos).parallel().toArray());
+        assertEquals(LongStream.range(0, 1001).sum(), v.values(pos).parallel().sum());
+        assertEquals(1001, v.values(pos).parallel().count());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testValuesConsumedAfterClose() throws Exception {
+        BlockedLongs v = new BlockedLongs(path, 4, readOnly);
+        long pos = v.allocate();
+        for (long i = 0; i < 10; i++) {
+            v.append(pos, i);
+        }
+        LongStream values = v.values(pos);
+        v.close();
+        values.toArray();
+    }
+
+    @Test
+    public void testValuesSplitOnBlockBoundaries() {
+        BlockedLongs v = new BlockedLongs(path, 4, readOnly);
+        long pos = v.allocate();
+        for (long i = 0; i < 10; i++) {
+            v.append(pos, i);
+        }
+
+        Spliterator.OfLong suffix = v.values(pos).spliterator();
+        assertFalse(suffix.hasCharacteristics(Spliterator.SIZED));
+
+        Spliterator.OfLong first = suffix.trySplit();
+        assertEquals(4, first.estimateSize());
+        Spliterator.OfLong second = suffix.trySplit();
+        assertEquals(4, second.estimateSize());
+        // The last block may still be growing so it is never handed off
+        assertNull(suffix.trySplit());
+
+        assertArrayEquals(new long[]{0, 1, 2, 3}, StreamSupport.longStream(first, false).toArray());
+        assertArrayEquals(new long[]{4, 5, 6, 7}, StreamSupport.longStream(second, false).toArray());
+        assertArrayEquals(new long[]{8, 9}, StreamSupport.longStream(suffix, false).toArray());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCtorWithMaxValuesPerBlockBelowValuesPerBlock() {
+        new BlockedLongs(path, 4, 2, readOnly);
+    }
+
+    @Test
+    public void testGrowingBlocks() throws Exception {
+        BlockedLongs v = new BlockedLongs(path, 2, 16, readOnly);
+        long pos = v.allocate();
+        for (long i = 0; i < 100; i++) {
+            v.append(pos, i);
+            assertEquals(i, v.lastValue(pos));
+        }
+        // 2 + 4 + 8 + 16 * 6 = 110 >= 100
+        assertEquals(9, v.getBlockCount());
+        assertArrayEquals(LongStream.range(0, 100).toArray(), v.values(pos).toArray());
+        assertArrayEquals(LongStream.range(0, 100).toArray(), v.values(pos).parallel().toArray());
+        assertEquals(100, v.values(pos).parallel().count());
+
+        long other = v.allocate();
+        v.append(other, 7L);
+        assertArrayEquals(new long[]{7L}, v.values(other).toArray());
+        assertEquals(10, v.getBlockCount());
+        v.close();
+
+        // The layout recorded in the file wins over the requested one
+        v = new BlockedLongs(path, 5, readOnly);
+        assertEquals(10, v.getBlockCount());
+        assertArrayEquals(LongStream.range(0, 100).toArray(), v.values(pos).toArray());
+        v.append(pos, 100L);
+        assertEquals(100L, v.lastValue(pos));
+        assertArrayEquals(LongStream.range(0, 101).toArray(), v.values(pos).toArray());
+
+        v.clear();
+        assertEquals(0, v.getBlockCount());
+        pos = v.allocate();
+        assertEquals(BlockedLongs.HEADER_BYTES + 24 + 2 * 8, v.allocate()); // brittle
+    }
+
+    @Test
+    public void testCopyChain() throws Exception {
+        BlockedLongs v = new BlockedLongs(path, 2, 16, readOnly);
+        long a = v.allocate();
+        long b = v.allocate();
+        for (long i = 0; i < 100; i++) {
+            v.append(a, i);
+            v.append(b, -i);
+        }
+
+        Path copyPath = path.resolveSibling("block-copy");
+        Files.deleteIfExists(copyPath);
+        BlockedLongs copy = v.emptyCopy(copyPath, new BlockedLongMetrics.Adders());
+        long newB = v.copyChain(b, copy);
+        long newA = v.copyChain(a, copy);
+
+        assertArrayEquals(v.values(a).toArray(), copy.values(newA).toArray());
+        assertArrayEquals(v.values(b).toArray(), copy.values(newB).toArray());
+        assertEquals(100, copy.count(newA));
+        assertEquals(18, copy.getBlockCount());
+        // The 9 blocks of each chain are back to back: 9 headers of 24 bytes and 2 + 4 + 8 + 16 * 6 = 110 values
+        assertEquals(BlockedLongs.HEADER_BYTES, newB);
+        assertEquals(newB + 9 * 24 + 110 * 8, newA);
+        copy.close();
+        v.close();
+        Files.deleteIfExists(copyPath);
+    }
+
+    @Test
+    public void testGrowingBlocksSplitByValues() {
+        BlockedLongs v = new BlockedLongs(path, 1, 8, readOnly);
+        long pos = v.allocate();
+        for (long i = 0; i < 100; i++) {
+            v.append(pos, i);
+        }
+
+        Spliterator.OfLong suffix = v.values(pos).spliterator();
+        List<Spliterator.OfLong> prefixes = new ArrayList<>();
+        Spliterator.OfLong prefix;
+        while ((prefix = suffix.trySplit()) != null) {
+            prefixes.add(prefix);
+        }
+        assertFalse(prefixes.isEmpty());
+
+        LongStream.Builder builder = LongStream.builder();
+        for (Spliterator.OfLong split : prefixes) {
+            long size = split.estimateSize();
+            long[] values = StreamSupport.longStream(split, false).toArray();
+            assertEquals(size, values.length);
+            Arrays.stream(values).forEach(builder);
+        }
+        StreamSupport.longStream(suffix, false).forEach(builder);
+        assertArrayEquals(LongStream.range(0, 100).toArray(), builder.build().toArray());
+    }
+
+    @Test
+    public void testFixedBlocksStayFixed() throws Exception {
+        BlockedLongs v = new BlockedLongs(path, 2, readOnly);
+        long pos = v.allocate();
+        for (long i = 0; i < 10; i++) {
+            v.append(pos, i);
+        }
+        v.close();
+
+        v = new BlockedLongs(path, 2, 16, readOnly);
+        for (long i = 10; i < 20; i++) {
+            v.append(pos, i);
+        }
+        assertEquals(10, v.getBlockCount());
+        assertArrayEquals(LongStream.range(0, 20).toArray(), v.values(pos).toArray());
+    }
+
+    @Test
+    public void testLockFreeAppend() {
+        BlockedLongs v = new BlockedLongs(path, new BlockedLongs.Options(2).withMaxValuesPerBlock(8).withLockFreeAppends(true), readOnly, new BlockedLongMetrics.Adders());
+        long pos = v.allocate();
+        assertEquals(-1, v.lastValue(pos));
+        for (long i = 0; i < 100; i++) {
+            v.append(pos, i);
+            assertEquals(i, v.lastValue(pos));
+        }
+        assertArrayEquals(LongStream.range(0, 100).toArray(), v.values(pos).toArray());
+        assertArrayEquals(LongStream.range(0, 100).toArray(), v.valuesArray(pos));
+    }
+
+    @Test
+    public void testLockFreeConcurrentAppend() throws Exception {
+        BlockedLongs v = new BlockedLongs(path, new BlockedLongs.Options(3).withLockFreeAppends(true), readOnly, new BlockedLongMetrics.Adders());
+        long[] positions = LongStream.range(0, 4).map(i -> v.allocate()).toArray();
+        int threads = 8;
+        int perThread = 5_000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final long base = t * perThread;
+            futures.add(executor.submit(() -> {
+                for (long i = base; i < base + perThread; i++) {
+                    v.append(positions[(int) (i % positions.length)], i);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        long[] all = Arrays.stream(positions).flatMap(v::values).sorted().toArray();
+        assertArrayEquals(LongStream.range(0, threads * perThread).toArray(), all);
+        for (long pos : positions) {
+            long[] values = v.values(pos).toArray();
+            assertEquals(values[values.length - 1], v.lastValue(pos));
+            // Each writer appends its values in order
+            for (int t = 0; t < threads; t++) {
+                final long base = t * perThread;
+                long[] written = Arrays.stream(values).filter(val -> val >= base && val < base + perThread).toArray();
+                assertArrayEquals(Arrays.stream(written).sorted().toArray(), written);
+            }
+        }
+    }
+
+    @Test
+    public void testSkipsUnsetValues() {
+        BlockedLongs v = new BlockedLongs(path, new BlockedLongs.Options(4).withLockFreeAppends(true), readOnly, new BlockedLongMetrics.Adders());
+        long pos = v.allocate();
+        v.append(pos, 1L);
+        v.append(pos, 2L);
+        // A slot claimed by a lock free append that was never written
+        v.writeLong(pos + 16 + 8 * 2, BlockedLongs.UNSET);
+        v.writeLong(pos, 3);
+        assertArrayEquals(new long[]{1L, 2L}, v.values(pos).toArray());
+        assertArrayEquals(new long[]{1L, 2L}, v.valuesArray(pos));
+        assertEquals(2L, v.lastValue(pos));
+        v.append(pos, 4L);
+        assertArrayEquals(new long[]{1L, 2L, 4L}, v.values(pos).toArray());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAppendUnset() {
+        BlockedLongs v = new BlockedLongs(path, new BlockedLongs.Options(4).withLockFreeAppends(true), readOnly, new BlockedLongMetrics.Adders());
+        v.append(v.allocate(), BlockedLongs.UNSET);
+    }
+
+    @Test
+    public void testLockedAppendKeepsUnsetMarker() {
+        BlockedLongs v = new BlockedLongs(path, 4, readOnly);
+        long pos = v.allocate();
+        v.append(pos, 1L);
+        v.append(pos, Long.MIN_VALUE);
+        v.appendAll(pos, new long[]{Long.MIN_VALUE, 2L});
+        assertArrayEquals(new long[]{1L, Long.MIN_VALUE, Long.MIN_VALUE, 2L}, v.values(pos).toArray());
+        v.append(pos, Long.MIN_VALUE);
+        assertEquals(Long.MIN_VALUE, v.lastValue(pos));
+    }
+
+    @Test
+    public void testAppendAll() {
+        for (boolean lockFree : new boolean[]{false, true}) {
+            SafeDeleting.removeTempPath(path);
+            BlockedLongs v = new BlockedLongs(path, new BlockedLongs.Options(3).withMaxValuesPerBlock(12).withLockFreeAppends(lockFree), readOnly, new BlockedLongMetrics.Adders());
+            long pos = v.allocate();
+            v.append(pos, 0L);
+            v.appendAll(pos, LongStream.range(1, 2).toArray());
+            v.appendAll(pos, new long[]{});
+            v.appendAll(pos, LongStream.range(2, 50).toArray());
+            v.append(pos, 50L);
+            v.appendAll(pos, LongStream.range(51, 100).toArray());
+
+            assertArrayEquals(LongStream.range(0, 100).toArray(), v.values(pos).toArray());
+            assertArrayEquals(LongStream.range(0, 100).toArray(), v.valuesArray(pos));
+            assertEquals(99L, v.lastValue(pos));
+            assertEquals(100, v.getCount());
+            // 3 + 6 + 12 * 8 = 105 >= 100
+            assertEquals(10, v.getBlockCount());
+            v.close();
+        }
+    }
+
+    @Test
+    public void testLockFreeModeIsRecorded() throws Exception {
+        BlockedLongs v = new BlockedLongs(path, new BlockedLongs.Options(2).withLockFreeAppends(true), readOnly, new BlockedLongMetrics.Adders());
+        long pos = v.allocate();
+        v.appendAll(pos, new long[]{1L, 2L, 3L});
+        v.close();
+
+        // Reopening without lock free appends keeps the mode recorded when the file was created
+        v = new BlockedLongs(path, new BlockedLongs.Options(2), readOnly, new BlockedLongMetrics.Adders());
+        v.append(pos, 4L);
+        v.append(pos, 5L);
+        assertArrayEquals(new long[]{1L, 2L, 3L, 4L, 5L}, v.values(pos).toArray());
+        v.close();
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer flags = ByteBuffer.allocate(4);
+            channel.read(flags, 16);
+            assertEquals(BlockedLongs.LOCK_FREE_APPENDS, flags.getInt(0) & BlockedLongs.LOCK_FREE_APPENDS);
+        }
+    }
+
+    @Test
+    public void testClearLockFree() throws Exception {
+        BlockedLongs v = new BlockedLongs(path, new BlockedLongs.Options(2).withLockFreeAppends(true), readOnly, new BlockedLongMetrics.Adders());
+        long pos = v.allocate();
+        v.appendAll(pos, new long[]{1L, 2L, 3L});
+        v.clear();
+
+        pos = v.allocate();
+        assertEquals(BlockedLongs.HEADER_BYTES, pos);
+        v.append(pos, 4L);
+        v.append(pos, 5L);
+        v.append(pos, 6L);
+        assertArrayEquals(new long[]{4L, 5L, 6L}, v.values(pos).toArray());
+        v.close();
+    }
+
+    @Test
+    public void testValuesRangeSkipsUnset() {
+        BlockedLongs v = new BlockedLongs(path, new BlockedLongs.Options(2).withLockFreeAppends(true), readOnly, new BlockedLongMetrics.Adders());
+        long pos = v.allocate();
+        v.appendAll(pos, new long[]{1L, 2L, 3L, 4L, 5L});
+        // A slot in the first block claimed by a lock free append that was never written
+        v.writeLong(pos + 16 + 8, BlockedLongs.UNSET);
+
+        assertArrayEquals(new long[]{1L, 3L, 4L, 5L}, v.values(pos).toArray());
+        assertArrayEquals(new long[]{3L, 4L}, v.valuesRange(pos, 1, 3).toArray());
+        assertArrayEquals(new long[]{4L, 5L}, v.valuesRange(pos, 2, 10).toArray());
+    }
+
+    @Test
+    public void testLockFreeConcurrentAppendAll() throws Exception {
+        BlockedLongs v = new BlockedLongs(path, new BlockedLongs.Options(2).withMaxValuesPerBlock(8).withLockFreeAppends(true), readOnly, new BlockedLongMetrics.Adders());
+        long pos = v.allocate();
+        int threads = 4;
+        int batches = 500;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final long base = t * batches * 10;
+            futures.add(executor.submit(() -> {
+                for (int batch = 0; batch < batches; batch++) {
+                    v.appendAll(pos, LongStream.range(base + batch * 10, base + batch * 10 + 10).toArray());
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        long[] values = v.values(pos).toArray();
+        assertArrayEquals(LongStream.range(0, threads * batches * 10).toArray(), Arrays.stream(values).sorted().toArray());
+        assertArrayEquals(values, v.valuesArray(pos));
+        assertEquals(values[values.length - 1], v.lastValue(pos));
+    }
+
+    @Test
+    public void testCount() throws Exception {
+        for (boolean countValues : new boolean[]{false, true}) {
+            SafeDeleting.removeTempPath(path);
+            BlockedLongs v = new BlockedLongs(path, new BlockedLongs.Options(3).withMaxValuesPerBlock(6).withCountValues(countValues), readOnly, new BlockedLongMetrics.Adders());
+            long pos = v.allocate();
+            long other = v.allocate();
+            assertEquals(0, v.count(pos));
+            for (long i = 0; i < 40; i++) {
+                v.append(pos, i);
+                assertEquals(i + 1, v.count(pos));
+            }
+            v.appendAll(pos, LongStream.range(40, 50).toArray());
+            v.append(other, 1L);
+            assertEquals(50, v.count(pos));
+            assertEquals(1, v.count(other));
+            assertArrayEquals(LongStream.range(0, 50).toArray(), v.valuesArray(pos));
+            v.close();
+
+            v = new BlockedLongs(path, new BlockedLongs.Options(3).withMaxValuesPerBlock(6).withCountValues(countValues), true, new BlockedLongMetrics.Adders());
+            assertEquals(50, v.count(pos));
+            v.close();
+        }
+    }
+
+    @Test
+    public void testCountLockFree() {
+        BlockedLongs v = new BlockedLongs(path, new BlockedLongs.Options(2).withCountValues(true).withLockFreeAppends(true), readOnly, new BlockedLongMetrics.Adders());
+        long pos = v.allocate();
+        for (long i = 0; i < 9; i++) {
+            v.append(pos, i);
+        }
+        v.appendAll(pos, LongStream.range(9, 20).toArray());
+        assertEquals(20, v.count(pos));
+        assertArrayEquals(LongStream.range(0, 20).toArray(), v.valuesArray(pos));
+    }
+
+    @Test
+    public void testCountedBlockLayout() {
+        BlockedLongs v = new BlockedLongs(path, new BlockedLongs.Options(4).withCountValues(true), readOnly, new BlockedLongMetrics.Adders());
+        long pos1 = v.allocate();
+        long pos2 = v.allocate();
+        assertEquals(24 + 8 * 4, pos2 - pos1); // brittle
+        assertEquals(2, v.getBlockCount());
+    }
+
+    @Test
+    public void testValuesRange() throws Exception {
+        for (int maxValuesPerBlock : new int[]{3, 24}) {
+            SafeDeleting.removeTempPath(path);
+            BlockedLongs v = new BlockedLongs(path, 3, maxValuesPerBlock, readOnly);
+            long pos = v.allocate();
+            assertArrayEquals(new long[]{}, v.valuesRange(pos, 0, 10).toArray());
+            for (long i = 0; i < 100; i++) {
+                v.append(pos, i);
+            }
+            for (long from = 0; from <= 100; from += 7) {
+                for (long to = from; to <= 110; to += 11) {
+                    assertArrayEquals(LongStream.range(from, Math.min(to, 100)).toArray(), v.valuesRange(pos, from, to).toArray());
+                }
+            }
+            assertArrayEquals(new long[]{}, v.valuesRange(null, 0, 10).toArray());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testValuesRangeBadRange() {
+        BlockedLongs v = new BlockedLongs(path, 3, readOnly);
+        v.valuesRange(v.allocate(), 5, 4);
+    }
+
+    @Test
+    public void testValuesSince() {
+        BlockedLongs v = new BlockedLongs(path, 3, 12, readOnly);
+        long pos = v.allocate();
+        LongStream.Builder builder = LongStream.builder();
+        Cursor cursor = v.valuesSince(pos, Cursor.START, builder);
+        assertArrayEquals(new long[]{}, builder.build().toArray());
+        assertEquals(new Cursor(pos, 0), cursor);
+
+        long next = 0;
+        for (int round = 0; round < 20; round++) {
+            long[] appended = LongStream.range(next, next + round).toArray();
+            for (long val : appended) {
+                v.append(pos, val);
+            }
+            next += round;
+
+            builder = LongStream.builder();
+            cursor = v.valuesSince(pos, cursor, builder);
+            assertArrayEquals(appended, builder.build().toArray());
+        }
+
+        assertSame(Cursor.START, v.valuesSince(null, Cursor.START, val -> fail()));
+    }
+
+    @Test
+    public void testValuesSinceStopsAtUnset() {
+        BlockedLongs v = new BlockedLongs(path, new BlockedLongs.Options(4).withLockFreeAppends(true), readOnly, new BlockedLongMetrics.Adders());
+        long pos = v.allocate();
+        v.append(pos, 1L);
+        // A slot claimed by a lock free append but not written yet
+        v.writeLong(pos, 2);
+        v.writeLong(pos + 16 + 8, BlockedLongs.UNSET);
+
+        LongStream.Builder builder = LongStream.builder();
+        Cursor cursor = v.valuesSince(pos, Cursor.START, builder);
+        assertArrayEquals(new long[]{1L}, builder.build().toArray());
+        assertEquals(new Cursor(pos, 1), cursor);
+
+        v.writeLong(pos + 16 + 8, 2L);
+        builder = LongStream.builder();
+        cursor = v.valuesSince(pos, cursor, builder);
+        assertArrayEquals(new long[]{2L}, builder.build().toArray());
+        assertEquals(new Cursor(pos, 2), cursor);
+    }
+
+    @Test
+    public void testValuesSinceStopsAtUnsetInLinkedBlock() {
+        BlockedLongs v = new BlockedLongs(path, new BlockedLongs.Options(2).withLockFreeAppends(true), readOnly, new BlockedLongMetrics.Adders());
+        long pos = v.allocate();
+        v.append(pos, 1L);
+        v.append(pos, 2L);
+        // The second slot was claimed by a lock free append which has not written it yet, but the next block is linked
+        v.writeLong(pos + 16 + 8, BlockedLongs.UNSET);
+        long newPos = v.allocate();
+        v.writeLong(newPos, 1);
+        v.writeLong(newPos + 8, pos);
+        v.writeLong(newPos + 16, 3L);
+        v.writeLong(pos, -newPos);
+        v.writeLong(pos + 8, -newPos);
+
+        LongStream.Builder builder = LongStream.builder();
+        Cursor cursor = v.valuesSince(pos, Cursor.START, builder);
+        assertArrayEquals(new long[]{1L}, builder.build().toArray());
+        assertEquals(new Cursor(pos, 1), cursor);
+
+        v.writeLong(pos + 16 + 8, 2L);
+        builder = LongStream.builder();
+        cursor = v.valuesSince(pos, cursor, builder);
+        assertArrayEquals(new long[]{2L, 3L}, builder.build().toArray());
+        assertEquals(new Cursor(newPos, 1), cursor);
+    }
+
+    @Test
+    public void testCompressedValues() throws Exception {
+        BlockedLongs v = new BlockedLongs(path, new BlockedLongs.Options(2).withMaxValuesPerBlock(32).withCountValues(true).withCompressValues(true), readOnly, new BlockedLongMetrics.Adders());
+        long pos = v.allocate();
+        long other = v.allocate();
+        assertEquals(-1, v.lastValue(pos));
+        assertArrayEquals(new long[]{}, v.values(pos).toArray());
+
+        long[] expected = LongStream.range(0, 1000).map(i -> 1_000_000L + i * 37).toArray();
+        for (int i = 0; i < 500; i++) {
+            v.append(pos, expected[i]);
+            assertEquals(expected[i], v.lastValue(pos));
+        }
+        v.appendAll(pos, Arrays.copyOfRange(expected, 500, 1000));
+        // Values which do not grow still round trip
+        v.appendAll(other, new long[]{5L, 3L, Long.MAX_VALUE, 0L, -7L, Long.MIN_VALUE + 1});
+
+        assertArrayEquals(expected, v.values(pos).toArray());
+        assertArrayEquals(expected, v.values(pos).parallel().toArray());
+        assertArrayEquals(expected, v.valuesArray(pos));
+        assertArrayEquals(LongStream.range(0, 1000).map(i -> expected[999 - (int) i]).toArray(), v.valuesReverse(pos).toArray());
+        assertArrayEquals(Arrays.copyOfRange(expected, 990, 1000), v.lastValues(pos, 10));
+        assertArrayEquals(Arrays.copyOfRange(expected, 123, 456), v.valuesRange(pos, 123, 456).toArray());
+        assertEquals(1000, v.count(pos));
+        assertArrayEquals(new long[]{5L, 3L, Long.MAX_VALUE, 0L, -7L, Long.MIN_VALUE + 1}, v.values(other).toArray());
+        assertEquals(Long.MIN_VALUE + 1, v.lastValue(other));
+
+        LongStream.Builder builder = LongStream.builder();
+        Cursor cursor = v.valuesSince(pos, Cursor.START, builder);
+        assertArrayEquals(expected, builder.build().toArray());
+        v.append(pos, 2_000_000L);
+        builder = LongStream.builder();
+        v.valuesSince(pos, cursor, builder);
+        assertArrayEquals(new long[]{2_000_000L}, builder.build().toArray());
+
+        // Deltas of 37 take one byte each instead of eight
+        long compressedSize = v.size() - BlockedLongs.HEADER_BYTES;
+        v.close();
+
+        Path uncompressedPath = path.resolveSibling("uncompressed");
+        SafeDeleting.removeTempPath(uncompressedPath);
+        BlockedLongs u = new BlockedLongs(uncompressedPath, new BlockedLongs.Options(2).withMaxValuesPerBlock(32).withCountValues(true), readOnly, new BlockedLongMetrics.Adders());
+        u.appendAll(u.allocate(), expected);
+        assertTrue(compressedSize * 4 < u.size() - BlockedLongs.HEADER_BYTES);
+        u.close();
+
+        v = new BlockedLongs(path, 2, 32, readOnly);
+        assertEquals(1001, v.count(pos));
+        assertEquals(2_000_000L, v.lastValue(pos));
+    }
+
+    @Test
+    public void testValuesReverse() {
+        BlockedLongs v = new BlockedLongs(path, 3, 12, readOnly);
+        long pos = v.allocate();
+        assertArrayEquals(new long[]{}, v.valuesReverse(pos).toArray());
+        assertArrayEquals(new long[]{}, v.lastValues(pos, 5));
+        assertArrayEquals(new long[]{}, v.valuesReverse(null).toArray());
+
+        for (long i = 0; i < 100; i++) {
+            v.append(pos, i);
+        }
+        assertArrayEquals(LongStream.range(0, 100).map(i -> 99 - i).toArray(), v.valuesReverse(pos).toArray());
+        assertArrayEquals(new long[]{99, 98, 97, 96, 95}, v.valuesReverse(pos).limit(5).toArray());
+        assertArrayEquals(LongStream.range(50, 100).toArray(), v.lastValues(pos, 50));
+        assertArrayEquals(LongStream.range(0, 100).toArray(), v.lastValues(pos, 1000));
+        assertArrayEquals(new long[]{}, v.lastValues(pos, 0));
+    }
+
+    @Test
+    public void testValuesReverseRepairsLastPointer() {
+        BlockedLongs block = new BlockedLongs(path, 2, readOnly);
+        long pos = block.allocate();
+        block.append(pos, 1L);
+        block.append(pos, 2L);
+
+        // Link a new block without updating the head's last pointer
+        long newPos = block.allocate();
+        block.writeLong(newPos, 1);
+        block.writeLong(newPos + 8, pos);
+        block.writeLong(newPos + 16, 3L);
+        block.writeLong(pos, -newPos);
+
+        assertArrayEquals(new long[]{3L, 2L, 1L}, block.valuesReverse(pos).toArray());
+    }
+
     @Test
     public void testFlushAndCloseTwice() throws Exception {
         BlockedLongs block = new BlockedLongs(path, 1, readOnly);
@@ -190,6 +761,34 @@ public class BlockedLongsTest {
         });
     }
 
+    @Test
+    public void testTrimWithEagerUnmapping() throws Exception {
+        BlockedLongs blocks = new BlockedLongs(path, new BlockedLongs.Options(4).withEagerUnmapping(true), readOnly, new BlockedLongMetrics.Adders());
+        long[] chains = LongStream.range(0, 16).map(i -> blocks.allocate()).toArray();
+
+        // Append and read while the pages are unmapped underneath
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = IntStream.range(0, 4).mapToObj(thread -> executor.submit(() -> {
+            for (int value = 0; value < 1000; value++) {
+                long chain = chains[(thread * 4) + value % 4];
+                blocks.append(chain, value);
+                assertTrue(blocks.count(chain) > 0);
+            }
+        })).collect(Collectors.toList());
+        for (int trim = 0; trim < 20; trim++) {
+            blocks.trim();
+        }
+        for (Future<?> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        for (long chain : chains) {
+            assertEquals(250, blocks.values(chain).count());
+        }
+        blocks.close();
+    }
+
     @Test
     public void testTrim() {
         BlockedLongs blocks = new BlockedLongs(path, 524_286, readOnly); // Page size blocks
@@ -0,0 +1,112 @@
+package com.upserve.uppend;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.*;
+
+import static org.junit.Assert.*;
+
+public class GroupCommitterTest {
+    @Test
+    public void testNoneForcesOnCaller() throws Exception {
+        AtomicInteger forces = new AtomicInteger();
+        try (GroupCommitter committer = new GroupCommitter("test", DurabilityMode.NONE, 1000, forces::incrementAndGet)) {
+            CompletableFuture<Void> future = committer.request();
+            assertTrue(future.isDone());
+            assertEquals(1, forces.get());
+        }
+    }
+
+    @Test
+    public void testGroupCommitBatchesRequests() throws Exception {
+        AtomicInteger forces = new AtomicInteger();
+        CountDownLatch forcing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Runnable force = () -> {
+            forces.incrementAndGet();
+            forcing.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        };
+
+        try (GroupCommitter committer = new GroupCommitter("test", DurabilityMode.GROUP_COMMIT, 1000, force)) {
+            CompletableFuture<Void> first = committer.request();
+            forcing.await();
+
+            // Requests made while the first force runs are committed together by the next one
+            List<CompletableFuture<Void>> waiting = IntStream.range(0, 10).mapToObj(i -> committer.request()).collect(Collectors.toList());
+            assertFalse(first.isDone());
+            release.countDown();
+
+            first.get(5, TimeUnit.SECONDS);
+            for (CompletableFuture<Void> future : waiting) {
+                future.get(5, TimeUnit.SECONDS);
+            }
+            assertEquals(2, forces.get());
+        }
+    }
+
+    @Test
+    public void testPeriodic() throws Exception {
+        AtomicInteger forces = new AtomicInteger();
+        try (GroupCommitter committer = new GroupCommitter("test", DurabilityMode.PERIODIC, 10, forces::incrementAndGet)) {
+            committer.request().get(5, TimeUnit.SECONDS);
+            assertTrue(forces.get() >= 1);
+        }
+    }
+
+    @Test
+    public void testFailedForce() throws Exception {
+        try (GroupCommitter committer = new GroupCommitter("test", DurabilityMode.GROUP_COMMIT, 1000, () -> {
+            throw new IllegalStateException("expected");
+        })) {
+            try {
+                committer.request().get(5, TimeUnit.SECONDS);
+                fail("Expected the force to fail");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        }
+    }
+
+    @Test
+    public void testErrorStopsCommitter() throws Exception {
+        try (GroupCommitter committer = new GroupCommitter("test", DurabilityMode.GROUP_COMMIT, 1000, () -> {
+            throw new InternalError("expected");
+        })) {
+            try {
+                committer.request().get(5, TimeUnit.SECONDS);
+                fail("Expected the force to fail");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof InternalError);
+            }
+
+            // Later requests fail at once instead of waiting on a thread which has stopped
+            CompletableFuture<Void> future = committer.request();
+            assertTrue(future.isCompletedExceptionally());
+            try {
+                future.get();
+                fail("Expected the request to fail");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause().getCause() instanceof InternalError);
+            }
+        }
+    }
+
+    @Test
+    public void testCloseCommitsPending() throws Exception {
+        AtomicInteger forces = new AtomicInteger();
+        GroupCommitter committer = new GroupCommitter("test", DurabilityMode.PERIODIC, 60_000, forces::incrementAndGet);
+        CompletableFuture<Void> future = committer.request();
+        committer.close();
+        assertTrue(future.isDone());
+        assertEquals(1, forces.get());
+        assertTrue(committer.request().isCompletedExceptionally());
+    }
+}
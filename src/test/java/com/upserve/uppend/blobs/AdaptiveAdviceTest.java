@@ -0,0 +1,75 @@
+package com.upserve.uppend.blobs;
+
+import com.upserve.uppend.util.SafeDeleting;
+import org.junit.*;
+
+import java.io.IOException;
+import java.nio.file.*;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class AdaptiveAdviceTest {
+    private Path rootPath = Paths.get("build/test/blobs/adaptive_advice");
+    private Path path = rootPath.resolve("adaptive_advice_test");
+
+    private VirtualPageFile file;
+
+    @Before
+    public void setup() throws IOException {
+        SafeDeleting.removeDirectory(rootPath);
+        Files.createDirectories(rootPath);
+        file = new VirtualPageFile(path, 3, NativeIO.pageSize, 16 * NativeIO.pageSize, false, false);
+        // Interleave the pages of the virtual files across several mapped buffers
+        for (int pageNumber = 0; pageNumber < 10; pageNumber++) {
+            for (int virtualFileNumber = 0; virtualFileNumber < 3; virtualFileNumber++) {
+                file.getOrCreatePage(virtualFileNumber, pageNumber).put(0, ("p" + virtualFileNumber + pageNumber).getBytes(), 0);
+            }
+        }
+    }
+
+    @After
+    public void teardown() throws IOException {
+        file.close();
+    }
+
+    @Test
+    public void testScanColdVirtualFile() {
+        AdaptiveAdvice advice = new AdaptiveAdvice(file, true);
+        advice.beginScan(1);
+        advice.beginScan(1);
+        advice.endScan(1);
+        advice.endScan(1);
+        assertPages();
+    }
+
+    @Test
+    public void testScanHotVirtualFile() {
+        AdaptiveAdvice advice = new AdaptiveAdvice(file, true);
+        advice.beginScan(2);
+        for (int i = 0; i < AdaptiveAdvice.HOT_POINT_READS; i++) {
+            advice.pointRead(2);
+        }
+        advice.endScan(2);
+        assertPages();
+    }
+
+    @Test
+    public void testDisabled() {
+        AdaptiveAdvice advice = new AdaptiveAdvice(file, false);
+        advice.pointRead(0);
+        advice.beginScan(0);
+        advice.endScan(0);
+        assertPages();
+    }
+
+    private void assertPages() {
+        for (int pageNumber = 0; pageNumber < 10; pageNumber++) {
+            for (int virtualFileNumber = 0; virtualFileNumber < 3; virtualFileNumber++) {
+                byte[] expected = ("p" + virtualFileNumber + pageNumber).getBytes();
+                byte[] result = new byte[expected.length];
+                file.getExistingPage(virtualFileNumber, pageNumber).get(0, result, 0);
+                assertArrayEquals(expected, result);
+            }
+        }
+    }
+}
@@ -37,6 +37,12 @@ public class FilePageTest {
         filePage.get(0,new byte[100], 0);
     }
     @Test
+    public void getLongIllegalStateTest() throws IOException {
+        when(channel.read(any(ByteBuffer.class), anyLong())).thenReturn(4);
+        thrown.expect(IllegalStateException.class);
+        filePage.getLong(0);
+    }
+    @Test
     public void putIOExceptionTest() throws IOException {
         when(channel.write(any(ByteBuffer.class), anyLong())).thenThrow(IOException.class);
         thrown.expect(UncheckedIOException.class);
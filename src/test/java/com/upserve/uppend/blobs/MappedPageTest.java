@@ -1,5 +1,6 @@
 package com.upserve.uppend.blobs;
 
+import com.google.common.primitives.Longs;
 import com.upserve.uppend.util.SafeDeleting;
 import org.junit.*;
 import org.junit.rules.ExpectedException;
@@ -88,6 +89,19 @@ public class MappedPageTest {
         putGetHelper(73, 5, 81);
     }
 
+    @Test
+    public void testPrimitives() {
+        rwPage.putInt(pageSize - 4, 0xCAFEBABE);
+        rwPage.putLong(17, Long.MIN_VALUE + 5);
+
+        assertEquals(0xCAFEBABE, roPage.getInt(pageSize - 4));
+        assertEquals(Long.MIN_VALUE + 5, roPage.getLong(17));
+
+        byte[] bytes = new byte[8];
+        roPage.get(17, bytes, 0);
+        assertEquals(Long.MIN_VALUE + 5, Longs.fromByteArray(bytes));
+    }
+
     @Test
     public void testMultipleMaps() {
         putGetHelper(rwPage, roPage, 42, 13, 84);
@@ -0,0 +1,59 @@
+package com.upserve.uppend.blobs;
+
+import com.upserve.uppend.util.SafeDeleting;
+import org.junit.*;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+import static org.junit.Assert.*;
+
+public class MemoryLockBudgetTest {
+    private Path rootPath = Paths.get("build/test/blobs/memory_lock_budget");
+    private Path path = rootPath.resolve("memory_lock_budget_test");
+
+    private FileChannel fc;
+    private MappedByteBuffer buffer;
+
+    @Before
+    public void setup() throws IOException {
+        SafeDeleting.removeDirectory(rootPath);
+        Files.createDirectories(rootPath);
+        fc = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = fc.map(FileChannel.MapMode.READ_WRITE, 0, 4 * NativeIO.pageSize);
+    }
+
+    @After
+    public void teardown() throws IOException {
+        fc.close();
+        SafeDeleting.removeDirectory(rootPath);
+    }
+
+    @Test
+    public void testNoBudget() {
+        MemoryLockBudget budget = new MemoryLockBudget(0);
+        assertNull(budget.lock(buffer, 0, NativeIO.pageSize));
+        assertEquals(0, budget.getLockedBytes());
+    }
+
+    @Test
+    public void testBudgetIsNotExceeded() {
+        MemoryLockBudget budget = new MemoryLockBudget(NativeIO.pageSize);
+        // The first page may not lock if the process is not allowed to lock memory
+        MemoryLockBudget.LockedRegion region = budget.lock(buffer, 0, 16);
+        assertEquals(region == null ? 0 : NativeIO.pageSize, budget.getLockedBytes());
+
+        assertNull(budget.lock(buffer, NativeIO.pageSize, NativeIO.pageSize + 1));
+        assertTrue(budget.getLockedBytes() <= budget.getBudget());
+
+        if (region != null) budget.unlock(region);
+        assertEquals(0, budget.getLockedBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeBudget() {
+        new MemoryLockBudget(-1);
+    }
+}
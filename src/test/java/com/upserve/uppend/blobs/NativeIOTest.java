@@ -40,6 +40,34 @@ public class NativeIOTest {
         NativeIO.madvise(buffer, NativeIO.Advice.DontNeed);
     }
 
+    @Test
+    public void test_adviseHugePages() throws IOException {
+        MappedByteBuffer buffer = fc.map(FileChannel.MapMode.READ_WRITE, 0, 1024 * NativeIO.pageSize);
+        // Whether the advice is accepted depends on the kernel, it must not throw either way
+        NativeIO.adviseHugePages(buffer);
+        buffer.putLong(512 * NativeIO.pageSize, 42L);
+        assertEquals(42L, buffer.getLong(512 * NativeIO.pageSize));
+    }
+
+    @Test
+    public void test_madviseRange() throws IOException {
+        MappedByteBuffer buffer = fc.map(FileChannel.MapMode.READ_WRITE, 0, 8 * NativeIO.pageSize);
+        NativeIO.madvise(buffer, 2 * NativeIO.pageSize, 3 * NativeIO.pageSize, NativeIO.Advice.Sequential);
+        NativeIO.madvise(buffer, 2 * NativeIO.pageSize + 17, 100, NativeIO.Advice.DontNeed);
+        NativeIO.madvise(buffer, 0, 8 * NativeIO.pageSize, NativeIO.Advice.Normal);
+    }
+
+    @Test
+    public void test_fallocate() throws IOException {
+        int fd = NativeIO.open(path);
+        try {
+            NativeIO.fallocate(fd, 0, 16 * NativeIO.pageSize);
+        } finally {
+            NativeIO.close(fd);
+        }
+        assertEquals(0, fc.size());
+    }
+
     @Test
     public void test_alignedAddress() {
         long result;
@@ -0,0 +1,55 @@
+package com.upserve.uppend.blobs;
+
+import com.upserve.uppend.util.SafeDeleting;
+import org.junit.*;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Collections;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class UnmapFenceTest {
+    private final Path rootPath = Paths.get("build/test/blobs/unmap_fence");
+    private final Path path = rootPath.resolve("mapped");
+
+    @Before
+    public void setup() throws IOException {
+        SafeDeleting.removeDirectory(rootPath);
+        Files.createDirectories(rootPath);
+    }
+
+    @Test
+    public void testDisabled() {
+        UnmapFence fence = new UnmapFence(false);
+        assertFalse(fence.isEnabled());
+        int token = fence.enter();
+        fence.exit(token);
+        assertEquals(-1, token);
+    }
+
+    @Test
+    public void testRetireWaitsForReaders() throws Exception {
+        UnmapFence fence = new UnmapFence(true);
+        Assume.assumeTrue("Unmapping is not available on this JVM", fence.isEnabled());
+
+        try (FileChannel chan = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = chan.map(FileChannel.MapMode.READ_WRITE, 0, NativeIO.pageSize);
+            buffer.putLong(0, 42L);
+
+            int token = fence.enter();
+            CompletableFuture<Void> retired = CompletableFuture.runAsync(() -> fence.retire(Collections.singletonList(buffer)));
+
+            // The buffer is not unmapped while the reader is inside the fence
+            Thread.sleep(100);
+            assertFalse(retired.isDone());
+            assertEquals(42L, buffer.getLong(0));
+            fence.exit(token);
+
+            retired.get(10, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -6,12 +6,14 @@ import org.junit.*;
 import org.junit.rules.ExpectedException;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.*;
 import java.util.concurrent.*;
 import java.util.stream.*;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class VirtualAppendOnlyBlobStoreTest {
 
@@ -83,6 +85,41 @@ public class VirtualAppendOnlyBlobStoreTest {
         assertArrayEquals("abc".getBytes(), store.read(pos));
     }
 
+    @Test
+    public void testAppendReadHeaderSpanningPages() {
+        setup(5);
+        VirtualAppendOnlyBlobStore store = new VirtualAppendOnlyBlobStore(2, virtualPageFile);
+
+        assertEquals(0, store.append("ab".getBytes()));
+        assertEquals(6, store.append("cd".getBytes()));
+        long pos = store.append("xyz".getBytes()); // the size header starts at 12 and ends in the next page
+        assertEquals(12, pos);
+        assertArrayEquals("ab".getBytes(), store.read(0));
+        assertArrayEquals("cd".getBytes(), store.read(6));
+        assertArrayEquals("xyz".getBytes(), store.read(pos));
+    }
+
+    @Test
+    public void testReadBuffer() {
+        setup(16);
+        VirtualAppendOnlyBlobStore store = new VirtualAppendOnlyBlobStore(2, virtualPageFile);
+
+        long inPage = store.append("abc".getBytes());
+        long spanning = store.append("defghijklmnop".getBytes()); // starts at 7, crosses the page boundary
+        long empty = store.append(new byte[]{});
+
+        assertBuffer("abc", store.readBuffer(inPage));
+        assertBuffer("defghijklmnop", store.readBuffer(spanning));
+        assertBuffer("", store.readBuffer(empty));
+    }
+
+    private static void assertBuffer(String expected, ByteBuffer buffer) {
+        assertTrue(buffer.isReadOnly());
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        assertEquals(expected, new String(bytes));
+    }
+
     @Test
     public void testReadPastPositionInValidPage() {
         setup(25);
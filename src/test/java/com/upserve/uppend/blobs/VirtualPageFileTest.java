@@ -4,6 +4,8 @@ import com.upserve.uppend.util.SafeDeleting;
 import org.junit.*;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
 
 import static junit.framework.TestCase.assertEquals;
@@ -29,6 +31,156 @@ public class VirtualPageFileTest {
         if (instance != null) instance.close();
     }
 
+    @Test
+    public void testRadixPageTables() throws IOException {
+        instance = new VirtualPageFile(path, 2, 64, 16384, false);
+        instance.getOrCreatePage(1, 5).put(0, "abc".getBytes(), 0);
+        assertEquals(2, formatWord());
+
+        // Past the 1024 direct page tables of 1000 pages
+        instance.getOrCreatePage(1, 1_100_000).put(0, "def".getBytes(), 0);
+        assertEquals(2 << 24 | 2, formatWord());
+        instance.getOrCreatePage(0, 3).put(0, "ghi".getBytes(), 0);
+
+        instance.close();
+        instance = new VirtualPageFile(path, 2, 64, 16384, true);
+        assertPage(1, 5, "abc");
+        assertPage(1, 1_100_000, "def");
+        assertPage(0, 3, "ghi");
+
+        instance.close();
+        instance = new VirtualPageFile(path, 2, 64, 16384, false);
+        instance.getOrCreatePage(1, 1_500_000).put(0, "jkl".getBytes(), 0);
+        instance.getOrCreatePage(0, 4).put(0, "mno".getBytes(), 0);
+        assertPage(1, 5, "abc");
+        assertPage(1, 1_100_000, "def");
+        assertPage(1, 1_500_000, "jkl");
+        assertPage(0, 3, "ghi");
+        assertPage(0, 4, "mno");
+    }
+
+    @Test
+    public void testDefragment() throws IOException {
+        instance = new VirtualPageFile(path, 3, 64, 16384, false);
+        // Interleave the pages of the virtual files
+        for (int pageNumber = 0; pageNumber < 5; pageNumber++) {
+            for (int virtualFileNumber = 2; virtualFileNumber >= 0; virtualFileNumber--) {
+                instance.getOrCreatePage(virtualFileNumber, pageNumber).put(0, ("p" + virtualFileNumber + pageNumber).getBytes(), 0);
+            }
+        }
+        long[] positions = new long[3];
+        for (int virtualFileNumber = 0; virtualFileNumber < 3; virtualFileNumber++) {
+            positions[virtualFileNumber] = instance.appendPosition(virtualFileNumber, 100 + virtualFileNumber);
+        }
+        assertEquals(64, instance.getValidPageStart(1, 1) - instance.getValidPageStart(0, 1));
+        instance.close();
+
+        VirtualPageFile.defragment(path, 3, 64, 16384);
+        assertFalse(Files.exists(path.resolveSibling(path.getFileName() + ".defragmenting")));
+
+        instance = new VirtualPageFile(path, 3, 64, 16384, true);
+        for (int virtualFileNumber = 0; virtualFileNumber < 3; virtualFileNumber++) {
+            assertEquals(positions[virtualFileNumber] + 100 + virtualFileNumber, instance.getPosition(virtualFileNumber));
+            long firstPageStart = instance.getValidPageStart(virtualFileNumber, 0);
+            for (int pageNumber = 0; pageNumber < 5; pageNumber++) {
+                assertEquals(firstPageStart + 64 * pageNumber, instance.getValidPageStart(virtualFileNumber, pageNumber));
+                assertPage(virtualFileNumber, pageNumber, "p" + virtualFileNumber + pageNumber);
+            }
+        }
+    }
+
+    private int formatWord() throws IOException {
+        try (FileChannel chan = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(4);
+            chan.read(buffer, 0);
+            return buffer.getInt(0);
+        }
+    }
+
+    private void assertPage(int virtualFileNumber, int pageNumber, String expected) {
+        byte[] result = new byte[expected.length()];
+        instance.getExistingPage(virtualFileNumber, pageNumber).get(0, result, 0);
+        assertArrayEquals(expected.getBytes(), result);
+    }
+
+    @Test
+    public void testChannelPageBackend() throws IOException {
+        instance = new VirtualPageFile(path, 4, 1024, 16384, false, new VirtualPageFile.Options().withPageBackend(PageBackend.CHANNEL));
+        Page page = instance.getOrCreatePage(1, 2);
+        assertTrue(page instanceof FilePage);
+        page.put(16, "abc".getBytes(), 0);
+        page.putLong(24, 42L);
+
+        byte[] result = new byte[3];
+        instance.getExistingPage(1, 2).get(16, result, 0);
+        assertArrayEquals("abc".getBytes(), result);
+        assertEquals(42L, instance.getExistingPage(1, 2).getLong(24));
+        assertEquals(0L, instance.getExistingPage(1, 2).getLong(1016)); // allocated but not written
+
+        instance.close();
+        instance = new VirtualPageFile(path, 4, 1024, 16384, true);
+        assertTrue(instance.getExistingPage(1, 2) instanceof MappedPage);
+        instance.getExistingPage(1, 2).get(16, result, 0);
+        assertArrayEquals("abc".getBytes(), result);
+        assertEquals(42L, instance.getExistingPage(1, 2).getLong(24));
+    }
+
+    @Test
+    public void testAllocatePastTwoGigabytes() throws IOException {
+        final int pageSize = 16 * 1024 * 1024;
+        final int pages = Integer.MAX_VALUE / pageSize + 2;
+        // A channel backed file is extended sparsely, so the pages can be allocated in a single call without mapping them
+        instance = new VirtualPageFile(path, 2, pageSize, pageSize, false, new VirtualPageFile.Options().withPageBackend(PageBackend.CHANNEL));
+        instance.getOrCreatePage(1, pages - 1);
+
+        final long firstPageStart = instance.getValidPageStart(1, 0);
+        for (int pageNumber = 0; pageNumber < pages; pageNumber++) {
+            assertEquals(firstPageStart + (long) pageNumber * pageSize, instance.getValidPageStart(1, pageNumber));
+        }
+        assertTrue(instance.getValidPageStart(1, pages - 1) > Integer.MAX_VALUE);
+        assertEquals(firstPageStart + (long) pages * pageSize, instance.getFileSize());
+
+        // The next allocation starts after the run
+        instance.getOrCreatePage(0, 0);
+        assertEquals(firstPageStart + (long) pages * pageSize, instance.getValidPageStart(0, 0));
+    }
+
+    @Test
+    public void testPreallocation() throws IOException {
+        instance = new VirtualPageFile(path, 4, 1024, 16384, false, new VirtualPageFile.Options().withPageBackend(PageBackend.CHANNEL).withPreallocationChunkSize(16 * NativeIO.pageSize));
+        for (int pageNumber = 0; pageNumber < 3; pageNumber++) {
+            instance.getOrCreatePage(pageNumber, pageNumber).put(0, ("p" + pageNumber).getBytes(), 0);
+        }
+        // The reserved extents do not change the size of the file
+        assertEquals(instance.getValidPageStart(2, 2) + 1024, instance.getFileSize());
+
+        instance.close();
+        instance = new VirtualPageFile(path, 4, 1024, 16384, true);
+        for (int pageNumber = 0; pageNumber < 3; pageNumber++) {
+            assertPage(pageNumber, pageNumber, "p" + pageNumber);
+        }
+    }
+
+    @Test
+    public void testMemoryLock() throws IOException {
+        MemoryLockBudget budget = new MemoryLockBudget(1024 * 1024);
+        instance = new VirtualPageFile(path, 4, NativeIO.pageSize, 16 * NativeIO.pageSize, false, new VirtualPageFile.Options().withMemoryLockBudget(budget).withLockPages(true));
+        for (int pageNumber = 0; pageNumber < 3; pageNumber++) {
+            instance.getOrCreatePage(pageNumber, pageNumber).put(0, ("p" + pageNumber).getBytes(), 0);
+        }
+        assertTrue(budget.getLockedBytes() <= budget.getBudget());
+
+        instance.close();
+        assertEquals(0, budget.getLockedBytes());
+
+        instance = new VirtualPageFile(path, 4, NativeIO.pageSize, 16 * NativeIO.pageSize, true, new VirtualPageFile.Options().withMemoryLockBudget(budget).withLockPages(true));
+        for (int pageNumber = 0; pageNumber < 3; pageNumber++) {
+            assertPage(pageNumber, pageNumber, "p" + pageNumber);
+        }
+        instance.close();
+        assertEquals(0, budget.getLockedBytes());
+    }
+
     @Test
     public void testReadWritePageAllocation() throws IOException {
         instance = new VirtualPageFile(path, 36, 1024, 16384, false);
@@ -3,6 +3,7 @@ package com.upserve.uppend.lookup;
 import com.google.common.primitives.Ints;
 import com.upserve.uppend.*;
 import com.upserve.uppend.blobs.*;
+import com.upserve.uppend.metrics.LookupDataMetrics;
 import com.upserve.uppend.util.SafeDeleting;
 import org.junit.*;
 import org.junit.rules.ExpectedException;
@@ -129,6 +130,135 @@ public class LookupDataTest {
         assertEquals(Long.valueOf(12), data.getValue(key));
     }
 
+    @Test
+    public void testHashIndex() throws IOException {
+        // Start without the index to check it is built from the existing keys
+        LookupData data = LookupData.lookupWriter(keyBlobStore, mutableBlobStore, FLUSH_THRESHOLD);
+        for (int i = 0; i < 50; i++) {
+            data.put(new LookupKey("key" + (i * 2)), i);
+        }
+        data.flush();
+        assertNull(data.getMetadata().getHashIndex());
+
+        data = LookupData.lookupWriter(keyBlobStore, mutableBlobStore, FLUSH_THRESHOLD, new LookupData.Options().withHashIndex(true), new LookupDataMetrics.Adders());
+        for (int i = 50; i < 100; i++) {
+            data.put(new LookupKey("key" + (i * 2)), i);
+        }
+        // Misses found by the index are sorted in on flush
+        data.putIfNotExists(new LookupKey("key1"), 1000);
+        data.flush();
+
+        LookupMetadata metadata = data.getMetadata();
+        assertNotNull(metadata.getHashIndex());
+        assertEquals(101, metadata.getHashIndex().size());
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Long.valueOf(i), data.getValue(new LookupKey("key" + (i * 2))));
+        }
+        assertEquals(Long.valueOf(1000), data.getValue(new LookupKey("key1")));
+        assertNull(data.getValue(new LookupKey("key3")));
+
+        assertEquals(1000L, data.increment(new LookupKey("key0"), 1000));
+
+        List<String> keys = Arrays.stream(metadata.getKeyStorageOrder())
+                .mapToObj(position -> new LookupKey(keyBlobStore.readBlob(position)).string())
+                .collect(Collectors.toList());
+        List<String> sortedKeys = new ArrayList<>(keys);
+        Collections.sort(sortedKeys);
+        assertEquals(sortedKeys, keys);
+
+        tearDown();
+        setup(true);
+
+        data = LookupData.lookupReader(keyBlobStore, mutableBlobStore, RELOAD_INTERVAL);
+        assertNotNull(data.getMetadata().getHashIndex());
+        assertEquals(Long.valueOf(1000), data.getValue(new LookupKey("key0")));
+        assertEquals(Long.valueOf(99), data.getValue(new LookupKey("key198")));
+        assertNull(data.getValue(new LookupKey("key199")));
+    }
+
+    @Test
+    public void testBloomFilter() throws IOException {
+        LookupData data = LookupData.lookupWriter(keyBlobStore, mutableBlobStore, FLUSH_THRESHOLD, new LookupData.Options().withBloomFilter(true), new LookupDataMetrics.Adders());
+        for (int i = 0; i < 1000; i++) {
+            data.put(new LookupKey("key" + (i * 2)), i);
+        }
+        data.flush();
+        LookupBloomFilter filter = data.getMetadata().getBloomFilter();
+        assertNotNull(filter);
+        assertEquals(2000, filter.getCapacity());
+
+        // Misses skipped by the filter are sorted in on flush, outgrowing the filter rebuilds it
+        for (int i = 0; i < 1500; i++) {
+            data.putIfNotExists(new LookupKey("key" + (i * 2 + 1)), 1000 + i);
+        }
+        data.flush();
+        filter = data.getMetadata().getBloomFilter();
+        assertEquals(5000, filter.getCapacity());
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(Long.valueOf(i), data.getValue(new LookupKey("key" + (i * 2))));
+        }
+        for (int i = 0; i < 1500; i++) {
+            assertTrue(filter.mightContain(new LookupKey("key" + (i * 2 + 1))));
+            assertEquals(Long.valueOf(1000 + i), data.getValue(new LookupKey("key" + (i * 2 + 1))));
+        }
+        assertNull(data.getValue(new LookupKey("missing")));
+
+        LookupMetadata metadata = data.getMetadata();
+        List<String> keys = Arrays.stream(metadata.getKeyStorageOrder())
+                .mapToObj(position -> new LookupKey(keyBlobStore.readBlob(position)).string())
+                .collect(Collectors.toList());
+        List<String> sortedKeys = new ArrayList<>(keys);
+        Collections.sort(sortedKeys);
+        assertEquals(sortedKeys, keys);
+
+        tearDown();
+        setup(true);
+
+        data = LookupData.lookupReader(keyBlobStore, mutableBlobStore, RELOAD_INTERVAL);
+        assertNotNull(data.getMetadata().getBloomFilter());
+        assertEquals(Long.valueOf(999), data.getValue(new LookupKey("key1998")));
+        assertEquals(Long.valueOf(1000), data.getValue(new LookupKey("key1")));
+        assertNull(data.getValue(new LookupKey("missing")));
+    }
+
+    @Test
+    public void testKeyPrefixes() throws IOException {
+        // Start without the prefixes to check they are built from the existing keys
+        LookupData data = LookupData.lookupWriter(keyBlobStore, mutableBlobStore, FLUSH_THRESHOLD);
+        for (int i = 0; i < 50; i++) {
+            data.put(new LookupKey("key" + (i * 2)), i);
+        }
+        data.flush();
+        assertNull(data.getMetadata().getKeyPrefixes());
+
+        data = LookupData.lookupWriter(keyBlobStore, mutableBlobStore, FLUSH_THRESHOLD, new LookupData.Options().withKeyPrefixes(true), new LookupDataMetrics.Adders());
+        for (int i = 0; i < 50; i++) {
+            data.put(new LookupKey("key" + (i * 2 + 1)), 1000 + i);
+        }
+        data.flush();
+
+        LookupMetadata metadata = data.getMetadata();
+        long[] expectedPrefixes = Arrays.stream(metadata.getKeyStorageOrder())
+                .mapToLong(position -> LookupMetadata.keyPrefix(keyBlobStore.readBlob(position)))
+                .toArray();
+        assertArrayEquals(expectedPrefixes, metadata.getKeyPrefixes());
+
+        for (int i = 0; i < 50; i++) {
+            assertEquals(Long.valueOf(i), data.getValue(new LookupKey("key" + (i * 2))));
+            assertEquals(Long.valueOf(1000 + i), data.getValue(new LookupKey("key" + (i * 2 + 1))));
+        }
+        assertNull(data.getValue(new LookupKey("key100")));
+
+        tearDown();
+        setup(true);
+
+        data = LookupData.lookupReader(keyBlobStore, mutableBlobStore, RELOAD_INTERVAL);
+        assertArrayEquals(expectedPrefixes, data.getMetadata().getKeyPrefixes());
+        assertEquals(Long.valueOf(1049), data.getValue(new LookupKey("key99")));
+    }
+
     @Test
     public void testFlushAndClose() throws IOException {
         LookupData data = LookupData.lookupWriter(keyBlobStore, mutableBlobStore, FLUSH_THRESHOLD);
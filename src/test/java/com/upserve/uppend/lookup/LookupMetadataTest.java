@@ -14,7 +14,7 @@ import org.slf4j.Logger;
 import java.io.IOException;
 import java.nio.file.*;
 import java.util.*;
-import java.util.stream.IntStream;
+import java.util.stream.*;
 
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
@@ -421,6 +421,50 @@ public class LookupMetadataTest {
         verifyNoMoreInteractions(mockLongBlobStore);
     }
 
+    @Test
+    public void testManyKeysWithPrefixes() {
+        LookupKey bKey = new LookupKey("b");
+        LookupKey yKey = new LookupKey("y");
+        long[] prefixes = Stream.of("b", "c", "d", "e", "f", "g", "m", "o", "t", "u", "v", "w", "y")
+                .mapToLong(key -> LookupMetadata.keyPrefix(key.getBytes()))
+                .toArray();
+        LookupMetadata metadata = new LookupMetadata(bKey, yKey, new int[]{12, 7, 8, 1, 11, 6, 3, 5, 10, 2, 0, 4, 9}, prefixes, null, null, 1);
+
+        // The prefixes decide every midpoint so no keys are read
+        LookupKey searchKey = new LookupKey("s");
+        assertNull(metadata.findKey(mockLongBlobStore, searchKey));
+        assertEquals(7, searchKey.getInsertAfterSortIndex());
+        assertEquals(1, searchKey.getMetaDataGeneration());
+        verifyNoMoreInteractions(mockLongBlobStore);
+
+        // A key is only read when its prefix ties
+        Long expected = 4L;
+        when(mockLongBlobStore.readBlob(10L)).thenReturn("t".getBytes());
+        when(mockLongBlobStore.readLong(10)).thenReturn(expected);
+        assertEquals(expected, metadata.findKey(mockLongBlobStore, new LookupKey("t")));
+        verify(mockLongBlobStore).readBlob(10L);
+        verify(mockLongBlobStore).readLong(10);
+
+        verifyNoMoreInteractions(mockLongBlobStore);
+    }
+
+    @Test
+    public void testKeyPrefixOrder() {
+        List<byte[]> keys = Arrays.asList(
+                new byte[]{}, new byte[]{-128}, new byte[]{-1, 5}, new byte[]{0}, new byte[]{0, 0}, new byte[]{1},
+                "abcdefgh".getBytes(), "abcdefghi".getBytes(), "abcdefgj".getBytes(), new byte[]{127, 127}
+        );
+        for (byte[] left : keys) {
+            for (byte[] right : keys) {
+                int prefixComparison = Long.compareUnsigned(LookupMetadata.keyPrefix(left), LookupMetadata.keyPrefix(right));
+                int keyComparison = new LookupKey(left).compareTo(new LookupKey(right));
+                if (prefixComparison != 0) {
+                    assertEquals(Integer.signum(keyComparison), Integer.signum(prefixComparison));
+                }
+            }
+        }
+    }
+
     @Test
     public void testMetadataLookup() {
         AppendOnlyStoreBuilder defaults = TestHelper.getDefaultAppendStoreTestBuilder()
@@ -141,6 +141,33 @@ public class VarintTest {
         }
     }
 
+    @Test
+    public void roundtripArray() {
+        long[] vals = {
+                0, 1, 127, 128, 16383, 16384, 268435456, 34359738368L,
+                72057594037927936L, 9223372036854775807L, -1, Long.MIN_VALUE
+        };
+
+        byte[] bytes = new byte[vals.length * 10];
+        int offset = 0;
+        for (long val : vals) {
+            int next = Varint.write(bytes, offset, val);
+            assertEquals(Varint.computeSize(val), next - offset);
+            offset = next;
+        }
+
+        offset = 0;
+        for (long val : vals) {
+            assertEquals(val, Varint.readLong(bytes, offset));
+            offset += Varint.computeSize(val);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void malformedArray() {
+        Varint.readLong(new byte[] {(byte) 0xff, (byte) 0xff}, 0);
+    }
+
     @Test
     public void malformed() {
         ByteArrayInputStream in = new ByteArrayInputStream(new byte[] {